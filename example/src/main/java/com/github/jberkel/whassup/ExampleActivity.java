@@ -1,57 +1,78 @@
 package com.github.jberkel.whassup;
 
 import android.app.Activity;
-import android.database.Cursor;
 import android.os.Bundle;
 import android.util.Log;
 import android.widget.Toast;
+import com.github.jberkel.whassup.async.AsyncWhassup;
+import com.github.jberkel.whassup.async.Subscriber;
+import com.github.jberkel.whassup.async.Subscription;
 import com.github.jberkel.whassup.model.WhatsAppMessage;
 
-import java.io.IOException;
-import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class ExampleActivity extends Activity {
     private static final String TAG = ExampleActivity.class.getSimpleName();
+    private static final int PAGE_SIZE = 50;
+
+    private ExecutorService executor;
+    private volatile Subscription subscription;
 
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         Log.d("ExampleActivity", "onCreate()");
 
-        Whassup whassup = new Whassup();
+        // decrypting and reading the backup takes a while, keep it off the main thread
+        executor = Executors.newSingleThreadExecutor();
+        AsyncWhassup whassup = new AsyncWhassup(new Whassup(), executor);
 
-        fetchMessageCursor(whassup);
         fetchMessages(whassup);
     }
 
-    private void fetchMessages(Whassup whassup) {
-        try {
-            List<WhatsAppMessage> messages = whassup.getMessages();
-            Log.d(TAG, "got " + messages);
-        } catch (IOException e) {
-            Log.e(TAG, "error getting messages", e);
-            Toast.makeText(this, "Error decrypting:" + e.getMessage(), Toast.LENGTH_LONG).show();
-        }
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (subscription != null) subscription.cancel();
+        executor.shutdown();
     }
 
-    private void fetchMessageCursor(Whassup whassup) {
-        Cursor cursor = null;
-        try {
-            cursor = whassup.queryMessages();
+    private void fetchMessages(AsyncWhassup whassup) {
+        whassup.publishMessages(0).subscribe(new Subscriber<WhatsAppMessage>() {
+            private int received;
+
+            @Override
+            public void onSubscribe(Subscription s) {
+                subscription = s;
+                s.request(PAGE_SIZE);
+            }
 
-            if (cursor != null) {
-                while (cursor.moveToNext()) {
-                    WhatsAppMessage m = new WhatsAppMessage(cursor);
-                    Log.d(TAG, "got "+m);
+            @Override
+            public void onNext(WhatsAppMessage message) {
+                Log.d(TAG, "got " + message);
+                // ask for the next page once this one has been handled
+                if (++received % PAGE_SIZE == 0) {
+                    subscription.request(PAGE_SIZE);
                 }
-            } else {
-                Log.w(TAG, "no cursor");
             }
-        } catch (IOException e) {
-            Log.e(TAG, "error getting messages", e);
-            Toast.makeText(this, "Error decrypting:" + e.getMessage(), Toast.LENGTH_LONG).show();
-        } finally {
-            if (cursor != null) cursor.close();
-        }
+
+            @Override
+            public void onError(final Throwable error) {
+                Log.e(TAG, "error getting messages", error);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(ExampleActivity.this, "Error decrypting:" + error.getMessage(),
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+
+            @Override
+            public void onComplete() {
+                Log.d(TAG, "got " + received + " messages");
+            }
+        });
     }
-}
\ No newline at end of file
+}
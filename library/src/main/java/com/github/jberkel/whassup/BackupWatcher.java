@@ -0,0 +1,270 @@
+package com.github.jberkel.whassup;
+
+import android.os.FileObserver;
+import android.util.Log;
+import com.github.jberkel.whassup.cache.Fingerprint;
+import com.github.jberkel.whassup.cache.SnapshotCache;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a backup and pushes the messages added to it to listeners, instead of polling
+ * {@link Whassup#hasBackupDB()} and querying all messages again. Changes are noticed with a
+ * {@link FileObserver} on the backup directory, or by polling size and modification time where
+ * that is not available (see {@link #setPollInterval(long)}). Bursts of writes are debounced,
+ * then the new messages are fetched with {@link Whassup#sync(SyncToken, int)}: a backup which has
+ * not changed is not decrypted again.
+ * <p>
+ * Only with an incremental {@link SnapshotCache} (see {@link SnapshotCache#setIncremental(boolean)})
+ * are just the changed chunks of the backup decrypted. Without a cache, or with a cache which is
+ * not incremental, every change decrypts the whole backup.
+ * <p>
+ * Listeners are called on the watcher's background thread, one change at a time.
+ */
+public class BackupWatcher implements Closeable {
+    private static final String TAG = BackupWatcher.class.getSimpleName();
+
+    public static final long DEFAULT_DEBOUNCE = 2000;
+    private static final int EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO | FileObserver.CREATE;
+
+    /**
+     * Receives the messages added to the backup.
+     */
+    public interface Listener {
+        /**
+         * @param messages the new messages, in the order they were added
+         * @param token the position after the messages, to persist and pass to {@link #setToken(SyncToken)}
+         *              when watching again later
+         */
+        void onNewMessages(List<WhatsAppMessage> messages, SyncToken token);
+
+        void onError(IOException e);
+    }
+
+    private final Whassup whassup;
+    private final File backup;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private final ScheduledExecutorService executor;
+    private long debounce = DEFAULT_DEBOUNCE;
+    private long pollInterval;
+
+    // only accessed from the executor
+    private SyncToken token;
+    private Fingerprint fingerprint;
+    private long polledLength, polledLastModified;
+
+    // guarded by this
+    private FileObserver observer;
+    private ScheduledFuture<?> pending;
+    private boolean started, closed;
+
+    /**
+     * Watches the backup on the SD card.
+     * @param snapshotCache cache for decrypted snapshots, should be incremental; null to decrypt the
+     *                      whole backup on every change
+     */
+    public BackupWatcher(SnapshotCache snapshotCache) {
+        this(new File(Whassup.DB_PATH, Whassup.CURRENT_DB), snapshotCache);
+    }
+
+    /**
+     * @param backup the encrypted backup, which does not have to exist yet
+     * @param snapshotCache cache for decrypted snapshots, should be incremental; null to decrypt the
+     *                      whole backup on every change
+     */
+    public BackupWatcher(File backup, SnapshotCache snapshotCache) {
+        this(new Whassup(backup, snapshotCache), backup);
+        if (snapshotCache == null || !snapshotCache.isIncremental()) {
+            Log.w(TAG, "no incremental snapshot cache, every change of " + backup + " is decrypted completely");
+        }
+    }
+
+    /* package */ BackupWatcher(Whassup whassup, File backup) {
+        this.whassup = whassup;
+        this.backup = backup;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param millis how long the backup has to stay unchanged before it is read, {@link #DEFAULT_DEBOUNCE} by default
+     */
+    public synchronized void setDebounce(long millis) {
+        this.debounce = millis;
+    }
+
+    /**
+     * @param millis how often to check the backup for changes, or 0 (the default) to be notified
+     *               by a {@link FileObserver}, which needs Android
+     */
+    public synchronized void setPollInterval(long millis) {
+        this.pollInterval = millis;
+    }
+
+    /**
+     * @param token where to continue, from a previous {@link Listener#onNewMessages(List, SyncToken)};
+     *              by default only messages added after {@link #start()} are delivered
+     */
+    public synchronized void setToken(SyncToken token) {
+        if (started) throw new IllegalStateException("already started");
+        this.token = token;
+    }
+
+    /**
+     * Starts watching. If a token has been set the messages added since are delivered right away.
+     */
+    public synchronized void start() {
+        if (started) throw new IllegalStateException("already started");
+        started = true;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (token == null) {
+                    try {
+                        // a backup which only appears later is new as a whole
+                        fingerprint = fingerprint();
+                        token = fingerprint == null ? SyncToken.START : whassup.getLatestSyncToken();
+                    } catch (IOException e) {
+                        fingerprint = null;
+                        notifyError(e);
+                    }
+                } else {
+                    refresh();
+                }
+            }
+        });
+        if (pollInterval > 0) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    poll();
+                }
+            }, 0, pollInterval, TimeUnit.MILLISECONDS);
+        } else {
+            observer = new FileObserver(backup.getParent(), EVENTS) {
+                @Override
+                public void onEvent(int event, String path) {
+                    if (backup.getName().equals(path)) {
+                        changed();
+                    }
+                }
+            };
+            observer.startWatching();
+        }
+        Log.d(TAG, "watching " + backup);
+    }
+
+    /**
+     * Stops watching, listeners are not called anymore.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        if (observer != null) {
+            observer.stopWatching();
+            observer = null;
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Schedules a refresh once the backup stopped changing.
+     */
+    /* package */ synchronized void changed() {
+        if (closed) return;
+        if (pending != null) {
+            pending.cancel(false);
+        }
+        pending = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, debounce, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Waits until the tasks submitted so far have run.
+     */
+    /* package */ void await() throws InterruptedException, ExecutionException {
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get();
+    }
+
+    private void poll() {
+        final long length = backup.length(), lastModified = backup.lastModified();
+        if (length != polledLength || lastModified != polledLastModified) {
+            polledLength = length;
+            polledLastModified = lastModified;
+            changed();
+        }
+    }
+
+    private void refresh() {
+        try {
+            final Fingerprint current = fingerprint();
+            if (current == null || current.equals(fingerprint)) return;
+
+            final SyncResult result = whassup.sync(token, -1);
+            fingerprint = current;
+            token = result.getNextToken();
+            if (!result.getMessages().isEmpty()) {
+                Log.d(TAG, result.getMessages().size() + " new message(s)");
+                for (Listener listener : listeners) {
+                    try {
+                        listener.onNewMessages(result.getMessages(), token);
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "error in listener " + listener, e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            notifyError(e);
+        }
+    }
+
+    private Fingerprint fingerprint() throws IOException {
+        return backup.exists() ? Fingerprint.of(backup) : null;
+    }
+
+    private void notifyError(IOException e) {
+        Log.w(TAG, "error reading " + backup, e);
+        for (Listener listener : listeners) {
+            try {
+                listener.onError(e);
+            } catch (RuntimeException re) {
+                Log.w(TAG, "error in listener " + listener, re);
+            }
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.github.jberkel.whassup;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+import com.github.jberkel.whassup.model.BlobLoader;
+import com.github.jberkel.whassup.model.Projection;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.github.jberkel.whassup.model.WhatsAppMessage.Fields.*;
+
+/**
+ * Finds the messages added since a {@link SyncToken}. Rows are read in <code>_id</code> order
+ * after the last delivered message, so a sync costs O(new messages) and messages sharing a
+ * timestamp are neither lost nor repeated.
+ * <p>
+ * The last message is looked up by <code>_id</code> and its key. If the backup was rotated (a
+ * restore renumbers <code>_id</code>s) it is found again by key. If it is gone, messages are
+ * delivered from the newest timestamp of the token on, skipping the keys delivered with it.
+ */
+/* package */ final class ChangeFeed {
+    private static final String TAG = ChangeFeed.class.getSimpleName();
+
+    private ChangeFeed() {
+    }
+
+    /**
+     * @param max how many messages to deliver or -1 for all
+     */
+    public static SyncResult sync(SQLiteDatabase db, SyncToken token, int max, Projection projection,
+                                  BlobLoader blobLoader) throws IOException {
+        if (!projection.includes(KEY_ID) || !projection.includes(KEY_REMOTE_JID) || !projection.includes(KEY_FROM_ME)) {
+            throw new IllegalArgumentException("projection needs the message key: " + projection);
+        }
+        try {
+            return doSync(db, token == null ? SyncToken.START : token, max, projection, blobLoader);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error syncing", e);
+            throw new IOException("Error syncing: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return a token positioned after the newest message, {@link SyncToken#START} if there are none
+     */
+    public static SyncToken tail(SQLiteDatabase db) throws IOException {
+        try {
+            final String[] key = { _ID.toString(), KEY_REMOTE_JID.toString(), KEY_FROM_ME.toString(), KEY_ID.toString() };
+            Cursor cursor = db.query(WhatsAppMessage.TABLE, key, null, null, null, null, _ID + " DESC", "1");
+            final long id;
+            final String chatId, keyId;
+            final boolean fromMe;
+            try {
+                if (!cursor.moveToFirst()) return SyncToken.START;
+                id = cursor.getLong(0);
+                chatId = cursor.getString(1);
+                fromMe = cursor.getInt(2) != 0;
+                keyId = cursor.getString(3);
+            } finally {
+                cursor.close();
+            }
+            long timestamp = 0;
+            final Set<String> keys = new HashSet<String>();
+            cursor = db.query(WhatsAppMessage.TABLE, new String[] { TIMESTAMP.toString(), KEY_REMOTE_JID.toString(),
+                    KEY_FROM_ME.toString(), KEY_ID.toString() },
+                    TIMESTAMP + " = (SELECT MAX(" + TIMESTAMP + ") FROM " + WhatsAppMessage.TABLE + ")",
+                    null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    timestamp = cursor.getLong(0);
+                    keys.add(SyncToken.key(cursor.getString(1), cursor.getInt(2) != 0, cursor.getString(3)));
+                }
+            } finally {
+                cursor.close();
+            }
+            return new SyncToken(id, chatId, fromMe, keyId, timestamp, Collections.unmodifiableSet(keys),
+                    SyncToken.NO_FLOOR, Collections.<String>emptySet());
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error reading last message", e);
+            throw new IOException("Error reading last message: " + e.getMessage());
+        }
+    }
+
+    private static SyncResult doSync(SQLiteDatabase db, SyncToken token, int max, Projection projection,
+                                     BlobLoader blobLoader) {
+        long anchor = 0;
+        long floor = token.floor;
+        Set<String> floorKeys = token.floorKeys;
+        if (token.keyId != null) {
+            anchor = locate(db, token);
+            if (anchor < 0) {
+                Log.d(TAG, "last synced message is gone, continuing after timestamp " + token.timestamp);
+                anchor = 0;
+                floor = token.timestamp;
+                floorKeys = token.keys;
+            } else if (anchor != token.id) {
+                Log.d(TAG, "backup was rotated, last synced message moved from " + token.id + " to " + anchor);
+            }
+        }
+
+        String selection = _ID + " > " + anchor;
+        if (floor != SyncToken.NO_FLOOR) {
+            selection += " AND " + TIMESTAMP + " >= " + floor;
+        }
+        // rows skipped in Java below should not shorten the page
+        final int limit = max < 0 ? -1 : max + (floor != SyncToken.NO_FLOOR ? floorKeys.size() : 0);
+        final Cursor cursor = db.query(WhatsAppMessage.TABLE, projection.getColumns(), selection, null, null, null,
+                _ID + " ASC", limit < 0 ? null : String.valueOf(limit));
+        final int rows = cursor.getCount();
+        final List<WhatsAppMessage> messages = new ArrayList<WhatsAppMessage>();
+        for (WhatsAppMessage message : Whassup.toMessages(cursor, blobLoader)) {
+            if (max >= 0 && messages.size() == max) break;
+            if (floor != SyncToken.NO_FLOOR && message.getTimestamp().getTime() == floor &&
+                floorKeys.contains(SyncToken.key(message))) {
+                continue;
+            }
+            messages.add(message);
+        }
+        final boolean more = limit >= 0 && rows == limit;
+        return new SyncResult(messages, next(token, anchor, more ? floor : SyncToken.NO_FLOOR, floorKeys, messages),
+                more);
+    }
+
+    private static SyncToken next(SyncToken token, long anchor, long floor, Set<String> floorKeys,
+                                  List<WhatsAppMessage> messages) {
+        final Set<String> nextFloorKeys = floor == SyncToken.NO_FLOOR ? Collections.<String>emptySet() : floorKeys;
+        if (messages.isEmpty()) {
+            if (token.keyId != null && anchor == 0) {
+                // still not found, try again next time
+                return token;
+            }
+            return new SyncToken(anchor, token.chatId, token.fromMe, token.keyId, token.timestamp, token.keys,
+                    floor, nextFloorKeys);
+        }
+        long timestamp = token.timestamp;
+        Set<String> keys = new HashSet<String>(token.keys);
+        for (WhatsAppMessage message : messages) {
+            final long messageTimestamp = message.getTimestamp().getTime();
+            if (messageTimestamp > timestamp) {
+                timestamp = messageTimestamp;
+                keys.clear();
+            }
+            if (messageTimestamp == timestamp) {
+                keys.add(SyncToken.key(message));
+            }
+        }
+        final WhatsAppMessage last = messages.get(messages.size() - 1);
+        return new SyncToken(last.getId(), last.getChatId(), !last.isReceived(), last.getKeyId(), timestamp,
+                Collections.unmodifiableSet(keys), floor, nextFloorKeys);
+    }
+
+    /**
+     * @return the current <code>_id</code> of the last delivered message, or -1 if it is gone
+     */
+    private static long locate(SQLiteDatabase db, SyncToken token) {
+        final String[] columns = { _ID.toString() };
+        final String key = KEY_REMOTE_JID + " = ? AND " + KEY_FROM_ME + " = ? AND " + KEY_ID + " = ?";
+        final String[] keyArgs = { token.chatId, token.fromMe ? "1" : "0", token.keyId };
+
+        Cursor cursor = db.query(WhatsAppMessage.TABLE, columns, _ID + " = " + token.id + " AND " + key, keyArgs,
+                null, null, null);
+        try {
+            if (cursor.moveToFirst()) return token.id;
+        } finally {
+            cursor.close();
+        }
+        cursor = db.query(WhatsAppMessage.TABLE, columns, key, keyArgs, null, null, _ID + " ASC", "1");
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.github.jberkel.whassup;
+
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+
+import java.io.Closeable;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Merges the messages of several backups into one sequence in ascending timestamp order, with a
+ * k-way merge over one {@link MessageIterator} per backup. A message contained in several backups
+ * (same <code>key_remote_jid</code>, <code>key_from_me</code> and <code>key_id</code>) is only
+ * returned once, in the version of the first backup.
+ * <p>
+ * Copies of a message share its timestamp, so only the keys of the messages with the current
+ * timestamp are remembered: memory use is one chunk per backup plus one key per message with the
+ * same timestamp, independent of the size of the backups.
+ * <p>
+ * The iterator closes itself once exhausted; it can only be iterated once.
+ */
+public class MergedMessageIterator implements Iterator<WhatsAppMessage>, Iterable<WhatsAppMessage>, Closeable {
+    private static final Comparator<Head> ORDER = new Comparator<Head>() {
+        @Override
+        public int compare(Head lhs, Head rhs) {
+            final long lt = lhs.message.getTimestamp().getTime(), rt = rhs.message.getTimestamp().getTime();
+            if (lt != rt) return lt < rt ? -1 : 1;
+            if (lhs.source != rhs.source) return lhs.source < rhs.source ? -1 : 1;
+            final long lid = lhs.message.getId(), rid = rhs.message.getId();
+            return lid < rid ? -1 : (lid == rid ? 0 : 1);
+        }
+    };
+
+    private final List<MessageIterator> sources;
+    private final PriorityQueue<Head> heads;
+    private final Set<String> seen = new HashSet<String>();
+    private long seenTimestamp;
+    private WhatsAppMessage next;
+    private int duplicates;
+    private boolean started;
+    private boolean closed;
+
+    /**
+     * @param sources one iterator per backup, the one whose copies win first
+     */
+    /* package */ MergedMessageIterator(List<MessageIterator> sources) {
+        this.sources = sources;
+        this.heads = new PriorityQueue<Head>(Math.max(1, sources.size()), ORDER);
+    }
+
+    /**
+     * @throws IllegalStateException if a backup cannot be read
+     */
+    @Override
+    public boolean hasNext() {
+        if (next == null && !closed) {
+            try {
+                next = fetch();
+            } catch (IllegalStateException e) {
+                close();
+                throw e;
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public WhatsAppMessage next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        final WhatsAppMessage message = next;
+        next = null;
+        return message;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return this iterator
+     */
+    @Override
+    public Iterator<WhatsAppMessage> iterator() {
+        return this;
+    }
+
+    /**
+     * @return how many copies of already returned messages were skipped so far
+     */
+    public int getDuplicateCount() {
+        return duplicates;
+    }
+
+    @Override
+    public void close() {
+        for (MessageIterator source : sources) {
+            source.close();
+        }
+        heads.clear();
+        seen.clear();
+        closed = true;
+        next = null;
+    }
+
+    private WhatsAppMessage fetch() {
+        if (!started) {
+            for (int i = 0; i < sources.size(); i++) {
+                advance(i);
+            }
+            started = true;
+        }
+        while (!heads.isEmpty()) {
+            final Head head = heads.poll();
+            advance(head.source);
+
+            final WhatsAppMessage message = head.message;
+            final String key = key(message);
+            if (key == null) return message;
+
+            final long timestamp = message.getTimestamp().getTime();
+            if (timestamp != seenTimestamp) {
+                seen.clear();
+                seenTimestamp = timestamp;
+            }
+            if (seen.add(key)) return message;
+            duplicates++;
+        }
+        close();
+        return null;
+    }
+
+    private void advance(int source) {
+        final MessageIterator iterator = sources.get(source);
+        if (iterator.hasNext()) {
+            heads.add(new Head(iterator.next(), source));
+        }
+    }
+
+    /**
+     * @return the identity of the message across backups, or null if it has no key_id
+     */
+    private static String key(WhatsAppMessage message) {
+        final String keyId = message.getKeyId();
+        if (keyId == null) return null;
+        return message.getChatId() + '\u0000' + (message.isReceived() ? '0' : '1') + '\u0000' + keyId;
+    }
+
+    private static class Head {
+        final WhatsAppMessage message;
+        final int source;
+
+        Head(WhatsAppMessage message, int source) {
+            this.message = message;
+            this.source = source;
+        }
+    }
+}
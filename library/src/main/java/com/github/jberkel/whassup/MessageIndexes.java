@@ -0,0 +1,85 @@
+package com.github.jberkel.whassup;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Secondary indexes added to decrypted copies of the backup, for queries by chat and time range.
+ * The encrypted backup only has an index on (key_remote_jid, key_from_me, key_id).
+ */
+/* package */ final class MessageIndexes {
+    private static final String TAG = MessageIndexes.class.getSimpleName();
+
+    private static final String[][] INDEXES = {
+        { "whassup_messages_jid_timestamp", "messages (key_remote_jid, timestamp)" },
+        { "whassup_messages_timestamp",     "messages (timestamp)" },
+        { "whassup_messages_key_id",        "messages (key_id)" },
+    };
+
+    private MessageIndexes() {
+    }
+
+    /**
+     * @return if all indexes exist
+     */
+    public static boolean exist(SQLiteDatabase db) throws IOException {
+        final StringBuilder names = new StringBuilder();
+        for (String[] index : INDEXES) {
+            names.append(names.length() == 0 ? "'" : ", '").append(index[0]).append('\'');
+        }
+        try {
+            final Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'index' AND name IN (" +
+                    names + ")", null);
+            try {
+                return cursor.moveToFirst() && cursor.getInt(0) == INDEXES.length;
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            throw new IOException("Error reading schema: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return if all indexes exist
+     */
+    public static boolean exist(File dbFile) throws IOException {
+        final SQLiteDatabase db = open(dbFile, SQLiteDatabase.OPEN_READONLY);
+        try {
+            return exist(db);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Creates the missing indexes, this writes to dbFile.
+     */
+    public static void create(File dbFile) throws IOException {
+        final long start = System.currentTimeMillis();
+        final SQLiteDatabase db = open(dbFile, SQLiteDatabase.OPEN_READWRITE);
+        try {
+            for (String[] index : INDEXES) {
+                db.execSQL("CREATE INDEX IF NOT EXISTS " + index[0] + " ON " + index[1]);
+            }
+        } catch (SQLiteException e) {
+            throw new IOException("Error creating indexes: " + e.getMessage());
+        } finally {
+            db.close();
+        }
+        Log.d(TAG, "indexed " + dbFile + " in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static SQLiteDatabase open(File dbFile, int flags) throws IOException {
+        try {
+            return SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null, flags);
+        } catch (SQLiteException e) {
+            throw new IOException("Error opening database: " + e.getMessage());
+        }
+    }
+}
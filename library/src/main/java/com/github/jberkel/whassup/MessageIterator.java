@@ -0,0 +1,149 @@
+package com.github.jberkel.whassup;
+
+import android.database.Cursor;
+import com.github.jberkel.whassup.model.MessageRowMapper;
+import com.github.jberkel.whassup.model.Projection;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static com.github.jberkel.whassup.model.WhatsAppMessage.Fields._ID;
+import static com.github.jberkel.whassup.model.WhatsAppMessage.Fields.TIMESTAMP;
+
+/**
+ * Iterates over messages in ascending (timestamp, _id) order, fetching them in chunks with keyset
+ * queries which continue after the last row seen. Only one chunk is held in memory at a time,
+ * independent of the number of messages.
+ * <p>
+ * The iterator closes itself once exhausted; it can only be iterated once.
+ */
+public class MessageIterator implements Iterator<WhatsAppMessage>, Iterable<WhatsAppMessage>, Closeable {
+    public static final int DEFAULT_CHUNK_SIZE = 500;
+
+    private final WhassupSession session;
+    private final boolean ownsSession;
+    private final long since;
+    private final int chunkSize;
+    private final Projection projection;
+
+    private Cursor chunk;
+    private MessageRowMapper mapper;
+    private int timestampIndex;
+    private WhatsAppMessage next;
+    private boolean started;
+    private boolean lastTimestampNull;
+    private long lastTimestamp;
+    private long lastId;
+    private boolean closed;
+
+    /**
+     * @param session the session to query, or null for an empty iterator
+     * @param ownsSession whether to close the session together with this iterator
+     */
+    /* package */ MessageIterator(WhassupSession session, boolean ownsSession, long since, int chunkSize,
+                                  Projection projection) {
+        if (chunkSize <= 0) throw new IllegalArgumentException("chunkSize must be positive");
+        this.session = session;
+        this.ownsSession = ownsSession;
+        this.since = since;
+        this.chunkSize = chunkSize;
+        this.projection = projection;
+        this.closed = session == null;
+    }
+
+    /**
+     * @throws IllegalStateException if the database cannot be read
+     */
+    @Override
+    public boolean hasNext() {
+        if (next == null && !closed) {
+            try {
+                next = fetch();
+            } catch (IOException e) {
+                close();
+                throw new IllegalStateException("error reading messages", e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public WhatsAppMessage next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        final WhatsAppMessage message = next;
+        next = null;
+        return message;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return this iterator
+     */
+    @Override
+    public Iterator<WhatsAppMessage> iterator() {
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (chunk != null) {
+            chunk.close();
+            chunk = null;
+        }
+        if (!closed && ownsSession) {
+            session.close();
+        }
+        closed = true;
+        next = null;
+    }
+
+    private WhatsAppMessage fetch() throws IOException {
+        while (true) {
+            if (chunk == null) {
+                chunk = session.query(since, chunkSize, projection, started ? after() : null);
+                if (mapper == null) {
+                    mapper = new MessageRowMapper(chunk);
+                    timestampIndex = TIMESTAMP.colIndex(chunk);
+                }
+            }
+            if (chunk.moveToNext()) {
+                started = true;
+                final WhatsAppMessage message = mapper.map(chunk, session);
+                if (message.isGroupMessage()) {
+                    session.getGroupIndex().attach(message);
+                }
+                lastTimestampNull = chunk.isNull(timestampIndex);
+                lastTimestamp = message.getTimestamp().getTime();
+                lastId = message.getId();
+                return message;
+            }
+            final boolean last = chunk.getCount() < chunkSize;
+            chunk.close();
+            chunk = null;
+            if (last) {
+                close();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return the keyset condition for the rows following the last one returned
+     */
+    private String after() {
+        if (lastTimestampNull) {
+            return String.format("(%s IS NULL AND %s > %d) OR %s IS NOT NULL",
+                    TIMESTAMP, _ID, lastId, TIMESTAMP);
+        } else {
+            return String.format("%s > %d OR (%s = %d AND %s > %d)",
+                    TIMESTAMP, lastTimestamp, TIMESTAMP, lastTimestamp, _ID, lastId);
+        }
+    }
+}
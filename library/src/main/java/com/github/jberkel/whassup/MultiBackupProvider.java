@@ -0,0 +1,100 @@
+package com.github.jberkel.whassup;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds all backups in one or more directories: the current <code>msgstore.db.crypt</code> and
+ * the daily copies WhatsApp keeps next to it (<code>msgstore-YYYY-MM-DD.N.db.crypt</code>).
+ * Use {@link Whassup#iterateMessages(List, long)} to read them as one sequence.
+ */
+public class MultiBackupProvider implements DBProvider {
+    private static final String TAG = MultiBackupProvider.class.getSimpleName();
+    private static final Pattern DATED_DB = Pattern.compile("msgstore-(\\d{4}-\\d{2}-\\d{2})\\.(\\d{1,9})\\.db\\.crypt");
+
+    private final File[] roots;
+
+    /**
+     * Uses the backup directory on the SD card.
+     */
+    public MultiBackupProvider() {
+        this(Whassup.DB_PATH);
+    }
+
+    /**
+     * @param roots the directories to search, subdirectories are not searched
+     */
+    public MultiBackupProvider(File... roots) {
+        this.roots = roots.clone();
+    }
+
+    /**
+     * @return the newest backup, or null if there is none
+     */
+    @Override
+    public File getDBFile() {
+        final List<File> files = getDBFiles();
+        return files.isEmpty() ? null : files.get(0);
+    }
+
+    /**
+     * @return all readable backups, newest first: the current backups, then the dated ones by
+     *         descending date and sequence number
+     */
+    public List<File> getDBFiles() {
+        final List<File> files = new ArrayList<File>();
+        for (File root : roots) {
+            final File[] backups = root.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File file) {
+                    return file.isFile() && age(file.getName()) != null;
+                }
+            });
+            if (backups == null) {
+                Log.d(TAG, "cannot list " + root);
+                continue;
+            }
+            for (File backup : backups) {
+                if (backup.canRead()) {
+                    files.add(backup);
+                } else {
+                    Log.d(TAG, "db " + backup + " exists but is not readable");
+                }
+            }
+        }
+        Collections.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                return age(lhs.getName()).compareTo(age(rhs.getName()));
+            }
+        });
+        return files;
+    }
+
+    /**
+     * @return a key which sorts backups newest first, or null if the name is not a backup
+     */
+    /* package */ static String age(String name) {
+        if (Whassup.CURRENT_DB.equals(name)) return "";
+
+        final Matcher matcher = DATED_DB.matcher(name);
+        if (!matcher.matches()) return null;
+        // invert the digits so the lexical order is descending
+        final StringBuilder key = new StringBuilder(matcher.group(1).replace("-", ""));
+        final String sequence = matcher.group(2);
+        for (int i = sequence.length(); i < 10; i++) key.append('0');
+        key.append(sequence);
+        for (int i = 0; i < key.length(); i++) {
+            key.setCharAt(i, (char) ('9' - key.charAt(i) + '0'));
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,203 @@
+package com.github.jberkel.whassup;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+import com.github.jberkel.whassup.model.BlobLoader;
+import com.github.jberkel.whassup.model.MessageQuery;
+import com.github.jberkel.whassup.model.Projection;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.github.jberkel.whassup.model.WhatsAppMessage.Fields.TIMESTAMP;
+import static com.github.jberkel.whassup.model.WhatsAppMessage.Fields._ID;
+
+/**
+ * Maps the rows of a snapshot to messages on several threads: the <code>_id</code>s are split
+ * into contiguous ranges and every range is read through a read-only connection of its own.
+ * The ranges are either merged by (timestamp, _id) or concatenated, which returns the messages
+ * in <code>_id</code> order without any further work.
+ */
+/* package */ final class ParallelExport {
+    private static final String TAG = ParallelExport.class.getSimpleName();
+
+    /** below this many rows per range another thread does not pay off */
+    /* package */ static final int MIN_RANGE_SIZE = 5000;
+
+    private static final Comparator<Run> ORDER = new Comparator<Run>() {
+        @Override
+        public int compare(Run lhs, Run rhs) {
+            final WhatsAppMessage l = lhs.peek(), r = rhs.peek();
+            final long lt = l.getTimestamp().getTime(), rt = r.getTimestamp().getTime();
+            if (lt != rt) return lt < rt ? -1 : 1;
+            return l.getId() < r.getId() ? -1 : (l.getId() == r.getId() ? 0 : 1);
+        }
+    };
+
+    private ParallelExport() {
+    }
+
+    /**
+     * @param db a connection to dbFile, used to plan the ranges
+     * @param parallelism the maximum number of ranges / threads
+     * @param ordered whether to merge the ranges in timestamp order
+     */
+    public static List<WhatsAppMessage> export(SQLiteDatabase db, final File dbFile, final Whassup.DBOpener opener,
+                                               long since, Projection projection, int parallelism,
+                                               final boolean ordered, int minRangeSize,
+                                               final BlobLoader blobLoader) throws IOException {
+        if (parallelism <= 0) throw new IllegalArgumentException("parallelism must be positive");
+        final MessageQuery query = new MessageQuery().between(Whassup.after(since), 0).projection(projection);
+
+        final long[] bounds = plan(db, query, parallelism, minRangeSize);
+        final int ranges = bounds.length - 1;
+        if (ranges == 0) return new ArrayList<WhatsAppMessage>();
+        if (ranges == 1) return read(db, query, bounds[0], bounds[1], ordered, blobLoader);
+
+        final long start = System.currentTimeMillis();
+        final ExecutorService executor = Executors.newFixedThreadPool(ranges);
+        final List<Future<List<WhatsAppMessage>>> futures = new ArrayList<Future<List<WhatsAppMessage>>>(ranges);
+        try {
+            for (int i = 0; i < ranges; i++) {
+                final long from = bounds[i], to = bounds[i + 1];
+                futures.add(executor.submit(new Callable<List<WhatsAppMessage>>() {
+                    @Override
+                    public List<WhatsAppMessage> call() throws IOException {
+                        final SQLiteDatabase connection;
+                        try {
+                            connection = opener.openReadOnly(dbFile);
+                        } catch (SQLiteException e) {
+                            throw new IOException("Error opening database:" + e.getMessage());
+                        }
+                        try {
+                            return read(connection, query, from, to, ordered, blobLoader);
+                        } finally {
+                            connection.close();
+                        }
+                    }
+                }));
+            }
+            final List<List<WhatsAppMessage>> results = new ArrayList<List<WhatsAppMessage>>(ranges);
+            int size = 0;
+            for (Future<List<WhatsAppMessage>> future : futures) {
+                final List<WhatsAppMessage> result = future.get();
+                results.add(result);
+                size += result.size();
+            }
+            final List<WhatsAppMessage> messages = ordered ? merge(results, size) : concat(results, size);
+            Log.d(TAG, "mapped " + size + " message(s) in " + ranges + " range(s) in " +
+                    (System.currentTimeMillis() - start) + "ms");
+            return messages;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException("Error reading messages: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading messages");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the boundaries of the ranges: range i covers from bounds[i] (inclusive) to bounds[i + 1]
+     */
+    /* package */ static long[] plan(SQLiteDatabase db, MessageQuery query, int parallelism, int minRangeSize) {
+        final long min, max, count;
+        final Cursor cursor = db.query(WhatsAppMessage.TABLE, new String[] {
+                "MIN(" + _ID + ")", "MAX(" + _ID + ")", "COUNT(*)" },
+                query.getSelection(), query.getSelectionArgs(), null, null, null);
+        try {
+            cursor.moveToFirst();
+            count = cursor.getLong(2);
+            if (count == 0) return new long[] { 0 };
+            min = cursor.getLong(0);
+            max = cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+        final long span = max - min + 1;
+        final int ranges = (int) Math.max(1, Math.min(Math.min(parallelism, count / Math.max(1, minRangeSize)), span));
+        final long[] bounds = new long[ranges + 1];
+        for (int i = 0; i < ranges; i++) {
+            bounds[i] = min + span * i / ranges;
+        }
+        bounds[ranges] = max + 1;
+        return bounds;
+    }
+
+    private static List<WhatsAppMessage> read(SQLiteDatabase db, MessageQuery query, long from, long to,
+                                              boolean ordered, BlobLoader blobLoader) throws IOException {
+        String selection = _ID + " >= " + from + " AND " + _ID + " < " + to;
+        if (query.getSelection() != null) selection += " AND " + query.getSelection();
+        final String orderBy = ordered ? TIMESTAMP + " ASC, " + _ID + " ASC" : _ID + " ASC";
+        try {
+            return Whassup.toMessages(db.query(WhatsAppMessage.TABLE, query.getProjection().getColumns(), selection,
+                    query.getSelectionArgs(), null, null, orderBy), blobLoader);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error querying DB", e);
+            throw new IOException("Error querying DB: " + e.getMessage());
+        }
+    }
+
+    private static List<WhatsAppMessage> concat(List<List<WhatsAppMessage>> runs, int size) {
+        final List<WhatsAppMessage> messages = new ArrayList<WhatsAppMessage>(size);
+        for (List<WhatsAppMessage> run : runs) {
+            messages.addAll(run);
+        }
+        return messages;
+    }
+
+    /**
+     * k-way merge of runs sorted by (timestamp, _id)
+     */
+    private static List<WhatsAppMessage> merge(List<List<WhatsAppMessage>> runs, int size) {
+        if (runs.size() == 1) return runs.get(0);
+
+        final PriorityQueue<Run> heads = new PriorityQueue<Run>(runs.size(), ORDER);
+        for (List<WhatsAppMessage> run : runs) {
+            if (!run.isEmpty()) heads.add(new Run(run));
+        }
+        final List<WhatsAppMessage> messages = new ArrayList<WhatsAppMessage>(size);
+        while (!heads.isEmpty()) {
+            final Run run = heads.poll();
+            messages.add(run.next());
+            if (run.hasNext()) heads.add(run);
+        }
+        return messages;
+    }
+
+    private static class Run {
+        private final List<WhatsAppMessage> messages;
+        private int position;
+
+        Run(List<WhatsAppMessage> messages) {
+            this.messages = messages;
+        }
+
+        WhatsAppMessage peek() {
+            return messages.get(position);
+        }
+
+        WhatsAppMessage next() {
+            return messages.get(position++);
+        }
+
+        boolean hasNext() {
+            return position < messages.size();
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package com.github.jberkel.whassup;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.text.TextUtils;
+import android.util.Log;
+import com.github.jberkel.whassup.model.MessageRowMapper;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import static com.github.jberkel.whassup.model.WhatsAppMessage.Fields.*;
+
+/**
+ * A full-text index of the message texts ({@link WhatsAppMessage#getFilteredText()}, lower case),
+ * kept in an FTS3 table in a database of its own. The index outlives the snapshots it was built
+ * from: when a new version of the backup arrives only the messages with a higher <code>_id</code>
+ * are added, and the messages which have been deleted since are removed. If the last indexed
+ * message changed the backup was replaced and the index is rebuilt. Older versions of the backup,
+ * e.g. snapshots still held by an open session, leave the index alone.
+ */
+/* package */ class SearchIndex implements Closeable {
+    private static final String TAG = SearchIndex.class.getSimpleName();
+
+    private static final int VERSION = 1;
+    private static final int BATCH_SIZE = 500;
+    private static final String TEXT = "message_text";
+    private static final String DOCS = "message_docs";
+    private static final String STATE = "state";
+    private static final String[] COLUMNS = {
+        _ID.toString(), KEY_REMOTE_JID.toString(), KEY_ID.toString(), STATUS.toString(), DATA.toString(),
+        TIMESTAMP.toString()
+    };
+    /** updates of the same index from several sessions have to wait for each other */
+    private static final Object LOCK = new Object();
+
+    private final SQLiteDatabase db;
+
+    /**
+     * @param file where to keep the index, will be created if necessary
+     */
+    public SearchIndex(File file) throws IOException {
+        try {
+            db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null,
+                    SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY);
+        } catch (SQLiteException e) {
+            throw new IOException("Error opening search index: " + e.getMessage());
+        }
+        try {
+            createSchema();
+        } catch (SQLiteException e) {
+            db.close();
+            throw new IOException("Error creating search index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the messages which are not indexed yet and removes the ones which are gone. Nothing
+     * happens if the index is ahead of messages.
+     * @param messages the decrypted backup
+     * @return how many messages were added
+     */
+    public int update(SQLiteDatabase messages) throws IOException {
+        synchronized (LOCK) {
+            try {
+                return index(messages);
+            } catch (SQLiteException e) {
+                throw new IOException("Error updating search index: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Finds the messages containing all words of the query, a trailing <code>*</code> matches
+     * words by prefix. Hits are ranked by the share of all occurrences of the words they contain,
+     * so rare words weigh more; equal ranks are ordered newest first.
+     * @param chatId the chat to search, or null for all chats
+     * @param offset how many hits to skip
+     * @param max how many hits to return or -1 for all
+     */
+    public List<Hit> search(String query, String chatId, int offset, int max) throws IOException {
+        final String match = toMatchExpression(query);
+        if (match.length() == 0) return Collections.emptyList();
+
+        final List<Hit> hits = new ArrayList<Hit>();
+        String sql = "SELECT d._id, d.timestamp, matchinfo(" + TEXT + ") FROM " + TEXT +
+                " JOIN " + DOCS + " d ON d._id = " + TEXT + ".docid WHERE " + TEXT + " MATCH ?";
+        String[] args = { match };
+        if (chatId != null) {
+            sql += " AND d.key_remote_jid = ?";
+            args = new String[] { match, chatId };
+        }
+        try {
+            final Cursor cursor = db.rawQuery(sql, args);
+            try {
+                while (cursor.moveToNext()) {
+                    hits.add(new Hit(cursor.getLong(0), cursor.getLong(1), score(cursor.getBlob(2))));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            throw new IOException("Error searching: " + e.getMessage());
+        }
+        Collections.sort(hits, Hit.RANK);
+
+        final int from = Math.min(Math.max(offset, 0), hits.size());
+        final int to = max < 0 ? hits.size() : Math.min(hits.size(), from + max);
+        return hits.subList(from, to);
+    }
+
+    @Override
+    public void close() {
+        db.close();
+    }
+
+    private void createSchema() {
+        final Cursor cursor = db.rawQuery("PRAGMA user_version", null);
+        final int version;
+        try {
+            version = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+        } finally {
+            cursor.close();
+        }
+        if (version == VERSION) return;
+
+        db.beginTransaction();
+        try {
+            db.execSQL("CREATE TABLE " + DOCS + " (_id INTEGER PRIMARY KEY, key_remote_jid TEXT, timestamp INTEGER)");
+            db.execSQL("CREATE INDEX " + DOCS + "_jid ON " + DOCS + " (key_remote_jid)");
+            // FTS4 needs API level 11
+            db.execSQL("CREATE VIRTUAL TABLE " + TEXT + " USING fts3(data)");
+            db.execSQL("CREATE TABLE " + STATE + " (last_id INTEGER, last_key_id TEXT)");
+            db.execSQL("INSERT INTO " + STATE + " VALUES (0, NULL)");
+            db.execSQL("PRAGMA user_version = " + VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private int index(SQLiteDatabase messages) {
+        long lastId;
+        String lastKeyId;
+        final Cursor state = db.rawQuery("SELECT last_id, last_key_id FROM " + STATE, null);
+        try {
+            state.moveToFirst();
+            lastId = state.getLong(0);
+            lastKeyId = state.getString(1);
+        } finally {
+            state.close();
+        }
+        if (lastId > 0 && isOlderVersion(messages, lastId)) {
+            Log.d(TAG, "backup is older than the search index, not updating");
+            return 0;
+        } else if (lastId > 0 && !isIndexed(messages, lastId, lastKeyId)) {
+            Log.d(TAG, "backup has been replaced, rebuilding search index");
+            db.execSQL("DELETE FROM " + DOCS);
+            db.execSQL("DELETE FROM " + TEXT);
+            lastId = 0;
+        } else if (lastId > 0) {
+            purge(messages, lastId);
+        }
+
+        final long start = System.currentTimeMillis();
+        int added = 0;
+        while (true) {
+            final Cursor cursor = messages.query(WhatsAppMessage.TABLE, COLUMNS, _ID + " > ?",
+                    new String[] { String.valueOf(lastId) }, null, null, _ID + " ASC", String.valueOf(BATCH_SIZE));
+            try {
+                if (cursor.getCount() == 0) break;
+
+                final MessageRowMapper mapper = new MessageRowMapper(cursor);
+                db.beginTransaction();
+                try {
+                    while (cursor.moveToNext()) {
+                        final WhatsAppMessage message = mapper.map(cursor);
+                        lastId = message.getId();
+                        lastKeyId = KEY_ID.getString(cursor);
+                        if (message.hasText() && !message.isGroupEvent()) {
+                            add(message);
+                            added++;
+                        }
+                    }
+                    final ContentValues values = new ContentValues();
+                    values.put("last_id", lastId);
+                    values.put("last_key_id", lastKeyId);
+                    db.update(STATE, values, null, null);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (cursor.getCount() < BATCH_SIZE) break;
+            } finally {
+                cursor.close();
+            }
+        }
+        Log.d(TAG, "indexed " + added + " message(s) in " + (System.currentTimeMillis() - start) + "ms");
+        return added;
+    }
+
+    /**
+     * Removes the docs of indexed messages which are no longer in the backup, so searches never
+     * return hits which cannot be resolved. Only the <code>_id</code>s of both sides are read.
+     * @param lastId the last indexed message
+     */
+    private void purge(SQLiteDatabase messages, long lastId) {
+        final List<Long> stale = new ArrayList<Long>();
+        final Cursor docs = db.rawQuery("SELECT _id FROM " + DOCS + " ORDER BY _id", null);
+        try {
+            final Cursor ids = messages.query(WhatsAppMessage.TABLE, new String[] { _ID.toString() }, _ID + " <= ?",
+                    new String[] { String.valueOf(lastId) }, null, null, _ID + " ASC");
+            try {
+                boolean more = ids.moveToNext();
+                while (docs.moveToNext()) {
+                    final long doc = docs.getLong(0);
+                    while (more && ids.getLong(0) < doc) {
+                        more = ids.moveToNext();
+                    }
+                    if (!more || ids.getLong(0) != doc) {
+                        stale.add(doc);
+                    }
+                }
+            } finally {
+                ids.close();
+            }
+        } finally {
+            docs.close();
+        }
+        if (stale.isEmpty()) return;
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < stale.size(); i += BATCH_SIZE) {
+                final StringBuilder in = new StringBuilder();
+                for (Long id : stale.subList(i, Math.min(stale.size(), i + BATCH_SIZE))) {
+                    in.append(in.length() == 0 ? "" : ",").append(id);
+                }
+                db.execSQL("DELETE FROM " + DOCS + " WHERE _id IN (" + in + ")");
+                db.execSQL("DELETE FROM " + TEXT + " WHERE docid IN (" + in + ")");
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.d(TAG, "removed " + stale.size() + " deleted message(s)");
+    }
+
+    private void add(WhatsAppMessage message) {
+        final ContentValues doc = new ContentValues();
+        doc.put("_id", message.getId());
+        doc.put("key_remote_jid", message.getChatId());
+        doc.put("timestamp", message.getTimestamp().getTime());
+        db.insert(DOCS, null, doc);
+
+        final ContentValues text = new ContentValues();
+        text.put("docid", message.getId());
+        text.put("data", message.getFilteredText().toLowerCase(Locale.ENGLISH));
+        db.insert(TEXT, null, text);
+    }
+
+    /**
+     * Updating the index from an older version of the backup would rebuild it, and the next update
+     * from the current version would rebuild it again.
+     * @return if messages ends before the last indexed message, and its newest message is indexed
+     *         as it is (or has no text)
+     */
+    private boolean isOlderVersion(SQLiteDatabase messages, long lastId) {
+        final Cursor newest = messages.query(WhatsAppMessage.TABLE,
+                new String[] { _ID.toString(), KEY_REMOTE_JID.toString(), TIMESTAMP.toString() },
+                null, null, null, null, _ID + " DESC", "1");
+        try {
+            if (!newest.moveToFirst()) return true;
+            if (newest.getLong(0) >= lastId) return false;
+
+            final Cursor doc = db.rawQuery("SELECT key_remote_jid, timestamp FROM " + DOCS + " WHERE _id = ?",
+                    new String[] { String.valueOf(newest.getLong(0)) });
+            try {
+                return !doc.moveToFirst() ||
+                        (TextUtils.equals(doc.getString(0), newest.getString(1)) &&
+                         doc.getLong(1) == newest.getLong(2));
+            } finally {
+                doc.close();
+            }
+        } finally {
+            newest.close();
+        }
+    }
+
+    /**
+     * @return if the message the index stopped at is still the same
+     */
+    private static boolean isIndexed(SQLiteDatabase messages, long id, String keyId) {
+        final Cursor cursor = messages.query(WhatsAppMessage.TABLE, new String[] { KEY_ID.toString() },
+                _ID + " = ?", new String[] { String.valueOf(id) }, null, null, null);
+        try {
+            return cursor.moveToFirst() && keyId != null && keyId.equals(cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Splits the query like the FTS "simple" tokenizer does, so no word can be read as an
+     * operator. All words have to match.
+     */
+    /* package */ static String toMatchExpression(String query) {
+        final StringBuilder match = new StringBuilder();
+        if (query == null) return "";
+
+        final String q = query.toLowerCase(Locale.ENGLISH);
+        int i = 0;
+        while (i < q.length()) {
+            final int start = i;
+            while (i < q.length() && isTokenChar(q.charAt(i))) i++;
+            if (i > start) {
+                if (match.length() > 0) match.append(' ');
+                match.append(q, start, i);
+                if (i < q.length() && q.charAt(i) == '*') match.append('*');
+            } else {
+                i++;
+            }
+        }
+        return match.toString();
+    }
+
+    private static boolean isTokenChar(char c) {
+        return c >= 128 || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * @param matchinfo the default "pcx" matchinfo: phrase and column count, then per phrase and
+     *                  column the hits in this row, in all rows and the number of rows with hits
+     */
+    /* package */ static double score(byte[] matchinfo) {
+        final ByteBuffer info = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+        final int phrases = info.getInt(0);
+        final int columns = info.getInt(4);
+        double score = 0;
+        for (int i = 0; i < phrases * columns; i++) {
+            final int hits = info.getInt(8 + i * 12);
+            final int allHits = info.getInt(8 + i * 12 + 4);
+            if (allHits > 0) {
+                score += (double) hits / allHits;
+            }
+        }
+        return score;
+    }
+
+    /* package */ static class Hit {
+        static final Comparator<Hit> RANK = new Comparator<Hit>() {
+            @Override
+            public int compare(Hit lhs, Hit rhs) {
+                if (lhs.score != rhs.score) return lhs.score > rhs.score ? -1 : 1;
+                if (lhs.timestamp != rhs.timestamp) return lhs.timestamp > rhs.timestamp ? -1 : 1;
+                return lhs.id > rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1);
+            }
+        };
+
+        final long id;
+        final long timestamp;
+        final double score;
+
+        Hit(long id, long timestamp, double score) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.score = score;
+        }
+    }
+}
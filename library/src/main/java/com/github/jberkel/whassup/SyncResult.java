@@ -0,0 +1,50 @@
+package com.github.jberkel.whassup;
+
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+
+import java.util.List;
+
+/**
+ * The messages added since a {@link SyncToken}, and the token to continue from.
+ */
+public class SyncResult {
+    private final List<WhatsAppMessage> messages;
+    private final SyncToken next;
+    private final boolean more;
+
+    /* package */ SyncResult(List<WhatsAppMessage> messages, SyncToken next, boolean more) {
+        this.messages = messages;
+        this.next = next;
+        this.more = more;
+    }
+
+    /**
+     * @return the new messages in the order they were added (ascending <code>_id</code>)
+     */
+    public List<WhatsAppMessage> getMessages() {
+        return messages;
+    }
+
+    /**
+     * @return the token to persist once the messages have been processed
+     */
+    public SyncToken getNextToken() {
+        return next;
+    }
+
+    /**
+     * @return whether the sync stopped at the maximum and there might be more messages
+     */
+    public boolean hasMore() {
+        return more;
+    }
+
+    @Override
+    public String toString() {
+        return "SyncResult{" +
+                "messages=" + messages.size() +
+                ", next=" + next +
+                ", more=" + more +
+                '}';
+    }
+}
@@ -0,0 +1,162 @@
+package com.github.jberkel.whassup;
+
+import android.util.Base64;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The position of a {@link Whassup#sync(SyncToken, int)} client: the last message delivered,
+ * identified by <code>_id</code> and by its WhatsApp key, and the newest timestamp delivered
+ * together with the keys of the messages carrying it. Tokens are immutable; persist them with
+ * {@link #toString()} and restore them with {@link #parse(String)}.
+ */
+public final class SyncToken {
+    private static final int VERSION = 1;
+    /* package */ static final long NO_FLOOR = -1;
+
+    /** the position before the first message */
+    public static final SyncToken START = new SyncToken(0, null, false, null, 0, Collections.<String>emptySet(),
+            NO_FLOOR, Collections.<String>emptySet());
+
+    /* package */ final long id;
+    /* package */ final String chatId;
+    /* package */ final boolean fromMe;
+    /* package */ final String keyId;
+    /* package */ final long timestamp;
+    /* package */ final Set<String> keys;
+    /** while catching up after the last message disappeared: only deliver messages from here on */
+    /* package */ final long floor;
+    /* package */ final Set<String> floorKeys;
+
+    /* package */ SyncToken(long id, String chatId, boolean fromMe, String keyId, long timestamp, Set<String> keys,
+                            long floor, Set<String> floorKeys) {
+        this.id = id;
+        this.chatId = chatId;
+        this.fromMe = fromMe;
+        this.keyId = keyId;
+        this.timestamp = timestamp;
+        this.keys = keys;
+        this.floor = floor;
+        this.floorKeys = floorKeys;
+    }
+
+    /**
+     * @return the <code>_id</code> of the last message delivered, 0 if none
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return the newest timestamp delivered, 0 if none
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return a URL-safe string for {@link #parse(String)}
+     */
+    @Override
+    public String toString() {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(VERSION);
+            out.writeLong(id);
+            out.writeBoolean(keyId != null);
+            if (keyId != null) {
+                out.writeUTF(chatId);
+                out.writeBoolean(fromMe);
+                out.writeUTF(keyId);
+            }
+            out.writeLong(timestamp);
+            writeKeys(out, keys);
+            out.writeLong(floor);
+            writeKeys(out, floorKeys);
+            out.close();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return Base64.encodeToString(bytes.toByteArray(), Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING);
+    }
+
+    /**
+     * @param token a string returned by {@link #toString()}, or null for {@link #START}
+     * @throws IllegalArgumentException if the token is not valid
+     */
+    public static SyncToken parse(String token) {
+        if (token == null) return START;
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                    Base64.decode(token, Base64.URL_SAFE)));
+            if (in.readByte() != VERSION) throw new IllegalArgumentException("unknown token version: " + token);
+            final long id = in.readLong();
+            String chatId = null, keyId = null;
+            boolean fromMe = false;
+            if (in.readBoolean()) {
+                chatId = in.readUTF();
+                fromMe = in.readBoolean();
+                keyId = in.readUTF();
+            }
+            final long timestamp = in.readLong();
+            final Set<String> keys = readKeys(in);
+            final long floor = in.readLong();
+            final Set<String> floorKeys = readKeys(in);
+            if (in.read() != -1) throw new IllegalArgumentException("invalid token: " + token);
+            return new SyncToken(id, chatId, fromMe, keyId, timestamp, keys, floor, floorKeys);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("invalid token: " + token, e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof SyncToken)) return false;
+        return toString().equals(o.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    /**
+     * @return the identity of a message across backups
+     */
+    /* package */ static String key(WhatsAppMessage message) {
+        return key(message.getChatId(), !message.isReceived(), message.getKeyId());
+    }
+
+    /* package */ static String key(String chatId, boolean fromMe, String keyId) {
+        return chatId + '\u0000' + (fromMe ? '1' : '0') + '\u0000' + keyId;
+    }
+
+    private static void writeKeys(DataOutputStream out, Set<String> keys) throws IOException {
+        out.writeInt(keys.size());
+        // sorted, so equal tokens have equal strings
+        for (String key : new TreeSet<String>(keys)) {
+            out.writeUTF(key);
+        }
+    }
+
+    private static Set<String> readKeys(DataInputStream in) throws IOException {
+        final int size = in.readInt();
+        if (size < 0) throw new IOException("invalid size " + size);
+        final Set<String> keys = new HashSet<String>();
+        for (int i = 0; i < size; i++) {
+            keys.add(in.readUTF());
+        }
+        return Collections.unmodifiableSet(keys);
+    }
+}
@@ -1,6 +1,8 @@
 package com.github.jberkel.whassup;
 
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteCursor;
 import android.database.sqlite.SQLiteCursorDriver;
 import android.database.sqlite.SQLiteDatabase;
@@ -8,27 +10,88 @@ import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQuery;
 import android.os.Environment;
 import android.util.Log;
+import com.github.jberkel.whassup.cache.SnapshotCache;
 import com.github.jberkel.whassup.crypto.DBDecryptor;
+import com.github.jberkel.whassup.model.BlobLoader;
+import com.github.jberkel.whassup.model.ChatList;
+import com.github.jberkel.whassup.model.Conversation;
+import com.github.jberkel.whassup.model.GroupIndex;
+import com.github.jberkel.whassup.model.MessageQuery;
+import com.github.jberkel.whassup.model.MessageRowMapper;
+import com.github.jberkel.whassup.model.MessageTable;
+import com.github.jberkel.whassup.model.Projection;
+import com.github.jberkel.whassup.model.SearchResult;
 import com.github.jberkel.whassup.model.WhatsAppMessage;
+import com.github.jberkel.whassup.sqlite.ByteArrayPageSource;
+import com.github.jberkel.whassup.sqlite.PageSource;
+import com.github.jberkel.whassup.sqlite.SQLiteFile;
+import com.github.jberkel.whassup.sqlite.SQLiteHeader;
+import com.github.jberkel.whassup.sqlite.Table;
+import com.github.jberkel.whassup.sqlite.TableScan;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Whassup {
     private static final String TAG = Whassup.class.getSimpleName();
 
-    private static final File DB_PATH = new File(Environment.getExternalStorageDirectory(),
+    /* package */ static final File DB_PATH = new File(Environment.getExternalStorageDirectory(),
             "Whatsapp/Databases");
 
-    private static final String CURRENT_DB = "msgstore.db.crypt";
+    /* package */ static final String CURRENT_DB = "msgstore.db.crypt";
+    /** how many messages {@link #iterateMessages(List, long)} buffers for all backups together */
+    public static final int MERGE_BUFFER_SIZE = 2000;
+    private static final int MIN_MERGE_CHUNK_SIZE = 16;
+    /** the largest backup which fits into a byte array, see {@link #setInMemoryThreshold(long)} */
+    public static final long MAX_IN_MEMORY_THRESHOLD = Integer.MAX_VALUE - 8;
+    private static final String CHAT_ID = "chat_id";
+    private static final String MESSAGE_COUNT = "message_count";
+    private static final String GROUP_SUFFIX = "@g.us";
+    /**
+     * What {@link GroupIndex} needs: the group events, the first message of every chat and the first
+     * received message of every sender in a group, without the <code>data</code> of other messages.
+     */
+    private static final String GROUP_EVENTS_SQL =
+            "SELECT _id, key_remote_jid, key_from_me, status, media_size, data, timestamp, remote_resource" +
+            " FROM messages WHERE status = " + GroupIndex.STATUS_GROUP_EVENT +
+            " UNION ALL" +
+            " SELECT _id, key_remote_jid, key_from_me, status, media_size, NULL, timestamp, remote_resource" +
+            " FROM messages WHERE status IS NOT " + GroupIndex.STATUS_GROUP_EVENT +
+            " AND _id IN (SELECT MIN(_id) FROM messages GROUP BY key_remote_jid)" +
+            " UNION ALL" +
+            " SELECT _id, key_remote_jid, key_from_me, status, media_size, NULL, timestamp, remote_resource" +
+            " FROM messages WHERE _id IN (SELECT MIN(_id) FROM messages WHERE key_from_me = 0" +
+            " AND status IS NOT " + GroupIndex.STATUS_GROUP_EVENT + " AND key_remote_jid LIKE '%" + GROUP_SUFFIX + "'" +
+            " GROUP BY key_remote_jid, remote_resource)" +
+            " ORDER BY timestamp, _id";
 
     private final DBDecryptor dbDecryptor;
     private final DBProvider  dbProvider;
     private final DBOpener    dbOpener;
+    private final SnapshotCache snapshotCache;
+    private long inMemoryThreshold;
+    private boolean decryptOnDemand;
+    private GroupIndex groupIndex;
+    private File groupIndexSource;
+    private long groupIndexLength;
+    private long groupIndexModified;
 
     /**
      * Default constructor, tries to automatically find the appropriate db file on
@@ -50,10 +113,64 @@ public class Whassup {
         }, new DBOpener());
     }
 
+    /**
+     * @param file path to an encrypted DB file
+     * @param snapshotCache cache for decrypted snapshots, the file is only decrypted again if it changes
+     */
+    public Whassup(final File file, SnapshotCache snapshotCache) {
+        this(new DBDecryptor(), new DBProvider() {
+            @Override
+            public File getDBFile() {
+                return file;
+            }
+        }, new DBOpener(), snapshotCache);
+    }
+
+    /**
+     * Uses the db file on the SD card.
+     * @param snapshotCache cache for decrypted snapshots, the file is only decrypted again if it changes
+     */
+    public Whassup(SnapshotCache snapshotCache) {
+        this(new DBDecryptor(), new DefaultDBProvider(), new DBOpener(), snapshotCache);
+    }
+
     /* package */ Whassup(DBDecryptor decryptor, DBProvider dbProvider, DBOpener dbOpener) {
+        this(decryptor, dbProvider, dbOpener, null);
+    }
+
+    /* package */ Whassup(DBDecryptor decryptor, DBProvider dbProvider, DBOpener dbOpener, SnapshotCache snapshotCache) {
         this.dbDecryptor = decryptor;
         this.dbProvider = dbProvider;
         this.dbOpener = dbOpener;
+        this.snapshotCache = snapshotCache;
+    }
+
+    /**
+     * Backups up to this size are decrypted into memory and read from there, so no plaintext
+     * copy gets written to storage. Disabled (0) by default.
+     * @param bytes maximum size of the encrypted backup, 0 to always decrypt to a file; larger
+     *              values than {@link #MAX_IN_MEMORY_THRESHOLD} are clamped
+     */
+    public void setInMemoryThreshold(long bytes) {
+        if (bytes < 0) throw new IllegalArgumentException("threshold must not be negative");
+        this.inMemoryThreshold = Math.min(bytes, MAX_IN_MEMORY_THRESHOLD);
+    }
+
+    public long getInMemoryThreshold() {
+        return inMemoryThreshold;
+    }
+
+    /**
+     * Backups above the in-memory threshold are read straight from the encrypted file, only
+     * decrypting the pages a query visits, instead of decrypting them to a file first.
+     * @param decryptOnDemand true to enable, false (the default) to decrypt the whole backup
+     */
+    public void setDecryptOnDemand(boolean decryptOnDemand) {
+        this.decryptOnDemand = decryptOnDemand;
+    }
+
+    public boolean isDecryptOnDemand() {
+        return decryptOnDemand;
     }
 
     /**
@@ -71,64 +188,155 @@ public class Whassup {
      * @throws IOException
      */
     public Cursor queryMessages(long timestamp, int max) throws IOException {
+        return queryMessages(timestamp, max, Projection.FULL);
+    }
+
+    /**
+     * @param timestamp a timestamp, epoch format
+     * @param max how many messages to fetch or -1 for all
+     * @param projection which columns to fetch
+     * @return a cursor with messages after timestamp
+     * @throws IOException
+     */
+    public Cursor queryMessages(long timestamp, int max, Projection projection) throws IOException {
+        File currentDB = dbProvider.getDBFile();
+        if (currentDB == null) {
+            return null;
+        } else if (currentDB.length() <= inMemoryThreshold || decryptOnDemand) {
+            return getCursorFromPages(currentDB,
+                    new MessageQuery().between(after(timestamp), 0).limit(max).projection(projection));
+        } else {
+            return queryDecrypted(currentDB, new MessageQuery().between(after(timestamp), 0).limit(max)
+                    .projection(projection));
+        }
+    }
+
+    /**
+     * @see #queryMessages(String, long, long, int, Projection)
+     */
+    public Cursor queryMessages(String chatId, long from, long to, int max) throws IOException {
+        return queryMessages(chatId, from, to, max, Projection.FULL);
+    }
+
+    /**
+     * Queries the messages of one chat and/or a time range. With a {@link SnapshotCache} the
+     * snapshot gets indexes on (key_remote_jid, timestamp), (timestamp) and (key_id) the first
+     * time, which are kept with it.
+     * @param chatId the chat, or null for all chats
+     * @param from the first timestamp to include, epoch format, or 0 for no lower bound
+     * @param to the timestamp to stop at (exclusive), or 0 for no upper bound
+     * @param max how many messages to fetch or -1 for all
+     * @param projection which columns to fetch
+     * @return a cursor with the messages in ascending timestamp order
+     * @throws IOException
+     */
+    public Cursor queryMessages(String chatId, long from, long to, int max, Projection projection) throws IOException {
+        return queryMessages(new MessageQuery().chat(chatId).between(from, to).limit(max).projection(projection));
+    }
+
+    /**
+     * Queries the messages matching all conditions of query, the filtering happens in SQLite.
+     * Indexes are added to cached snapshots like for {@link #queryMessages(String, long, long, int, Projection)}.
+     * @return a cursor with the messages in ascending timestamp order, or null if there is no backup
+     * @throws IOException
+     */
+    public Cursor queryMessages(MessageQuery query) throws IOException {
         File currentDB = dbProvider.getDBFile();
         if (currentDB == null) {
             return null;
+        } else if (currentDB.length() <= inMemoryThreshold || decryptOnDemand) {
+            return getCursorFromPages(currentDB, query);
+        } else {
+            return queryDecrypted(currentDB, query);
+        }
+    }
+
+    /**
+     * @return the messages matching query, empty if there is no backup
+     * @see #queryMessages(MessageQuery)
+     */
+    public List<WhatsAppMessage> getMessages(MessageQuery query) throws IOException {
+        File currentDB = dbProvider.getDBFile();
+        if (currentDB == null) {
+            return Collections.emptyList();
+        } else if (currentDB.length() <= inMemoryThreshold || decryptOnDemand) {
+            return getMessagesFromPages(currentDB, query);
         } else {
-            return getCursorFromDB(decryptDB(currentDB), timestamp, max);
+            return getMessagesDecrypted(currentDB, query);
         }
     }
 
     /**
-     * Convenience method which reads all messages and converts them into model objects.
+     * Fetches the messages after timestamp using one thread per core, for large backups, see
+     * {@link WhassupSession#getMessagesParallel(long, Projection, int, boolean)}.
+     * @param ordered true for ascending timestamp order, false for the faster <code>_id</code> order
+     * @throws IOException
+     */
+    public List<WhatsAppMessage> getMessagesParallel(long timestamp, boolean ordered) throws IOException {
+        WhassupSession session = openSession();
+        if (session == null) return Collections.emptyList();
+        try {
+            return session.getMessagesParallel(timestamp, ordered);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Convenience method which reads all messages and converts them into model objects. If there
+     * are group messages, their {@link GroupIndex} is built from the same decrypted backup.
      * @param timestamp fetch all message since timestamp
      * @param max how many messages to fetch, -1 for all
      * @return a list of messages
      * @throws IOException
      */
     public List<WhatsAppMessage> getMessages(long timestamp, int max) throws IOException {
-        Cursor cursor = queryMessages(timestamp, max);
-        try {
-            if (cursor != null) {
-                List<WhatsAppMessage> messages = new ArrayList<WhatsAppMessage>(cursor.getCount());
-                while (cursor.moveToNext()) {
-                    messages.add(new WhatsAppMessage(cursor));
-                }
-                return messages;
-            } else {
-                return Collections.emptyList();
-            }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-        }
+        return getMessages(new MessageQuery().between(after(timestamp), 0).limit(max));
     }
 
     public List<WhatsAppMessage> getMessages() throws IOException {
         return getMessages(0, -1);
     }
 
+    /**
+     * Reads messages into a {@link MessageTable}, which needs a fraction of the memory of
+     * {@link #getMessages(long, int)}. Blobs are not loaded.
+     * @param timestamp fetch all message since timestamp
+     * @return the messages, in ascending timestamp order
+     * @throws IOException
+     */
+    public MessageTable getMessageTable(long timestamp) throws IOException {
+        return toTable(queryMessages(timestamp, -1, Projection.METADATA), null);
+    }
+
+    /**
+     * @return the number of the owner of the backup, if known
+     * @see GroupIndex#getOwnNumber()
+     */
     public String getOwnNumber() {
-        // TODO
-        // SELECT remote_resource FROM messages WHERE key_from_me = 1 AND status = 6 AND media_size = 1 AND remote_resource NOT LIKE '%@s.whatsapp.net' LIMIT 1
-        return null;
+        GroupIndex groups = getGroupIndexQuietly();
+        return groups == null ? null : groups.getOwnNumber();
     }
 
+    /**
+     * @return the time of the first message of the chat, or null if unknown
+     */
     public Date getChatCreationTimestamp(String chatId) {
-        // TODO
-        // SELECT timestamp FROM messages WHERE key_remote_jid = '[group ID]@g.us' ORDER BY _id LIMIT 1
-        return null;
+        GroupIndex groups = getGroupIndexQuietly();
+        return groups == null ? null : groups.getCreationTimestamp(chatId);
     }
 
     public Date getChatCreationTimestamp(WhatsAppMessage message) {
         return getChatCreationTimestamp(message.getChatId());
     }
 
+    /**
+     * @param timestamp a point in time, or null for the current name
+     * @return the name of the group at that time, or null if unknown
+     */
     public String getGroupName(String chatId, Date timestamp) {
-        // TODO
-        // SELECT data FROM messages WHERE key_remote_jid = '[group ID]@g.us' AND status = 6 AND media_size = 1 AND timestamp <= [msg timestamp] ORDER BY _id DESC LIMIT 1
-        return null;
+        GroupIndex groups = getGroupIndexQuietly();
+        return groups == null ? null : groups.getName(chatId, timestamp);
     }
 
     public String getGroupName(String chatId) {
@@ -139,11 +347,13 @@ public class Whassup {
         return getGroupName(message.getChatId(), message.getTimestamp());
     }
 
+    /**
+     * @param timestamp a point in time, or null for the current members
+     * @return the numbers of the group members at that time, or null if the group is unknown
+     */
     public String[] getGroupMembers(String chatId, Date timestamp) {
-        // TODO
-        // SELECT remote_resource, media_size, timestamp FROM messages WHERE key_remote_jid = '[group ID]@g.us' AND status = 6 AND media_size in (4,5,7) AND timestamp <= [msg timestamp] ORDER BY _id
-        // 
-        return null;
+        GroupIndex groups = getGroupIndexQuietly();
+        return groups == null ? null : groups.getMembers(chatId, timestamp);
     }
 
     public String[] getGroupMembers(String chatId) {
@@ -154,6 +364,291 @@ public class Whassup {
         return getGroupMembers(message.getChatId(), message.getTimestamp());
     }
 
+    /**
+     * @see #getConversations(int)
+     */
+    public List<Conversation> getConversations() throws IOException {
+        return getConversations(0);
+    }
+
+    /**
+     * Lists the chats with their last message, most recent first, without reading all messages.
+     * @param recent how many of the last messages of every chat to fetch as well, 0 for none
+     * @return the conversations, empty if there is no backup
+     * @throws IOException
+     */
+    public List<Conversation> getConversations(int recent) throws IOException {
+        WhassupSession session = openSession();
+        if (session == null) return Collections.emptyList();
+        try {
+            return session.getConversations(recent, Projection.FULL);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * @see #search(String, String, int, int)
+     */
+    public List<SearchResult> search(String query, String chatId, int max) throws IOException {
+        return search(query, chatId, 0, max);
+    }
+
+    /**
+     * Full-text search over the message texts, best matches first. With a {@link SnapshotCache}
+     * the index is kept in the cache directory and only new messages are indexed when the backup
+     * changes, without one it is built for every search.
+     * @param chatId the chat to search, or null for all chats
+     * @param offset how many results to skip, for paging
+     * @param max how many results to return or -1 for all
+     * @return the results, empty if there is no backup
+     * @see WhassupSession#search(String, String, int, int, Projection)
+     */
+    public List<SearchResult> search(String query, String chatId, int offset, int max) throws IOException {
+        WhassupSession session = openSession();
+        if (session == null) return Collections.emptyList();
+        try {
+            return session.search(query, chatId, offset, max, Projection.FULL);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Fetches the messages added since the last sync, for clients which copy messages somewhere
+     * else on every run. Persist {@link SyncResult#getNextToken()} after processing the messages
+     * and pass it to the next call, see {@link WhassupSession#sync(SyncToken, int, Projection)}.
+     * @param token the token of the previous sync, {@link SyncToken#START} (or null) for the first one
+     * @param max how many messages to fetch or -1 for all
+     * @throws IOException
+     */
+    public SyncResult sync(SyncToken token, int max) throws IOException {
+        WhassupSession session = openSession();
+        if (session == null) {
+            return new SyncResult(Collections.<WhatsAppMessage>emptyList(), token == null ? SyncToken.START : token,
+                    false);
+        }
+        try {
+            return session.sync(token, max, Projection.FULL);
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * @return a token positioned after the newest message, to only sync messages added from now on;
+     *         {@link SyncToken#START} if there is no backup
+     * @throws IOException
+     */
+    public SyncToken getLatestSyncToken() throws IOException {
+        WhassupSession session = openSession();
+        if (session == null) return SyncToken.START;
+        try {
+            return session.getLatestSyncToken();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Indexes group names and members from the group events and the first message of every chat
+     * and sender. The index is kept until the size or modification time of the backup changes.
+     * @return the index or null if there is no backup
+     * @throws IOException
+     */
+    public synchronized GroupIndex getGroupIndex() throws IOException {
+        File currentDB = dbProvider.getDBFile();
+        if (currentDB == null) return null;
+
+        final long length = currentDB.length(), modified = currentDB.lastModified();
+        if (groupIndex == null || !currentDB.equals(groupIndexSource) ||
+                length != groupIndexLength || modified != groupIndexModified) {
+            if (length <= inMemoryThreshold || decryptOnDemand) {
+                groupIndex = getGroupIndexFromPages(currentDB);
+            } else {
+                groupIndex = toGroupIndex(queryDecrypted(currentDB, null));
+            }
+            groupIndexSource = currentDB;
+            groupIndexLength = length;
+            groupIndexModified = modified;
+        }
+        return groupIndex;
+    }
+
+    /**
+     * @return the index, or null if there is no backup or it cannot be read
+     */
+    private GroupIndex getGroupIndexQuietly() {
+        try {
+            return getGroupIndex();
+        } catch (IOException e) {
+            Log.w(TAG, "could not index groups", e);
+            return null;
+        }
+    }
+
+    /**
+     * Checks that the backup can be decrypted and reads its header. Only the first and last
+     * few blocks are decrypted, independent of the size of the backup.
+     * @return the header of the backup or null if there is none
+     * @throws IOException if the backup cannot be decrypted (wrong key) or is corrupt
+     */
+    public SQLiteHeader probe() throws IOException {
+        File currentDB = dbProvider.getDBFile();
+        return currentDB == null ? null : probe(currentDB);
+    }
+
+    /**
+     * @param file path to an encrypted DB file
+     * @see #probe()
+     */
+    public SQLiteHeader probe(File file) throws IOException {
+        final PageSource source;
+        try {
+            source = dbDecryptor.openPageSource(file);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not decrypt db " + file + ": " + e.getMessage());
+        }
+        try {
+            final byte[] data = new byte[(int) Math.min(SQLiteHeader.SIZE, source.length())];
+            source.read(0, data, 0, data.length);
+            final SQLiteHeader header = SQLiteHeader.parse(data);
+            final long expected = header.getPageCount() * header.getPageSize();
+            if (header.isPageCountValid() && expected != source.length()) {
+                throw new IOException("db " + file + " is corrupt: expected " + expected +
+                        " bytes, got " + source.length());
+            }
+            return header;
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Streams the messages after timestamp in ascending timestamp order without loading them all
+     * into memory, see {@link WhassupSession#iterateMessages(long)}.
+     * @param timestamp a timestamp, epoch format
+     * @return the messages, to be closed by the caller if not iterated until the end
+     * @throws IOException
+     */
+    public MessageIterator iterateMessages(long timestamp) throws IOException {
+        final WhassupSession session = openSession();
+        return new MessageIterator(session, true, timestamp, MessageIterator.DEFAULT_CHUNK_SIZE, Projection.FULL);
+    }
+
+    /**
+     * Decrypts the backup once and opens it for reading, for clients which run many queries,
+     * possibly from multiple threads.
+     * @return a new session, to be closed by the caller, or null if there is no backup
+     * @throws IOException
+     */
+    public WhassupSession openSession() throws IOException {
+        final File currentDB = dbProvider.getDBFile();
+        if (currentDB == null) return null;
+        return openSession(currentDB);
+    }
+
+    /**
+     * Streams the messages of several backups as one sequence in ascending timestamp order, see
+     * {@link MergedMessageIterator}. The backups are decrypted in parallel and read in chunks which
+     * share a budget of {@link #MERGE_BUFFER_SIZE} messages (but hold at least 16 each).
+     * @param backups the encrypted backups, newest first as returned by {@link MultiBackupProvider#getDBFiles()};
+     *                of a message contained in several backups the copy from the first one is returned
+     * @param timestamp a timestamp, epoch format
+     * @return the messages, to be closed by the caller if not iterated until the end
+     * @throws IOException if one of the backups cannot be opened
+     */
+    public MergedMessageIterator iterateMessages(List<File> backups, long timestamp) throws IOException {
+        return iterateMessages(backups, timestamp, MERGE_BUFFER_SIZE);
+    }
+
+    /* package */ MergedMessageIterator iterateMessages(List<File> backups, long timestamp, int bufferSize)
+            throws IOException {
+        final List<WhassupSession> sessions = openSessions(backups);
+        final int chunkSize = Math.max(MIN_MERGE_CHUNK_SIZE, bufferSize / Math.max(1, sessions.size()));
+        final List<MessageIterator> sources = new ArrayList<MessageIterator>(sessions.size());
+        for (WhassupSession session : sessions) {
+            sources.add(new MessageIterator(session, true, timestamp, chunkSize, Projection.FULL));
+        }
+        return new MergedMessageIterator(sources);
+    }
+
+    /**
+     * @return one session per backup, in the same order
+     */
+    private List<WhassupSession> openSessions(List<File> backups) throws IOException {
+        final int threads = Math.max(1, Math.min(backups.size(), Runtime.getRuntime().availableProcessors()));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<WhassupSession>> futures = new ArrayList<Future<WhassupSession>>(backups.size());
+        for (final File backup : backups) {
+            futures.add(executor.submit(new Callable<WhassupSession>() {
+                @Override
+                public WhassupSession call() throws IOException {
+                    return openSession(backup);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        final List<WhassupSession> sessions = new ArrayList<WhassupSession>(backups.size());
+        IOException error = null;
+        for (Future<WhassupSession> future : futures) {
+            try {
+                sessions.add(getUninterruptibly(future));
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause() instanceof IOException ? (IOException) e.getCause() :
+                            new IOException("Error opening backup: " + e.getCause());
+                }
+            }
+        }
+        if (error != null) {
+            for (WhassupSession session : sessions) {
+                session.close();
+            }
+            throw error;
+        }
+        return sessions;
+    }
+
+    private static <T> T getUninterruptibly(Future<T> future) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /* package */ WhassupSession openSession(File currentDB) throws IOException {
+        final File dbFile = decryptDB(currentDB);
+        File searchIndexFile = null;
+        if (snapshotCache != null) {
+            // before opening, other connections would not see the new indexes
+            ensureIndexes(dbFile, snapshotCache);
+            try {
+                searchIndexFile = snapshotCache.getSearchIndexFile(currentDB);
+            } catch (IOException e) {
+                WhassupSession.release(dbFile, snapshotCache);
+                throw e;
+            }
+        }
+        try {
+            return new WhassupSession(dbOpener.openReadOnly(dbFile), dbFile, snapshotCache, searchIndexFile,
+                    dbOpener);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error opening db "+dbFile, e);
+            WhassupSession.release(dbFile, snapshotCache);
+            throw new IOException("Error opening database:"+e.getMessage());
+        }
+    }
+
     /**
      * @return if there is a whatsapp backup available
      */
@@ -161,41 +656,489 @@ public class Whassup {
         return dbProvider.getDBFile() != null;
     }
 
-    private Cursor getCursorFromDB(final File dbFile, long since, int max) throws IOException {
-        Log.d(TAG, "using DB "+dbFile);
-        SQLiteDatabase db = getSqLiteDatabase(dbFile);
-        String limit = null;
-        String selection = null;
-        String[] selectionArgs = null;
-        if (since > 0) {
-            selection = String.format("%s > ?", WhatsAppMessage.Fields.TIMESTAMP);
-            selectionArgs = new String[]{String.valueOf(since)};
+    /**
+     * Decrypts the backup and queries it. A cached snapshot stays acquired until the cursor gets
+     * closed, so it is neither refreshed nor evicted while it is read.
+     * @param query the messages to fetch, or null for {@link #queryGroupEvents(SQLiteDatabase)}
+     */
+    private Cursor queryDecrypted(File currentDB, MessageQuery query) throws IOException {
+        final File dbFile = decryptDB(currentDB);
+        final Cursor cursor;
+        try {
+            if (snapshotCache != null) {
+                ensureIndexes(dbFile, snapshotCache);
+            }
+            Log.d(TAG, "using DB "+dbFile);
+            final SQLiteDatabase db = getSqLiteDatabase(dbFile);
+            cursor = query != null ? query(db, query, null) : queryGroupEvents(db);
+        } catch (IOException e) {
+            WhassupSession.release(dbFile, snapshotCache);
+            throw e;
+        } catch (RuntimeException e) {
+            WhassupSession.release(dbFile, snapshotCache);
+            throw e;
+        }
+        if (snapshotCache == null) {
+            // the temporary file is deleted by the cursor
+            return cursor;
+        }
+        return new CursorWrapper(cursor) {
+            private final AtomicBoolean closed = new AtomicBoolean();
+
+            @Override
+            public void close() {
+                super.close();
+                if (closed.compareAndSet(false, true)) {
+                    snapshotCache.releaseSnapshot(dbFile);
+                }
+            }
+        };
+    }
+
+    /**
+     * Decrypts the backup and reads the messages, and the group index if they contain group
+     * messages, before the decrypted file is released.
+     */
+    private List<WhatsAppMessage> getMessagesDecrypted(File currentDB, MessageQuery query) throws IOException {
+        final File dbFile = decryptDB(currentDB);
+        try {
+            if (snapshotCache != null) {
+                ensureIndexes(dbFile, snapshotCache);
+            }
+            Log.d(TAG, "using DB "+dbFile);
+            final SQLiteDatabase db;
+            try {
+                db = dbOpener.openReadOnly(dbFile);
+            } catch (SQLiteException e) {
+                Log.w(TAG, "error opening db "+dbFile, e);
+                throw new IOException("Error opening database:"+e.getMessage());
+            }
+            try {
+                final List<WhatsAppMessage> messages = toMessages(query(db, query, null), null);
+                if (hasGroupMessages(messages)) {
+                    toGroupIndex(queryGroupEvents(db)).attach(messages);
+                }
+                return messages;
+            } finally {
+                db.close();
+            }
+        } finally {
+            WhassupSession.release(dbFile, snapshotCache);
+        }
+    }
+
+    /**
+     * @param and additional selection, with all arguments inlined
+     * @return a cursor with the rows ordered by timestamp and _id
+     */
+    /* package */ static Cursor query(SQLiteDatabase db, long since, int max, Projection projection, String and)
+            throws IOException {
+        return query(db, new MessageQuery().between(after(since), 0).limit(max).projection(projection), and);
+    }
+
+    /**
+     * @param and additional selection, with all arguments inlined
+     * @return a cursor with the rows ordered by timestamp and _id
+     */
+    /* package */ static Cursor query(SQLiteDatabase db, MessageQuery query, String and) throws IOException {
+        String selection = query.getSelection();
+        if (and != null) {
+            selection = selection == null ? and : selection + " AND (" + and + ")";
+        }
+        final String limit = query.getLimit() > 0 ? String.valueOf(query.getLimit()) : null;
+        final String orderBy = String.format("%s ASC, %s ASC", WhatsAppMessage.Fields.TIMESTAMP,
+                WhatsAppMessage.Fields._ID);
+
+        try {
+            return db.query(WhatsAppMessage.TABLE, query.getProjection().getColumns(), selection,
+                    query.getSelectionArgs(), null, null, orderBy, limit);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error querying DB", e);
+            throw new IOException("Error querying DB: "+e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the chat list joined with the last message of every chat, most recent first.
+     * @param recent how many of the last messages of each chat to fetch as well, 0 for none
+     * @param blobLoader loads blobs which are not part of the projection, may be null
+     */
+    /* package */ static List<Conversation> queryConversations(SQLiteDatabase db, int recent, Projection projection,
+                                                             BlobLoader blobLoader) throws IOException {
+        final String[] columns = projection.getColumns();
+        final StringBuilder select = new StringBuilder();
+        if (columns == null) {
+            select.append(WhatsAppMessage.TABLE).append(".*");
+        } else {
+            for (String column : columns) {
+                if (select.length() > 0) select.append(", ");
+                select.append(WhatsAppMessage.TABLE).append('.').append(column);
+            }
+        }
+        // the count uses the (key_remote_jid, key_from_me, key_id) index, it never reads the messages
+        final String sql = "SELECT " + select + ", " +
+                "c." + ChatList.FIELD_KEY_REMOTE_JID + " AS " + CHAT_ID + ", " +
+                "(SELECT COUNT(*) FROM " + WhatsAppMessage.TABLE + " AS m WHERE m.key_remote_jid = c.key_remote_jid) AS " + MESSAGE_COUNT +
+                " FROM " + ChatList.TABLE + " AS c" +
+                " LEFT JOIN " + WhatsAppMessage.TABLE + " ON " + WhatsAppMessage.TABLE + "._id = c.message_table_id" +
+                " ORDER BY " + WhatsAppMessage.TABLE + ".timestamp DESC, c._id DESC";
+
+        final List<Conversation> conversations = new ArrayList<Conversation>();
+        try {
+            final Cursor cursor = db.rawQuery(sql, null);
+            try {
+                final MessageRowMapper mapper = new MessageRowMapper(cursor);
+                final int chatId = cursor.getColumnIndex(CHAT_ID);
+                final int count = cursor.getColumnIndex(MESSAGE_COUNT);
+                final int id = cursor.getColumnIndex(WhatsAppMessage.Fields._ID.toString());
+                while (cursor.moveToNext()) {
+                    final String jid = cursor.getString(chatId);
+                    conversations.add(new Conversation(jid,
+                            cursor.isNull(id) ? null : mapper.map(cursor, blobLoader),
+                            cursor.getInt(count),
+                            recent > 0 ? queryRecent(db, jid, recent, projection, blobLoader) : null));
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error querying DB", e);
+            throw new IOException("Error querying DB: "+e.getMessage());
         }
-        if (max > 0) {
-            limit = String.valueOf(max);
+        return conversations;
+    }
+
+    private static List<WhatsAppMessage> queryRecent(SQLiteDatabase db, String chatId, int max, Projection projection,
+                                                     BlobLoader blobLoader) {
+        final String orderBy = String.format("%s DESC, %s DESC", WhatsAppMessage.Fields.TIMESTAMP,
+                WhatsAppMessage.Fields._ID);
+        final List<WhatsAppMessage> messages = toMessages(db.query(WhatsAppMessage.TABLE, projection.getColumns(),
+                WhatsAppMessage.Fields.KEY_REMOTE_JID + " = ?", new String[] { chatId }, null, null, orderBy,
+                String.valueOf(max)), blobLoader);
+        Collections.reverse(messages);
+        return messages;
+    }
+
+    /**
+     * @return the inclusive lower bound for messages after timestamp, or 0 for all messages
+     */
+    /* package */ static long after(long timestamp) {
+        return timestamp > 0 && timestamp < Long.MAX_VALUE ? timestamp + 1 : timestamp;
+    }
+
+    /**
+     * Adds the {@link MessageIndexes} to a decrypted database if they are missing. Failures are
+     * logged, queries still work without the indexes.
+     * @param snapshotCache the cache dbFile belongs to, or null
+     */
+    /* package */ static void ensureIndexes(File dbFile, SnapshotCache snapshotCache) {
+        try {
+            if (!MessageIndexes.exist(dbFile)) {
+                if (snapshotCache != null) {
+                    snapshotCache.markModified(dbFile);
+                }
+                MessageIndexes.create(dbFile);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "could not index " + dbFile, e);
         }
-        final String orderBy = WhatsAppMessage.Fields.TIMESTAMP + " ASC";
+    }
 
+    /**
+     * @return the rows {@link GroupIndex} needs, in ascending timestamp order
+     */
+    /* package */ static Cursor queryGroupEvents(SQLiteDatabase db) throws IOException {
         try {
-            return db.query(WhatsAppMessage.TABLE, null, selection, selectionArgs, null, null, orderBy, limit);
+            return db.rawQuery(GROUP_EVENTS_SQL, null);
         } catch (SQLiteException e) {
             Log.w(TAG, "error querying DB", e);
             throw new IOException("Error querying DB: "+e.getMessage());
         }
     }
 
+    /**
+     * Indexes all rows and closes the cursor.
+     */
+    /* package */ static GroupIndex toGroupIndex(Cursor cursor) {
+        if (cursor == null) {
+            return new GroupIndex(new MatrixCursor(new String[0]));
+        }
+        try {
+            return new GroupIndex(cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* package */ static boolean hasGroupMessages(Iterable<WhatsAppMessage> messages) {
+        for (WhatsAppMessage message : messages) {
+            if (message.isGroupMessage()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads all rows into a table and closes the cursor.
+     * @param blobLoader loads blobs on demand, may be null
+     */
+    /* package */ static MessageTable toTable(Cursor cursor, BlobLoader blobLoader) {
+        if (cursor == null) {
+            return new MessageTable(new MatrixCursor(new String[0]));
+        }
+        try {
+            return new MessageTable(cursor, blobLoader);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Converts all rows into model objects and closes the cursor.
+     * @param blobLoader loads blobs which are not part of the cursor, may be null
+     */
+    /* package */ static List<WhatsAppMessage> toMessages(Cursor cursor, BlobLoader blobLoader) {
+        try {
+            if (cursor != null) {
+                List<WhatsAppMessage> messages = new ArrayList<WhatsAppMessage>(cursor.getCount());
+                MessageRowMapper mapper = new MessageRowMapper(cursor);
+                while (cursor.moveToNext()) {
+                    messages.add(mapper.map(cursor, blobLoader));
+                }
+                return messages;
+            } else {
+                return Collections.emptyList();
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Like {@link #query(SQLiteDatabase, MessageQuery, String)}, but scans the table pages of the
+     * encrypted file.
+     */
+    private Cursor getCursorFromPages(final File encrypted, MessageQuery query) throws IOException {
+        final SQLiteFile db = openPages(encrypted);
+        try {
+            return getCursorFromPages(db, query);
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Like {@link #getMessagesDecrypted(File, MessageQuery)}, but scans the table pages of the
+     * encrypted file, which is opened once for the messages and the group index.
+     */
+    private List<WhatsAppMessage> getMessagesFromPages(final File encrypted, MessageQuery query) throws IOException {
+        final SQLiteFile db = openPages(encrypted);
+        try {
+            final List<WhatsAppMessage> messages = toMessages(getCursorFromPages(db, query), null);
+            if (hasGroupMessages(messages)) {
+                getGroupIndexFromPages(db).attach(messages);
+            }
+            return messages;
+        } finally {
+            db.close();
+        }
+    }
+
+    private static Cursor getCursorFromPages(SQLiteFile db, MessageQuery query) throws IOException {
+        final Table table = getMessagesTable(db);
+        final int timestamp = table.getColumnIndex(WhatsAppMessage.Fields.TIMESTAMP.toString());
+        final MessageQuery.Matcher matcher = query.matcher(table.getColumns());
+        final String[] columns = query.getProjection().getColumns() != null ?
+                query.getProjection().getColumns() : table.getColumns();
+        final int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = table.getColumnIndex(columns[i]);
+        }
+        // rows are projected right away and with a limit only the first max are kept, so
+        // memory is bounded by the result, not the table
+        final int max = query.getLimit();
+        final PriorityQueue<ScannedRow> top = max > 0 ?
+                new PriorityQueue<ScannedRow>(max, Collections.reverseOrder(ScannedRow.ORDER)) : null;
+        final List<ScannedRow> rows = new ArrayList<ScannedRow>();
+        final TableScan scan = db.scan(table);
+        long sequence = 0;
+        while (scan.next()) {
+            final Object[] values = scan.getValues();
+            if (!matcher.matches(values)) continue;
+
+            final ScannedRow row = new ScannedRow(timestamp >= 0 ? values[timestamp] : null, sequence++);
+            if (top != null && top.size() == max) {
+                if (ScannedRow.ORDER.compare(row, top.peek()) >= 0) continue;
+                top.poll();
+            }
+            row.values = new Object[columns.length];
+            for (int j = 0; j < indexes.length; j++) {
+                row.values[j] = indexes[j] >= 0 ? values[indexes[j]] : null;
+            }
+            (top != null ? top : rows).add(row);
+        }
+        if (top != null) {
+            rows.addAll(top);
+        }
+        Collections.sort(rows, ScannedRow.ORDER);
+        final MatrixCursor cursor = new MatrixCursor(columns, rows.size());
+        for (ScannedRow row : rows) {
+            cursor.addRow(row.values);
+        }
+        return cursor;
+    }
+
+    /**
+     * Like {@link #queryGroupEvents(SQLiteDatabase)}, but scans the table pages of the encrypted file.
+     */
+    private GroupIndex getGroupIndexFromPages(final File encrypted) throws IOException {
+        final SQLiteFile db = openPages(encrypted);
+        try {
+            return getGroupIndexFromPages(db);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static GroupIndex getGroupIndexFromPages(SQLiteFile db) throws IOException {
+        final Table table = getMessagesTable(db);
+        final String[] columns = Projection.EVENTS.getColumns();
+        final int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = table.getColumnIndex(columns[i]);
+        }
+        final int jid = table.getColumnIndex(WhatsAppMessage.Fields.KEY_REMOTE_JID.toString());
+        final int fromMe = table.getColumnIndex(WhatsAppMessage.Fields.KEY_FROM_ME.toString());
+        final int status = table.getColumnIndex(WhatsAppMessage.Fields.STATUS.toString());
+        final int resource = table.getColumnIndex(WhatsAppMessage.Fields.REMOTE_RESOURCE.toString());
+        final int timestamp = table.getColumnIndex(WhatsAppMessage.Fields.TIMESTAMP.toString());
+        final int data = indexOf(columns, WhatsAppMessage.Fields.DATA.toString());
+
+        final Set<Object> chats = new HashSet<Object>();
+        final Set<String> senders = new HashSet<String>();
+        final List<ScannedRow> rows = new ArrayList<ScannedRow>();
+        final TableScan scan = db.scan(table);
+        long sequence = 0;
+        while (scan.next()) {
+            final Object[] values = scan.getValues();
+            final Object chat = value(values, jid);
+            final boolean event = isNumber(value(values, status), GroupIndex.STATUS_GROUP_EVENT);
+            final boolean firstOfChat = chats.add(chat);
+            final boolean firstOfSender = !event && isNumber(value(values, fromMe), 0) &&
+                    chat instanceof String && ((String) chat).endsWith(GROUP_SUFFIX) &&
+                    senders.add(chat + "/" + value(values, resource));
+            if (!event && !firstOfChat && !firstOfSender) continue;
+
+            final ScannedRow row = new ScannedRow(value(values, timestamp), sequence++);
+            row.values = new Object[columns.length];
+            for (int j = 0; j < indexes.length; j++) {
+                row.values[j] = value(values, indexes[j]);
+            }
+            if (!event && data >= 0) {
+                row.values[data] = null;
+            }
+            rows.add(row);
+        }
+        Collections.sort(rows, ScannedRow.ORDER);
+        final MatrixCursor cursor = new MatrixCursor(columns, rows.size());
+        for (ScannedRow row : rows) {
+            cursor.addRow(row.values);
+        }
+        return toGroupIndex(cursor);
+    }
+
+    private SQLiteFile openPages(File encrypted) throws IOException {
+        try {
+            if (encrypted.length() <= inMemoryThreshold) {
+                Log.d(TAG, "decrypting DB " + encrypted + " into memory");
+                return dbOpener.openInMemory(dbDecryptor, encrypted);
+            } else {
+                Log.d(TAG, "decrypting pages of DB " + encrypted + " on demand");
+                return dbOpener.openOnDemand(dbDecryptor, encrypted);
+            }
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, e);
+            throw new IOException("Could not decrypt db: "+e.getMessage());
+        }
+    }
+
+    private static Table getMessagesTable(SQLiteFile db) throws IOException {
+        final Table table = db.getTable(WhatsAppMessage.TABLE);
+        if (table == null) {
+            throw new IOException("Error querying DB: no such table: " + WhatsAppMessage.TABLE);
+        }
+        return table;
+    }
+
+    private static Object value(Object[] row, int index) {
+        return index >= 0 ? row[index] : null;
+    }
+
+    private static boolean isNumber(Object value, int expected) {
+        return value instanceof Number && ((Number) value).longValue() == expected;
+    }
+
+    private static int indexOf(String[] columns, String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * A projected row of a {@link TableScan}, with its position in the scan.
+     */
+    private static class ScannedRow {
+        /** same order as "ORDER BY timestamp, _id": the scan is in rowid order, NULLs first */
+        static final Comparator<ScannedRow> ORDER = new Comparator<ScannedRow>() {
+            @Override
+            public int compare(ScannedRow lhs, ScannedRow rhs) {
+                final Object l = lhs.timestamp, r = rhs.timestamp;
+                if (l == null || r == null) {
+                    if (l != r) return l == null ? -1 : 1;
+                } else {
+                    final long lv = ((Number) l).longValue(), rv = ((Number) r).longValue();
+                    if (lv != rv) return lv < rv ? -1 : 1;
+                }
+                return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+            }
+        };
+
+        final Object timestamp;
+        final long sequence;
+        Object[] values;
+
+        ScannedRow(Object timestamp, long sequence) {
+            this.timestamp = timestamp;
+            this.sequence = sequence;
+        }
+    }
+
     private SQLiteDatabase getSqLiteDatabase(final File dbFile) throws IOException {
         try {
-            return dbOpener.openDatabase(dbFile);
+            if (snapshotCache == null) {
+                return dbOpener.openDatabase(dbFile);
+            } else {
+                // cached snapshots are reused and must outlive the cursor
+                return dbOpener.openDatabase(dbFile, false);
+            }
         } catch (SQLiteException e) {
             Log.w(TAG, "error opening db "+dbFile, e);
             throw new IOException("Error opening database:"+e.getMessage());
         }
     }
 
+    /**
+     * @return a temporary file, or the acquired snapshot if there is a cache; to be released with
+     *         {@link WhassupSession#release(File, SnapshotCache)}
+     */
     private File decryptDB(File in) throws IOException {
-        File out = File.createTempFile("decrypted-db", ".sqlite");
         try {
+            if (snapshotCache != null) {
+                return snapshotCache.acquireSnapshot(in, dbDecryptor);
+            }
+            File out = File.createTempFile("decrypted-db", ".sqlite");
             dbDecryptor.decryptDB(in, out);
             return out;
         } catch (GeneralSecurityException e) {
@@ -229,6 +1172,14 @@ public class Whassup {
     }
     /* package */ static class DBOpener {
         public SQLiteDatabase openDatabase(final File dbFile) {
+            return openDatabase(dbFile, true);
+        }
+
+        /**
+         * @param dbFile the decrypted database
+         * @param deleteOnClose whether to delete dbFile once the first cursor gets closed
+         */
+        public SQLiteDatabase openDatabase(final File dbFile, final boolean deleteOnClose) {
             return SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), new SQLiteDatabase.CursorFactory() {
                 @Override
                 @SuppressWarnings("deprecation")
@@ -239,7 +1190,7 @@ public class Whassup {
                             Log.d(TAG, "closing cursor");
                             super.close();
                             db.close();
-                            if (!dbFile.delete()) {
+                            if (deleteOnClose && !dbFile.delete()) {
                                 Log.w(TAG, "could not delete database " + dbFile);
                             }
                         }
@@ -247,5 +1198,53 @@ public class Whassup {
                 }
             }, SQLiteDatabase.OPEN_READWRITE);
         }
+
+        /**
+         * Opens the database without a cursor factory, the caller is responsible for closing it.
+         * @param dbFile the decrypted database
+         */
+        public SQLiteDatabase openReadOnly(final File dbFile) {
+            return SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY);
+        }
+
+        /**
+         * Decrypts the database into memory, the plaintext is never written to storage.
+         * @param encrypted the encrypted database
+         */
+        public SQLiteFile openInMemory(DBDecryptor decryptor, File encrypted) throws IOException, GeneralSecurityException {
+            if (encrypted.length() > MAX_IN_MEMORY_THRESHOLD) {
+                throw new IOException("backup too large to decrypt into memory: " + encrypted.length());
+            }
+            final InMemoryDB out = new InMemoryDB((int) encrypted.length());
+            decryptor.decryptStream(new FileInputStream(encrypted), out);
+            return new SQLiteFile(out.asPageSource());
+        }
+
+        /**
+         * Opens the encrypted database for reading, pages get decrypted as they are read.
+         * @param encrypted the encrypted database
+         */
+        public SQLiteFile openOnDemand(DBDecryptor decryptor, File encrypted) throws IOException, GeneralSecurityException {
+            final PageSource source = decryptor.openPageSource(encrypted);
+            try {
+                return new SQLiteFile(source);
+            } catch (IOException e) {
+                source.close();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Exposes the internal buffer to avoid copying the database.
+     */
+    private static class InMemoryDB extends ByteArrayOutputStream {
+        InMemoryDB(int size) {
+            super(size);
+        }
+
+        ByteArrayPageSource asPageSource() {
+            return new ByteArrayPageSource(buf, count);
+        }
     }
 }
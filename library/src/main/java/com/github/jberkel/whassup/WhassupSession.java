@@ -0,0 +1,535 @@
+package com.github.jberkel.whassup;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+import com.github.jberkel.whassup.cache.SnapshotCache;
+import com.github.jberkel.whassup.model.BlobLoader;
+import com.github.jberkel.whassup.model.Conversation;
+import com.github.jberkel.whassup.model.GroupIndex;
+import com.github.jberkel.whassup.model.MessageQuery;
+import com.github.jberkel.whassup.model.MessageTable;
+import com.github.jberkel.whassup.model.Projection;
+import com.github.jberkel.whassup.model.SearchResult;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A decrypted backup, opened read-only once and shared by all queries. Sessions are thread-safe.
+ * <p>
+ * The database is reference counted: it stays open until both the session and every cursor
+ * returned by it have been closed, the decrypted file is released after that.
+ *
+ * @see Whassup#openSession()
+ */
+public class WhassupSession implements Closeable, BlobLoader {
+    private static final String TAG = WhassupSession.class.getSimpleName();
+
+    private final SQLiteDatabase db;
+    private final File dbFile;
+    private final SnapshotCache snapshotCache;
+    private final File searchIndexFile;
+    private final Whassup.DBOpener dbOpener;
+    /** one for the session itself plus one per open cursor */
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private GroupIndex groupIndex;
+    private SearchIndex searchIndex;
+    private File searchIndexTmp;
+
+    /**
+     * @param snapshotCache the cache dbFile was acquired from, or null if dbFile is a temporary file
+     * @param searchIndexFile where the search index of the backup is kept, or null to build it in a
+     *                        temporary file when needed
+     * @param dbOpener opens additional connections to dbFile
+     */
+    /* package */ WhassupSession(SQLiteDatabase db, File dbFile, SnapshotCache snapshotCache, File searchIndexFile,
+                                 Whassup.DBOpener dbOpener) {
+        this.db = db;
+        this.dbOpener = dbOpener;
+        this.dbFile = dbFile;
+        this.snapshotCache = snapshotCache;
+        this.searchIndexFile = searchIndexFile;
+    }
+
+    /**
+     * @return a cursor with all available messages
+     * @throws IOException
+     */
+    public Cursor queryMessages() throws IOException {
+        return queryMessages(0, -1);
+    }
+
+    /**
+     * @param timestamp a timestamp, epoch format
+     * @param max how many messages to fetch or -1 for all
+     * @return a cursor with messages after timestamp, keeps the database open until closed
+     * @throws IOException
+     * @throws IllegalStateException if the session has been closed
+     */
+    public Cursor queryMessages(long timestamp, int max) throws IOException {
+        return queryMessages(timestamp, max, Projection.FULL);
+    }
+
+    /**
+     * @param projection which columns to fetch
+     * @see #queryMessages(long, int)
+     */
+    public Cursor queryMessages(long timestamp, int max, Projection projection) throws IOException {
+        return query(timestamp, max, projection, null);
+    }
+
+    /**
+     * @see #queryMessages(String, long, long, int, Projection)
+     */
+    public Cursor queryMessages(String chatId, long from, long to, int max) throws IOException {
+        return queryMessages(chatId, from, to, max, Projection.FULL);
+    }
+
+    /**
+     * Queries the messages of one chat and/or a time range. Sessions on cached snapshots use the
+     * indexes on (key_remote_jid, timestamp), (timestamp) and (key_id) which are added to the
+     * snapshot when it is first opened.
+     * @param chatId the chat, or null for all chats
+     * @param from the first timestamp to include, epoch format, or 0 for no lower bound
+     * @param to the timestamp to stop at (exclusive), or 0 for no upper bound
+     * @param max how many messages to fetch or -1 for all
+     * @return a cursor with the messages in ascending timestamp order, keeps the database open until closed
+     * @see Whassup#queryMessages(String, long, long, int, Projection)
+     */
+    public Cursor queryMessages(String chatId, long from, long to, int max, Projection projection) throws IOException {
+        return queryMessages(new MessageQuery().chat(chatId).between(from, to).limit(max).projection(projection));
+    }
+
+    /**
+     * @return a cursor with the messages matching query in ascending timestamp order, keeps the
+     *         database open until closed
+     * @see Whassup#queryMessages(MessageQuery)
+     */
+    public Cursor queryMessages(MessageQuery query) throws IOException {
+        return query(query, null);
+    }
+
+    /**
+     * @return the messages matching query, left out blobs are loaded on demand while the session is open
+     * @see Whassup#queryMessages(MessageQuery)
+     */
+    public List<WhatsAppMessage> getMessages(MessageQuery query) throws IOException {
+        final List<WhatsAppMessage> messages = Whassup.toMessages(queryMessages(query), this);
+        if (Whassup.hasGroupMessages(messages)) {
+            getGroupIndex().attach(messages);
+        }
+        return messages;
+    }
+
+    /**
+     * Pages through the messages after timestamp in ascending timestamp order, keeping only
+     * {@link MessageIterator#DEFAULT_CHUNK_SIZE} rows in memory at a time. The session must stay
+     * open while iterating.
+     * @param timestamp a timestamp, epoch format
+     * @return the messages, to be closed by the caller if not iterated until the end
+     */
+    public MessageIterator iterateMessages(long timestamp) {
+        return iterateMessages(timestamp, MessageIterator.DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize how many rows to fetch per query
+     * @see #iterateMessages(long)
+     */
+    public MessageIterator iterateMessages(long timestamp, int chunkSize) {
+        return iterateMessages(timestamp, chunkSize, Projection.FULL);
+    }
+
+    /**
+     * @param projection which columns to fetch, left out blobs are loaded on demand while the session is open
+     * @see #iterateMessages(long)
+     */
+    public MessageIterator iterateMessages(long timestamp, int chunkSize, Projection projection) {
+        return new MessageIterator(this, false, timestamp, chunkSize, projection);
+    }
+
+    /**
+     * @param selection additional selection, with all arguments inlined
+     * @return a cursor which keeps the database open until closed
+     */
+    /* package */ Cursor query(long since, int max, Projection projection, String selection) throws IOException {
+        return query(new MessageQuery().between(Whassup.after(since), 0).limit(max).projection(projection), selection);
+    }
+
+    /**
+     * @see Whassup#query(SQLiteDatabase, MessageQuery, String)
+     */
+    /* package */ Cursor query(MessageQuery query, String selection) throws IOException {
+        acquire();
+        final Cursor cursor;
+        try {
+            cursor = Whassup.query(db, query, selection);
+        } catch (IOException e) {
+            release();
+            throw e;
+        } catch (RuntimeException e) {
+            release();
+            throw e;
+        }
+        return new CursorWrapper(cursor) {
+            private final AtomicBoolean cursorClosed = new AtomicBoolean();
+
+            @Override
+            public void close() {
+                super.close();
+                if (cursorClosed.compareAndSet(false, true)) {
+                    release();
+                }
+            }
+        };
+    }
+
+    public List<WhatsAppMessage> getMessages(long timestamp, int max) throws IOException {
+        return getMessages(timestamp, max, Projection.FULL);
+    }
+
+    /**
+     * @param projection which columns to fetch, left out blobs are loaded on demand while the session is open
+     */
+    public List<WhatsAppMessage> getMessages(long timestamp, int max, Projection projection) throws IOException {
+        final List<WhatsAppMessage> messages = Whassup.toMessages(queryMessages(timestamp, max, projection), this);
+        if (Whassup.hasGroupMessages(messages)) {
+            getGroupIndex().attach(messages);
+        }
+        return messages;
+    }
+
+    /**
+     * @see #getConversations(int)
+     */
+    public List<Conversation> getConversations() throws IOException {
+        return getConversations(0);
+    }
+
+    /**
+     * Lists the chats with their last message, most recent first. This reads one row per chat
+     * from the chat list instead of all messages.
+     * @param recent how many of the last messages of every chat to fetch as well, 0 for none
+     */
+    public List<Conversation> getConversations(int recent) throws IOException {
+        return getConversations(recent, Projection.METADATA);
+    }
+
+    /**
+     * @param projection which columns of the messages to fetch, left out blobs are loaded on demand
+     *                   while the session is open
+     * @see #getConversations(int)
+     */
+    public List<Conversation> getConversations(int recent, Projection projection) throws IOException {
+        final List<Conversation> conversations;
+        acquire();
+        try {
+            conversations = Whassup.queryConversations(db, recent, projection, this);
+        } finally {
+            release();
+        }
+        final GroupIndex groups = hasGroups(conversations) ? getGroupIndex() : null;
+        if (groups != null) {
+            for (Conversation conversation : conversations) {
+                if (conversation.getLastMessage() != null) {
+                    groups.attach(conversation.getLastMessage());
+                }
+                groups.attach(conversation.getRecentMessages());
+            }
+        }
+        return conversations;
+    }
+
+    /**
+     * @return group names and members, indexed on first use
+     * @see Whassup#getGroupIndex()
+     */
+    public synchronized GroupIndex getGroupIndex() throws IOException {
+        if (groupIndex == null) {
+            acquire();
+            try {
+                groupIndex = Whassup.toGroupIndex(Whassup.queryGroupEvents(db));
+            } finally {
+                release();
+            }
+        }
+        return groupIndex;
+    }
+
+    /**
+     * @see #search(String, String, int, int, Projection)
+     */
+    public List<SearchResult> search(String query, String chatId, int max) throws IOException {
+        return search(query, chatId, 0, max);
+    }
+
+    /**
+     * @see #search(String, String, int, int, Projection)
+     */
+    public List<SearchResult> search(String query, String chatId, int offset, int max) throws IOException {
+        return search(query, chatId, offset, max, Projection.METADATA);
+    }
+
+    /**
+     * Finds the messages containing all words of query, best matches first. The full-text index is
+     * brought up to date on first use, with a cache only messages added since the last search of the
+     * backup are indexed.
+     * @param query words to search for, case insensitive; a trailing <code>*</code> matches by prefix
+     * @param chatId the chat to search, or null for all chats
+     * @param offset how many results to skip, for paging
+     * @param max how many results to return or -1 for all
+     * @param projection which columns of the messages to fetch, left out blobs are loaded on demand
+     *                   while the session is open
+     */
+    public List<SearchResult> search(String query, String chatId, int offset, int max, Projection projection)
+            throws IOException {
+        final List<SearchIndex.Hit> hits;
+        final Map<Long, WhatsAppMessage> messages;
+        // keeps the search index open until the messages are read
+        acquire();
+        try {
+            hits = getSearchIndex().search(query, chatId, offset, max);
+            if (hits.isEmpty()) return new ArrayList<SearchResult>();
+
+            final StringBuilder ids = new StringBuilder();
+            for (SearchIndex.Hit hit : hits) {
+                ids.append(ids.length() == 0 ? "" : ",").append(hit.id);
+            }
+            messages = new HashMap<Long, WhatsAppMessage>(hits.size());
+            for (WhatsAppMessage message : Whassup.toMessages(query(new MessageQuery().projection(projection),
+                    WhatsAppMessage.Fields._ID + " IN (" + ids + ")"), this)) {
+                messages.put(message.getId(), message);
+            }
+        } finally {
+            release();
+        }
+        final List<SearchResult> results = new ArrayList<SearchResult>(hits.size());
+        for (SearchIndex.Hit hit : hits) {
+            // the shared index might have been updated from a different version of the backup
+            final WhatsAppMessage message = messages.get(hit.id);
+            if (message != null) {
+                results.add(new SearchResult(message, hit.score));
+            }
+        }
+        if (Whassup.hasGroupMessages(messages.values())) {
+            getGroupIndex().attach(messages.values());
+        }
+        return results;
+    }
+
+    public List<WhatsAppMessage> getMessages() throws IOException {
+        return getMessages(0, -1);
+    }
+
+    /**
+     * @see #getMessagesParallel(long, Projection, int, boolean)
+     */
+    public List<WhatsAppMessage> getMessagesParallel(long timestamp, boolean ordered) throws IOException {
+        return getMessagesParallel(timestamp, Projection.FULL, Runtime.getRuntime().availableProcessors(), ordered);
+    }
+
+    /**
+     * Like {@link #getMessages(long, int, Projection)}, but for large backups: the messages table
+     * is split into <code>_id</code> ranges which are read and mapped concurrently, each through a
+     * read-only connection of its own. Small backups are read in a single range.
+     * @param parallelism the maximum number of threads, e.g. the number of cores
+     * @param ordered true for ascending timestamp order (the ranges are merged), false for
+     *                ascending <code>_id</code> order, which is faster
+     */
+    public List<WhatsAppMessage> getMessagesParallel(long timestamp, Projection projection, int parallelism,
+                                                     boolean ordered) throws IOException {
+        return getMessagesParallel(timestamp, projection, parallelism, ordered, ParallelExport.MIN_RANGE_SIZE);
+    }
+
+    /* package */ List<WhatsAppMessage> getMessagesParallel(long timestamp, Projection projection, int parallelism,
+                                                            boolean ordered, int minRangeSize) throws IOException {
+        final List<WhatsAppMessage> messages;
+        acquire();
+        try {
+            messages = ParallelExport.export(db, dbFile, dbOpener, timestamp, projection, parallelism, ordered,
+                    minRangeSize, this);
+        } catch (SQLiteException e) {
+            Log.w(TAG, "error querying DB", e);
+            throw new IOException("Error querying DB: " + e.getMessage());
+        } finally {
+            release();
+        }
+        if (Whassup.hasGroupMessages(messages)) {
+            getGroupIndex().attach(messages);
+        }
+        return messages;
+    }
+
+    /**
+     * @see #sync(SyncToken, int, Projection)
+     */
+    public SyncResult sync(SyncToken token, int max) throws IOException {
+        return sync(token, max, Projection.FULL);
+    }
+
+    /**
+     * Delivers the messages added to the backup since the token was issued, in the order they were
+     * added. Every message is delivered exactly once if the next token is persisted after
+     * processing the messages, also when the backup is replaced by a restored copy with new
+     * <code>_id</code>s.
+     * @param token the token of the previous sync, {@link SyncToken#START} (or null) for the first one
+     * @param max how many messages to deliver or -1 for all
+     * @param projection which columns to fetch, has to include the message key
+     *                   (<code>key_remote_jid</code>, <code>key_from_me</code>, <code>key_id</code>)
+     */
+    public SyncResult sync(SyncToken token, int max, Projection projection) throws IOException {
+        final SyncResult result;
+        acquire();
+        try {
+            result = ChangeFeed.sync(db, token, max, projection, this);
+        } finally {
+            release();
+        }
+        if (Whassup.hasGroupMessages(result.getMessages())) {
+            getGroupIndex().attach(result.getMessages());
+        }
+        return result;
+    }
+
+    /**
+     * @return a token positioned after the newest message, to only sync messages added from now on
+     */
+    public SyncToken getLatestSyncToken() throws IOException {
+        acquire();
+        try {
+            return ChangeFeed.tail(db);
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * @return the messages after timestamp, with media blobs loaded on demand while the session is open
+     * @see Whassup#getMessageTable(long)
+     */
+    public MessageTable getMessageTable(long timestamp) throws IOException {
+        return Whassup.toTable(queryMessages(timestamp, -1, Projection.METADATA), this);
+    }
+
+    /**
+     * Loads a single blob of a message, used for messages fetched without their blobs.
+     * @throws IllegalStateException if the session has been closed
+     */
+    @Override
+    public byte[] loadBlob(long id, WhatsAppMessage.Fields column) throws IOException {
+        acquire();
+        try {
+            final Cursor cursor = db.query(WhatsAppMessage.TABLE, new String[] { column.toString() },
+                    WhatsAppMessage.Fields._ID + " = ?", new String[] { String.valueOf(id) }, null, null, null);
+            try {
+                return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException e) {
+            throw new IOException("Error loading " + column + ": " + e.getMessage());
+        } finally {
+            release();
+        }
+    }
+
+    private synchronized SearchIndex getSearchIndex() throws IOException {
+        if (searchIndex == null) {
+            acquire();
+            try {
+                File file = searchIndexFile;
+                if (file == null) {
+                    searchIndexTmp = file = File.createTempFile("search", ".db");
+                }
+                final SearchIndex index = new SearchIndex(file);
+                try {
+                    index.update(db);
+                } catch (IOException e) {
+                    index.close();
+                    throw e;
+                }
+                searchIndex = index;
+            } finally {
+                release();
+            }
+        }
+        return searchIndex;
+    }
+
+    private static boolean hasGroups(List<Conversation> conversations) {
+        for (Conversation conversation : conversations) {
+            if (conversation.isGroup()) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return false once the session has been closed (cursors might still be open)
+     */
+    public boolean isOpen() {
+        return !closed.get();
+    }
+
+    /* package */ File getDbFile() {
+        return dbFile;
+    }
+
+    /**
+     * Closes the session, the database is closed once all cursors are closed as well.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            release();
+        }
+    }
+
+    private void acquire() {
+        while (true) {
+            final int count = references.get();
+            if (count == 0 || closed.get()) {
+                throw new IllegalStateException("session has been closed");
+            }
+            if (references.compareAndSet(count, count + 1)) return;
+        }
+    }
+
+    private void release() {
+        if (references.decrementAndGet() == 0) {
+            Log.d(TAG, "closing database " + dbFile);
+            db.close();
+            closeSearchIndex();
+            release(dbFile, snapshotCache);
+        }
+    }
+
+    private synchronized void closeSearchIndex() {
+        if (searchIndex != null) {
+            searchIndex.close();
+            searchIndex = null;
+        }
+        if (searchIndexTmp != null && !searchIndexTmp.delete()) {
+            Log.w(TAG, "could not delete search index " + searchIndexTmp);
+        }
+    }
+
+    /* package */ static void release(File dbFile, SnapshotCache snapshotCache) {
+        if (snapshotCache != null) {
+            snapshotCache.releaseSnapshot(dbFile);
+        } else if (!dbFile.delete()) {
+            Log.w(TAG, "could not delete database " + dbFile);
+        }
+    }
+}
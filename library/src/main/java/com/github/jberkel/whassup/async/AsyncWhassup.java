@@ -0,0 +1,117 @@
+package com.github.jberkel.whassup.async;
+
+import com.github.jberkel.whassup.SyncResult;
+import com.github.jberkel.whassup.SyncToken;
+import com.github.jberkel.whassup.Whassup;
+import com.github.jberkel.whassup.model.Conversation;
+import com.github.jberkel.whassup.model.MessageQuery;
+import com.github.jberkel.whassup.model.SearchResult;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs the blocking calls of {@link Whassup} on an executor, so decryption and row mapping stay
+ * off the calling (e.g. main) thread. Failures are reported by {@link Future#get()} as an
+ * {@link java.util.concurrent.ExecutionException} with the <code>IOException</code> as cause.
+ */
+public class AsyncWhassup {
+    private final Whassup whassup;
+    private final Executor executor;
+
+    /**
+     * @param executor where to run the calls, e.g. {@link java.util.concurrent.Executors#newSingleThreadExecutor()}
+     */
+    public AsyncWhassup(Whassup whassup, Executor executor) {
+        if (whassup == null) throw new IllegalArgumentException("whassup cannot be null");
+        if (executor == null) throw new IllegalArgumentException("executor cannot be null");
+        this.whassup = whassup;
+        this.executor = executor;
+    }
+
+    /**
+     * @see Whassup#getMessages()
+     */
+    public Future<List<WhatsAppMessage>> getMessages() {
+        return getMessages(0, -1);
+    }
+
+    /**
+     * @see Whassup#getMessages(long, int)
+     */
+    public Future<List<WhatsAppMessage>> getMessages(final long timestamp, final int max) {
+        return submit(new Callable<List<WhatsAppMessage>>() {
+            @Override
+            public List<WhatsAppMessage> call() throws Exception {
+                return whassup.getMessages(timestamp, max);
+            }
+        });
+    }
+
+    /**
+     * @see Whassup#getMessages(MessageQuery)
+     */
+    public Future<List<WhatsAppMessage>> getMessages(final MessageQuery query) {
+        return submit(new Callable<List<WhatsAppMessage>>() {
+            @Override
+            public List<WhatsAppMessage> call() throws Exception {
+                return whassup.getMessages(query);
+            }
+        });
+    }
+
+    /**
+     * @see Whassup#getConversations(int)
+     */
+    public Future<List<Conversation>> getConversations(final int recent) {
+        return submit(new Callable<List<Conversation>>() {
+            @Override
+            public List<Conversation> call() throws Exception {
+                return whassup.getConversations(recent);
+            }
+        });
+    }
+
+    /**
+     * @see Whassup#search(String, String, int, int)
+     */
+    public Future<List<SearchResult>> search(final String query, final String chatId, final int offset,
+                                             final int max) {
+        return submit(new Callable<List<SearchResult>>() {
+            @Override
+            public List<SearchResult> call() throws Exception {
+                return whassup.search(query, chatId, offset, max);
+            }
+        });
+    }
+
+    /**
+     * @see Whassup#sync(SyncToken, int)
+     */
+    public Future<SyncResult> sync(final SyncToken token, final int max) {
+        return submit(new Callable<SyncResult>() {
+            @Override
+            public SyncResult call() throws Exception {
+                return whassup.sync(token, max);
+            }
+        });
+    }
+
+    /**
+     * Streams the messages after timestamp with backpressure, see {@link MessagePublisher}.
+     * @param timestamp a timestamp, epoch format
+     */
+    public Publisher<WhatsAppMessage> publishMessages(long timestamp) {
+        return new MessagePublisher(whassup, timestamp, executor);
+    }
+
+    private <T> Future<T> submit(Callable<T> callable) {
+        final FutureTask<T> task = new FutureTask<T>(callable);
+        executor.execute(task);
+        return task;
+    }
+}
@@ -0,0 +1,185 @@
+package com.github.jberkel.whassup.async;
+
+import android.util.Log;
+import com.github.jberkel.whassup.MessageIterator;
+import com.github.jberkel.whassup.Whassup;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the messages after a timestamp in ascending timestamp order, see
+ * {@link Whassup#iterateMessages(long)}. The backup is decrypted and read on the executor, and
+ * only as far as the subscriber requested: a slow subscriber pauses the query, at most one chunk
+ * of messages is held in memory.
+ * <p>
+ * Every subscription reads the backup again.
+ */
+public class MessagePublisher implements Publisher<WhatsAppMessage> {
+    private static final String TAG = MessagePublisher.class.getSimpleName();
+
+    private final Whassup whassup;
+    private final long timestamp;
+    private final Executor executor;
+
+    /**
+     * @param timestamp a timestamp, epoch format
+     * @param executor where to decrypt, query and call the subscriber
+     */
+    public MessagePublisher(Whassup whassup, long timestamp, Executor executor) {
+        this.whassup = whassup;
+        this.timestamp = timestamp;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super WhatsAppMessage> subscriber) {
+        if (subscriber == null) throw new NullPointerException("subscriber cannot be null");
+        new MessageSubscription(subscriber).start();
+    }
+
+    private class MessageSubscription implements Subscription, Runnable {
+        private final Subscriber<? super WhatsAppMessage> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean cancelled = new AtomicBoolean();
+        private volatile Throwable invalidRequest;
+
+        // only accessed by the drain loop
+        private boolean subscribed;
+        private boolean done;
+        private MessageIterator iterator;
+
+        MessageSubscription(Subscriber<? super WhatsAppMessage> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void start() {
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("request must be positive: " + n);
+            } else {
+                while (true) {
+                    final long current = requested.get();
+                    final long sum = current + n < 0 ? Long.MAX_VALUE : current + n;
+                    if (requested.compareAndSet(current, sum)) break;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if (cancelled.compareAndSet(false, true)) {
+                drain();
+            }
+        }
+
+        /**
+         * Makes sure {@link #run()} runs once more; signals never overlap.
+         */
+        private void drain() {
+            if (pending.getAndIncrement() != 0) return;
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "executor rejected subscription", e);
+                pending.set(0);
+                if (!done) {
+                    done = true;
+                    subscriber.onError(e);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (true) {
+                try {
+                    emit();
+                } catch (RuntimeException e) {
+                    // the subscriber broke the contract, stop signalling it but release the backup
+                    Log.w(TAG, "error in subscriber " + subscriber, e);
+                    finish();
+                }
+                missed = pending.addAndGet(-missed);
+                if (missed == 0) break;
+            }
+        }
+
+        private void emit() {
+            if (done) return;
+            if (!subscribed) {
+                subscribed = true;
+                subscriber.onSubscribe(this);
+            }
+            if (cancelled.get()) {
+                finish();
+                return;
+            }
+            if (invalidRequest != null) {
+                finish();
+                subscriber.onError(invalidRequest);
+                return;
+            }
+            final long n = requested.get();
+            if (n == 0) return;
+            try {
+                if (iterator == null) {
+                    iterator = whassup.iterateMessages(timestamp);
+                }
+                long emitted = 0;
+                while (emitted != n && hasNext()) {
+                    if (cancelled.get()) {
+                        finish();
+                        return;
+                    }
+                    subscriber.onNext(iterator.next());
+                    emitted++;
+                }
+                if (n != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+                if (!hasNext()) {
+                    finish();
+                    subscriber.onComplete();
+                }
+            } catch (IOException e) {
+                finish();
+                subscriber.onError(e);
+            }
+        }
+
+        /**
+         * Unwraps read errors of the iterator, so that only exceptions thrown by the subscriber escape.
+         */
+        private boolean hasNext() throws IOException {
+            try {
+                return iterator.hasNext();
+            } catch (IllegalStateException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                final IOException error = new IOException(e.getMessage());
+                error.initCause(e);
+                throw error;
+            }
+        }
+
+        private void finish() {
+            done = true;
+            if (iterator != null) {
+                iterator.close();
+                iterator = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.github.jberkel.whassup.async;
+
+/**
+ * A source of items which are only produced as fast as the subscriber requests them, following
+ * the contract of <a href="http://www.reactive-streams.org/">Reactive Streams</a>.
+ */
+public interface Publisher<T> {
+    /**
+     * Starts a new stream for the subscriber, which is told about it by
+     * {@link Subscriber#onSubscribe(Subscription)}. No items are sent before they are requested.
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+}
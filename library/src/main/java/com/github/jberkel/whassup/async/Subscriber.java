@@ -0,0 +1,24 @@
+package com.github.jberkel.whassup.async;
+
+/**
+ * Receives the items of a {@link Publisher}. The methods are called one at a time, but not
+ * necessarily from the same thread.
+ */
+public interface Subscriber<T> {
+    /**
+     * Called first, request items with {@link Subscription#request(long)}.
+     */
+    void onSubscribe(Subscription subscription);
+
+    void onNext(T item);
+
+    /**
+     * Called once if the stream failed, nothing is sent afterwards.
+     */
+    void onError(Throwable error);
+
+    /**
+     * Called once after the last item.
+     */
+    void onComplete();
+}
@@ -0,0 +1,17 @@
+package com.github.jberkel.whassup.async;
+
+/**
+ * The link between a {@link Publisher} and one of its subscribers.
+ */
+public interface Subscription {
+    /**
+     * @param n how many more items the subscriber can take, has to be positive; requests add up,
+     *          {@link Long#MAX_VALUE} means no limit
+     */
+    void request(long n);
+
+    /**
+     * Stops the stream and releases its resources, may still be followed by items already on their way.
+     */
+    void cancel();
+}
@@ -0,0 +1,126 @@
+package com.github.jberkel.whassup.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Identifies the contents of an encrypted backup without reading all of it: path, size,
+ * modification time and a CRC32 of the first and last {@link #SAMPLE_SIZE} bytes.
+ */
+public final class Fingerprint {
+    /* package */ static final int SAMPLE_SIZE = 64 * 1024;
+
+    private final String path;
+    private final long length;
+    private final long lastModified;
+    private final long contentHash;
+
+    /* package */ Fingerprint(String path, long length, long lastModified, long contentHash) {
+        this.path = path;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.contentHash = contentHash;
+    }
+
+    public static Fingerprint of(File file) throws IOException {
+        if (file == null) throw new IllegalArgumentException("file cannot be null");
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long length = raf.length();
+            final CRC32 crc = new CRC32();
+            final byte[] buffer = new byte[(int) Math.min(SAMPLE_SIZE, length)];
+            raf.readFully(buffer);
+            crc.update(buffer);
+            if (length > SAMPLE_SIZE) {
+                final long tail = Math.max(SAMPLE_SIZE, length - SAMPLE_SIZE);
+                final int n = (int) (length - tail);
+                raf.seek(tail);
+                raf.readFully(buffer, 0, n);
+                crc.update(buffer, 0, n);
+            }
+            return new Fingerprint(file.getAbsolutePath(), length, file.lastModified(), crc.getValue());
+        } finally {
+            raf.close();
+        }
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public long getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * @return a key which is shared by all fingerprints of the same path
+     */
+    public String getPathKey() {
+        return getPathKey(path);
+    }
+
+    /**
+     * @return the {@link #getPathKey()} of all fingerprints of file, without reading it
+     */
+    public static String getPathKey(File file) {
+        return getPathKey(file.getAbsolutePath());
+    }
+
+    private static String getPathKey(String path) {
+        CRC32 crc = new CRC32();
+        crc.update(path.getBytes());
+        return Long.toHexString(crc.getValue());
+    }
+
+    /**
+     * @return a key unique to this fingerprint, prefixed with {@link #getPathKey()}, safe to use as a file name
+     */
+    public String getKey() {
+        return getPathKey() + "-" +
+                Long.toHexString(length) + "-" +
+                Long.toHexString(lastModified) + "-" +
+                Long.toHexString(contentHash);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Fingerprint that = (Fingerprint) o;
+        return length == that.length &&
+               lastModified == that.lastModified &&
+               contentHash == that.contentHash &&
+               path.equals(that.path);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = path.hashCode();
+        result = 31 * result + (int) (length ^ (length >>> 32));
+        result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+        result = 31 * result + (int) (contentHash ^ (contentHash >>> 32));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "Fingerprint{" +
+                "path='" + path + '\'' +
+                ", length=" + length +
+                ", lastModified=" + lastModified +
+                ", contentHash=" + Long.toHexString(contentHash) +
+                '}';
+    }
+}
@@ -0,0 +1,414 @@
+package com.github.jberkel.whassup.cache;
+
+import android.util.Log;
+import com.github.jberkel.whassup.crypto.DBDecryptor;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps decrypted copies of backups on disk, keyed by the {@link Fingerprint} of the encrypted
+ * input. A backup is only decrypted again once its fingerprint changes. Snapshots survive
+ * process restarts; the least recently used ones are evicted when the cache grows beyond
+ * its size budget.
+ * <p>
+ * In incremental mode a pristine copy of every snapshot is kept next to it. The pristine copy of the
+ * previous version of a backup is patched in place with only the chunks which changed, see
+ * {@link DBDecryptor#decryptIncremental(File, File, File)}, and then copied to the new snapshot,
+ * which callers are free to modify (e.g. by adding indexes). Only the decryption is incremental,
+ * the copy still reads and writes the whole file.
+ * <p>
+ * Search indexes are kept per backup path and outlive its snapshots. They count towards the size
+ * budget and are evicted together with the last snapshot of their backup.
+ */
+public class SnapshotCache {
+    private static final String TAG = SnapshotCache.class.getSimpleName();
+
+    /* package */ static final String SUFFIX = ".db";
+    private static final String DIGESTS_SUFFIX = ".sums";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String SEARCH_SUFFIX = ".search";
+    private static final String PRISTINE_SUFFIX = ".plain";
+
+    private final File directory;
+    private final long maxBytes;
+    private volatile boolean incremental;
+    /** snapshots which are in use, with their reference count */
+    private final Map<File, Integer> pinned = new HashMap<File, Integer>();
+
+    /**
+     * @param directory where to store the snapshots, will be created if necessary
+     * @param maxBytes the disk space budget for all snapshots
+     */
+    public SnapshotCache(File directory, long maxBytes) {
+        if (directory == null) throw new IllegalArgumentException("directory cannot be null");
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive");
+
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param input the encrypted backup
+     * @param decryptor used to decrypt the backup if there is no up to date snapshot
+     * @return the decrypted snapshot; the file is owned by the cache and must not be deleted
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public synchronized File getSnapshot(File input, DBDecryptor decryptor) throws IOException, GeneralSecurityException {
+        final Fingerprint fingerprint = Fingerprint.of(input);
+        final File snapshot = snapshotFile(fingerprint);
+
+        if (snapshot.exists()) {
+            Log.d(TAG, "using cached snapshot " + snapshot);
+            touch(snapshot);
+            return snapshot;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create cache directory " + directory);
+        }
+        Log.d(TAG, "creating snapshot " + snapshot + " for " + fingerprint);
+        final File tmp = new File(directory, fingerprint.getKey() + TMP_SUFFIX);
+        final File digests = digestsFile(snapshot);
+        final File pristine = pristineFile(snapshot);
+        try {
+            if (incremental) {
+                reusePrevious(fingerprint, tmp, digests);
+                int chunks = decryptor.decryptIncremental(input, tmp, digests);
+                Log.d(TAG, "decrypted " + chunks + " chunk(s)");
+                rename(tmp, pristine);
+                copy(pristine, tmp);
+            } else {
+                decryptor.decryptDB(input, tmp);
+            }
+            rename(tmp, snapshot);
+        } finally {
+            if (!snapshot.exists()) {
+                deleteFile(digests);
+                deleteFile(pristine);
+            }
+            deleteFile(tmp);
+        }
+        removeStale(fingerprint, snapshot);
+        evict(snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Like {@link #getSnapshot(File, DBDecryptor)}, but the snapshot stays on disk and unchanged
+     * until it is released, so a database can be kept open on it.
+     * @see #releaseSnapshot(File)
+     */
+    public synchronized File acquireSnapshot(File input, DBDecryptor decryptor) throws IOException, GeneralSecurityException {
+        final File snapshot = getSnapshot(input, decryptor);
+        final Integer count = pinned.get(snapshot);
+        pinned.put(snapshot, count == null ? 1 : count + 1);
+        return snapshot;
+    }
+
+    /**
+     * @param snapshot a snapshot returned by {@link #acquireSnapshot(File, DBDecryptor)}
+     */
+    public synchronized void releaseSnapshot(File snapshot) {
+        final Integer count = pinned.get(snapshot);
+        if (count == null) {
+            throw new IllegalStateException("snapshot " + snapshot + " is not acquired");
+        } else if (count == 1) {
+            pinned.remove(snapshot);
+        } else {
+            pinned.put(snapshot, count - 1);
+        }
+    }
+
+    /**
+     * Marks a snapshot as changed by the caller, e.g. by adding indexes. Call this before changing
+     * it. Snapshots with a pristine copy stay incremental, the copy is patched instead; others are
+     * never patched, the next version of the backup is decrypted completely.
+     * @param snapshot a snapshot returned by this cache
+     */
+    public synchronized void markModified(File snapshot) {
+        if (!pristineFile(snapshot).exists()) {
+            deleteFile(digestsFile(snapshot));
+        }
+    }
+
+    /**
+     * @param input the encrypted backup
+     * @return where to keep the search index of all versions of input, the file might not exist yet
+     * @throws IOException if the cache directory cannot be created
+     */
+    public File getSearchIndexFile(File input) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("could not create cache directory " + directory);
+        }
+        return new File(directory, Fingerprint.getPathKey(input) + SEARCH_SUFFIX);
+    }
+
+    /**
+     * @param incremental if true, refresh snapshots by patching the previous version of the backup
+     *                    instead of decrypting everything. This keeps a pristine copy of every
+     *                    snapshot, doubling the disk space needed. Snapshots themselves are never patched:
+     *                    a refresh decrypts only the changed chunks, but then copies the whole pristine
+     *                    file to the new snapshot, and {@link com.github.jberkel.whassup.Whassup} builds
+     *                    its indexes on that copy again. This saves the decryption work (CPU), the I/O of
+     *                    a refresh remains proportional to the size of the backup.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * @return if there is a snapshot matching the current state of input
+     */
+    public boolean contains(File input) throws IOException {
+        return snapshotFile(Fingerprint.of(input)).exists();
+    }
+
+    /**
+     * @return the combined size of all snapshots and search indexes, in bytes
+     */
+    public long size() {
+        long size = 0;
+        for (File snapshot : snapshots()) {
+            size += sizeOf(snapshot);
+        }
+        for (File index : files(SEARCH_SUFFIX)) {
+            size += index.length();
+        }
+        return size;
+    }
+
+    public synchronized void clear() {
+        for (File snapshot : snapshots()) {
+            delete(snapshot);
+        }
+        for (File pristine : files(PRISTINE_SUFFIX)) {
+            delete(snapshotOf(pristine));
+        }
+        for (File index : files(SEARCH_SUFFIX)) {
+            deleteFile(index);
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /* package */ File snapshotFile(Fingerprint fingerprint) {
+        return new File(directory, fingerprint.getKey() + SUFFIX);
+    }
+
+    /* package */ static File digestsFile(File snapshot) {
+        return withSuffix(snapshot, SUFFIX, DIGESTS_SUFFIX);
+    }
+
+    /* package */ static File pristineFile(File snapshot) {
+        return withSuffix(snapshot, SUFFIX, PRISTINE_SUFFIX);
+    }
+
+    private static File snapshotOf(File pristine) {
+        return withSuffix(pristine, PRISTINE_SUFFIX, SUFFIX);
+    }
+
+    private static File withSuffix(File file, String suffix, String newSuffix) {
+        String name = file.getName();
+        return new File(file.getParentFile(), name.substring(0, name.length() - suffix.length()) + newSuffix);
+    }
+
+    /**
+     * Moves the most recent pristine copy of an earlier version of the backup (and its digests) to target, so
+     * it can be patched. Pristine copies are never opened, so the snapshots they belong to may be acquired.
+     */
+    private void reusePrevious(Fingerprint fingerprint, File target, File digests) {
+        final String prefix = fingerprint.getPathKey() + "-";
+        File previous = null;
+        for (File pristine : files(PRISTINE_SUFFIX)) {
+            if (pristine.getName().startsWith(prefix) &&
+                digestsFile(snapshotOf(pristine)).exists() &&
+                (previous == null || pristine.lastModified() > previous.lastModified())) {
+                previous = pristine;
+            }
+        }
+        if (previous != null) {
+            Log.d(TAG, "refreshing snapshot " + previous + " incrementally");
+            if (!previous.renameTo(target) || !digestsFile(snapshotOf(previous)).renameTo(digests)) {
+                Log.w(TAG, "could not reuse snapshot " + previous);
+                deleteFile(target);
+                deleteFile(digests);
+            }
+        }
+    }
+
+    /**
+     * Snapshots of earlier versions of the same backup will never be used again, unless they
+     * are still acquired.
+     */
+    private void removeStale(Fingerprint fingerprint, File current) {
+        final String prefix = fingerprint.getPathKey() + "-";
+        for (File snapshot : snapshots()) {
+            if (snapshot.getName().startsWith(prefix) && !snapshot.equals(current) && !pinned.containsKey(snapshot)) {
+                Log.d(TAG, "removing stale snapshot " + snapshot);
+                delete(snapshot);
+            }
+        }
+        for (File pristine : files(PRISTINE_SUFFIX)) {
+            final File snapshot = snapshotOf(pristine);
+            if (pristine.getName().startsWith(prefix) && !snapshot.equals(current) && !snapshot.exists()) {
+                delete(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Deletes the least recently used snapshots until the cache fits into its budget. Search
+     * indexes go with the last snapshot of their backup.
+     * @param keep a snapshot which must not be evicted
+     */
+    private void evict(File keep) {
+        File[] snapshots = snapshots();
+        long size = 0;
+        for (File snapshot : snapshots) {
+            size += sizeOf(snapshot);
+        }
+        for (File index : files(SEARCH_SUFFIX)) {
+            size += index.length();
+        }
+        if (size <= maxBytes) return;
+
+        for (File index : files(SEARCH_SUFFIX)) {
+            if (!hasSnapshot(pathKeyOf(index))) {
+                size -= evictSearchIndex(index);
+            }
+        }
+
+        Arrays.sort(snapshots, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified(), r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File snapshot : snapshots) {
+            if (size <= maxBytes) break;
+            if (snapshot.equals(keep) || pinned.containsKey(snapshot)) continue;
+
+            final long length = sizeOf(snapshot);
+            Log.d(TAG, "evicting snapshot " + snapshot);
+            if (delete(snapshot)) {
+                size -= length;
+                final String pathKey = pathKeyOf(snapshot);
+                if (!hasSnapshot(pathKey)) {
+                    size -= evictSearchIndex(new File(directory, pathKey + SEARCH_SUFFIX));
+                }
+            }
+        }
+    }
+
+    /**
+     * @return how many bytes were freed
+     */
+    private static long evictSearchIndex(File index) {
+        final long length = index.length();
+        if (length == 0) return 0;
+        Log.d(TAG, "evicting search index " + index);
+        return deleteFile(index) ? length : 0;
+    }
+
+    private boolean hasSnapshot(String pathKey) {
+        final String prefix = pathKey + "-";
+        for (File snapshot : snapshots()) {
+            if (snapshot.getName().startsWith(prefix)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the {@link Fingerprint#getPathKey()} a snapshot or search index belongs to
+     */
+    private static String pathKeyOf(File file) {
+        final String name = file.getName();
+        final int dash = name.indexOf('-');
+        return name.substring(0, dash >= 0 ? dash : name.lastIndexOf('.'));
+    }
+
+    private File[] snapshots() {
+        return files(SUFFIX);
+    }
+
+    private File[] files(final String suffix) {
+        File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(suffix);
+            }
+        });
+        return files == null ? new File[0] : files;
+    }
+
+    private static long sizeOf(File snapshot) {
+        return snapshot.length() + digestsFile(snapshot).length() + pristineFile(snapshot).length();
+    }
+
+    private static boolean delete(File snapshot) {
+        deleteFile(digestsFile(snapshot));
+        deleteFile(pristineFile(snapshot));
+        return deleteFile(snapshot);
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            throw new IOException("could not rename " + from + " to " + to);
+        }
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        final FileInputStream in = new FileInputStream(from);
+        try {
+            final FileOutputStream out = new FileOutputStream(to);
+            try {
+                final FileChannel source = in.getChannel();
+                final long size = source.size();
+                long position = 0;
+                while (position < size) {
+                    position += source.transferTo(position, size - position, out.getChannel());
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static boolean deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "could not delete " + file);
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+    private static void touch(File snapshot) {
+        if (!snapshot.setLastModified(System.currentTimeMillis())) {
+            Log.w(TAG, "could not update access time of " + snapshot);
+        }
+    }
+}
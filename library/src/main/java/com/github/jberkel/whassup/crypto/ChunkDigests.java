@@ -0,0 +1,96 @@
+package com.github.jberkel.whassup.crypto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Per-chunk digests of an encrypted database, used by
+ * {@link DBDecryptor#decryptIncremental(File, File, File)} to find the chunks which changed.
+ */
+/* package */ class ChunkDigests {
+    /* package */ static final String ALGORITHM = "MD5";
+    private static final int MAGIC = 0x57484353; // WHCS
+    private static final int DIGEST_LENGTH = 16;
+
+    private final int chunkSize;
+    private final long length;
+    private final byte[][] digests;
+
+    /* package */ ChunkDigests(int chunkSize, long length, int count) {
+        this.chunkSize = chunkSize;
+        this.length = length;
+        this.digests = new byte[count][];
+    }
+
+    /* package */ byte[] get(int chunk) {
+        return digests[chunk];
+    }
+
+    /* package */ void set(int chunk, byte[] digest) {
+        digests[chunk] = digest;
+    }
+
+    /**
+     * The last chunk contains the padding and is never reusable.
+     */
+    /* package */ boolean isReusable(int chunk) {
+        return chunk < digests.length - 1;
+    }
+
+    /**
+     * @return the digests stored in file or null if the file does not exist, is truncated or
+     * does not match chunkSize
+     */
+    /* package */ static ChunkDigests read(File file, int chunkSize) throws IOException {
+        if (!file.exists()) return null;
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != chunkSize) {
+                return null;
+            }
+            final long length = in.readLong();
+            final int count = in.readInt();
+            ChunkDigests digests = new ChunkDigests(chunkSize, length, count);
+            for (int i = 0; i < count; i++) {
+                byte[] digest = new byte[DIGEST_LENGTH];
+                in.readFully(digest);
+                digests.set(i, digest);
+            }
+            return digests;
+        } catch (EOFException e) {
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the digests to a temporary file first, so readers never see a partially written file.
+     */
+    /* package */ void write(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(chunkSize);
+            out.writeLong(length);
+            out.writeInt(digests.length);
+            for (byte[] digest : digests) {
+                out.write(digest);
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("could not rename " + tmp + " to " + file);
+        }
+    }
+}
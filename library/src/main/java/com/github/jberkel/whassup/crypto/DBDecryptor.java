@@ -1,21 +1,63 @@
 package com.github.jberkel.whassup.crypto;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
+import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.spec.SecretKeySpec;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DBDecryptor {
     private static final String HEXKEY = "346a23652a46392b4d73257c67317e352e3372482177652c";
     private static final String CRYPTO_SPEC = "AES";
+    private static final String CRYPTO_SPEC_NO_PADDING = "AES/ECB/NoPadding";
+    private static final int BLOCK_SIZE = 16;
+
+    /** how much of the input to map into memory at once */
+    private static final long MAP_WINDOW = 32 * 1024 * 1024;
+    /** size of the direct buffer the plaintext is written from */
+    private static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * default chunk size used for incremental and parallel decryption,
+     * must be a multiple of the AES block size
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private final int chunkSize;
+    private final Throughput throughput = new Throughput();
+
+    public DBDecryptor() {
+        this(CHUNK_SIZE);
+    }
+
+    /* package */ DBDecryptor(int chunkSize) {
+        if (chunkSize <= 0 || chunkSize % BLOCK_SIZE != 0) {
+            throw new IllegalArgumentException("chunkSize must be a positive multiple of " + BLOCK_SIZE);
+        }
+        this.chunkSize = chunkSize;
+    }
 
     public void decryptDB(File input, File output) throws IOException, GeneralSecurityException {
         if (input == null)  throw new IllegalArgumentException("input cannot be null");
@@ -25,56 +67,360 @@ public class DBDecryptor {
     }
 
     /**
+     * Decrypts from the current position of in to the end, without copying the data through the heap: the
+     * input is memory mapped and decrypted into a direct buffer which is written to out.
+     *
+     * @param in encrypted input, will not be closed
+     * @param out where to write the plaintext to, starting at its current position; will not be closed
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public void decryptChannel(FileChannel in, FileChannel out) throws IOException, GeneralSecurityException {
+        transformChannel(getCipher(Cipher.DECRYPT_MODE), in, out);
+    }
+
+    /**
+     * Decrypts input using several threads. ECB has no chaining, so the input is split into
+     * block aligned chunks which are decrypted independently (one {@link Cipher} per worker) and
+     * written to their offset in output.
+     *
+     * @param parallelism the number of threads to use
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public void decryptDB(File input, File output, int parallelism) throws IOException, GeneralSecurityException {
+        if (input == null)  throw new IllegalArgumentException("input cannot be null");
+        if (output == null) throw new IllegalArgumentException("output cannot be null");
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be at least 1");
+
+        final long start = System.nanoTime();
+        final FileInputStream fis = new FileInputStream(input);
+        final RandomAccessFile raf;
+        try {
+            raf = new RandomAccessFile(output, "rw");
+        } catch (IOException e) {
+            fis.close();
+            throw e;
+        }
+        final FileChannel in = fis.getChannel();
+        final FileChannel out = raf.getChannel();
+        final ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        final long length;
+        try {
+            length = in.size();
+            if (length == 0 || length % BLOCK_SIZE != 0) {
+                throw new IllegalBlockSizeException("input length " + length + " is not a multiple of " + BLOCK_SIZE);
+            }
+            out.truncate(0);
+
+            final int count = (int) ((length + chunkSize - 1) / chunkSize);
+            final AtomicInteger next = new AtomicInteger();
+            final List<Future<Long>> workers = new ArrayList<Future<Long>>(parallelism);
+            for (int i = 0; i < Math.min(parallelism, count); i++) {
+                workers.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return decryptChunks(in, out, length, count, next);
+                    }
+                }));
+            }
+            long plainLength = -1;
+            for (Future<Long> worker : workers) {
+                plainLength = Math.max(plainLength, await(worker));
+            }
+            out.truncate(plainLength);
+        } finally {
+            executor.shutdownNow();
+            try {
+                fis.close();
+                raf.close();
+            } catch (IOException ignored) {}
+        }
+        throughput.add(length, System.nanoTime() - start);
+    }
+
+    /**
+     * File streams are decrypted with {@link #decryptChannel(FileChannel, FileChannel)}.
+     *
      * @param in encrypted input stream, will be closed automatically
      * @param out the outputstream to write decrypted data to, will be closed automatically
      * @throws GeneralSecurityException
      * @throws IOException
      */
     public void decryptStream(InputStream in, OutputStream out) throws GeneralSecurityException, IOException {
-        Cipher cipher = getCipher(Cipher.DECRYPT_MODE);
-        CipherInputStream cis = null;
+        transformStream(Cipher.DECRYPT_MODE, in, out);
+    }
+
+    public void encryptDB(File input, File output) throws IOException, GeneralSecurityException {
+        if (input == null ) throw new IllegalArgumentException("input cannot be null");
+        if (output == null) throw new IllegalArgumentException("output cannot be null");
+
+        encryptStream(new FileInputStream(input), new FileOutputStream(output));
+    }
+
+    /**
+     * Encrypts the stream using a fixed amount of memory, the counterpart of
+     * {@link #decryptStream(InputStream, OutputStream)}. File streams are encrypted with
+     * {@link #encryptChannel(FileChannel, FileChannel)}.
+     *
+     * @param in plaintext input stream, will be closed automatically
+     * @param out the outputstream to write encrypted data to, will be closed automatically
+     * @throws GeneralSecurityException
+     * @throws IOException
+     */
+    public void encryptStream(InputStream in, OutputStream out) throws GeneralSecurityException, IOException {
+        transformStream(Cipher.ENCRYPT_MODE, in, out);
+    }
+
+    /**
+     * Encrypts from the current position of in to the end, the counterpart of
+     * {@link #decryptChannel(FileChannel, FileChannel)}.
+     *
+     * @param in plaintext input, will not be closed
+     * @param out where to write the ciphertext to, starting at its current position; will not be closed
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public void encryptChannel(FileChannel in, FileChannel out) throws IOException, GeneralSecurityException {
+        transformChannel(getCipher(Cipher.ENCRYPT_MODE), in, out);
+    }
+
+    /**
+     * Decrypts input into output, reusing the plaintext already present in output. The database is
+     * encrypted in ECB mode, so an unchanged chunk of ciphertext always decrypts to the same plaintext: only
+     * chunks whose digest differs from the one recorded in digests are decrypted and written to output.
+     * Falls back to a full decryption if output or digests do not exist.
+     *
+     * @param input the encrypted database
+     * @param output a previous decryption of input (possibly of an older version), will be patched in place
+     * @param digests chunk digests of the ciphertext output was decrypted from, will be updated
+     * @return the number of chunks which had to be decrypted
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public int decryptIncremental(File input, File output, File digests) throws IOException, GeneralSecurityException {
+        if (input == null)   throw new IllegalArgumentException("input cannot be null");
+        if (output == null)  throw new IllegalArgumentException("output cannot be null");
+        if (digests == null) throw new IllegalArgumentException("digests cannot be null");
+
+        final long start = System.nanoTime();
+        final ChunkDigests previous = output.exists() ? ChunkDigests.read(digests, chunkSize) : null;
+        final RandomAccessFile in = new RandomAccessFile(input, "r");
+        final RandomAccessFile out;
         try {
-            cis = new CipherInputStream(in, cipher);
-            byte[] buffer = new byte[8192];
-            int n;
-            while ((n = cis.read(buffer)) != -1)  {
-                out.write(buffer, 0, n);
+            out = new RandomAccessFile(output, "rw");
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        final ChunkDigests current;
+        final long length;
+        int decrypted = 0;
+        try {
+            length = in.length();
+            if (length == 0 || length % BLOCK_SIZE != 0) {
+                throw new IllegalBlockSizeException("input length " + length + " is not a multiple of " + BLOCK_SIZE);
+            }
+            final int count = (int) ((length + chunkSize - 1) / chunkSize);
+            final Cipher chunkCipher = getCipher(Cipher.DECRYPT_MODE, CRYPTO_SPEC_NO_PADDING);
+            final Cipher finalCipher = getCipher(Cipher.DECRYPT_MODE, CRYPTO_SPEC);
+            final MessageDigest md = MessageDigest.getInstance(ChunkDigests.ALGORITHM);
+            final byte[] buffer = new byte[chunkSize];
+            final byte[] plain  = new byte[chunkSize];
+
+            current = new ChunkDigests(chunkSize, length, count);
+            for (int i = 0; i < count; i++) {
+                final int n = (int) Math.min(chunkSize, length - (long) i * chunkSize);
+                in.readFully(buffer, 0, n);
+                md.update(buffer, 0, n);
+                current.set(i, md.digest());
+
+                final boolean last = i == count - 1;
+                if (!last && previous != null && previous.isReusable(i) &&
+                        Arrays.equals(previous.get(i), current.get(i))) {
+                    continue;
+                }
+                final int m = last ? finalCipher.doFinal(buffer, 0, n, plain) :
+                                     chunkCipher.update(buffer, 0, n, plain);
+                out.seek((long) i * chunkSize);
+                out.write(plain, 0, m);
+                if (last) {
+                    out.setLength((long) i * chunkSize + m);
+                }
+                decrypted++;
             }
         } finally {
             try {
-                if (cis != null) cis.close();
+                in.close();
                 out.close();
             } catch (IOException ignored) {}
         }
+        current.write(digests);
+        throughput.add(length, System.nanoTime() - start);
+        return decrypted;
     }
 
-    private void encryptDB(File input, File output) throws IOException, GeneralSecurityException {
-        if (input == null ) throw new IllegalArgumentException("input cannot be null");
-        if (output == null) throw new IllegalArgumentException("output cannot be null");
-        FileOutputStream fos = null;
+    /**
+     * Opens the encrypted database for random access, blocks are only decrypted when read.
+     * @param input the encrypted database
+     * @return the plaintext, to be closed by the caller
+     * @throws GeneralSecurityException if the padding is invalid (wrong key or corrupt file)
+     */
+    public EncryptedPageSource openPageSource(File input) throws IOException, GeneralSecurityException {
+        return new EncryptedPageSource(input, getCipher(Cipher.DECRYPT_MODE, CRYPTO_SPEC_NO_PADDING), throughput);
+    }
+
+    /**
+     * @return the accumulated throughput of all operations performed by this instance
+     */
+    public Throughput getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * Decrypts chunks until there are none left.
+     * @return the length of the plaintext if this worker decrypted the last chunk, -1 otherwise
+     */
+    private long decryptChunks(FileChannel in, FileChannel out, long length, int count, AtomicInteger next)
+            throws IOException, GeneralSecurityException {
+        final Cipher chunkCipher = getCipher(Cipher.DECRYPT_MODE, CRYPTO_SPEC_NO_PADDING);
+        final Cipher finalCipher = getCipher(Cipher.DECRYPT_MODE, CRYPTO_SPEC);
+        final ByteBuffer src = ByteBuffer.allocate(chunkSize);
+        final ByteBuffer dst = ByteBuffer.allocate(chunkSize + BLOCK_SIZE);
+        long plainLength = -1;
+        int i;
+        while ((i = next.getAndIncrement()) < count) {
+            final long position = (long) i * chunkSize;
+            src.clear();
+            src.limit((int) Math.min(chunkSize, length - position));
+            readFully(in, src, position);
+            src.flip();
+            dst.clear();
+            if (i == count - 1) {
+                finalCipher.doFinal(src, dst);
+                plainLength = position + dst.position();
+            } else {
+                chunkCipher.update(src, dst);
+            }
+            dst.flip();
+            writeFully(out, dst, position);
+        }
+        return plainLength;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        final long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        final long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, start + buffer.position());
+        }
+    }
+
+    private static long await(Future<Long> future) throws IOException, GeneralSecurityException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while decrypting");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    private void transformStream(int mode, InputStream in, OutputStream out) throws GeneralSecurityException, IOException {
         try {
-            fos = new FileOutputStream(output);
-            fos.write(encrypt(readStream(new FileInputStream(input))));
+            if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+                transformChannel(getCipher(mode), ((FileInputStream) in).getChannel(), ((FileOutputStream) out).getChannel());
+            } else {
+                final long start = System.nanoTime();
+                final Cipher cipher = getCipher(mode);
+                final byte[] buffer = new byte[8192];
+                final byte[] output = new byte[buffer.length + BLOCK_SIZE];
+                long total = 0;
+                int n;
+                while ((n = in.read(buffer)) != -1) {
+                    out.write(output, 0, cipher.update(buffer, 0, n, output));
+                    total += n;
+                }
+                out.write(output, 0, cipher.doFinal(output, 0));
+                throughput.add(total, System.nanoTime() - start);
+            }
         } finally {
-            if (fos != null) fos.close();
+            try {
+                in.close();
+                out.close();
+            } catch (IOException ignored) {}
         }
     }
 
-    private byte[] encrypt(byte[] input) throws GeneralSecurityException {
-        Cipher cipher = getCipher(Cipher.ENCRYPT_MODE);
-        return cipher.doFinal(input);
+    /**
+     * Transforms without copying the data through the heap: the input is memory mapped and
+     * fed through the cipher into a direct buffer which is written to out.
+     */
+    private void transformChannel(Cipher cipher, FileChannel in, FileChannel out) throws IOException, GeneralSecurityException {
+        if (in == null)  throw new IllegalArgumentException("in cannot be null");
+        if (out == null) throw new IllegalArgumentException("out cannot be null");
+
+        final long start = System.nanoTime();
+        final ByteBuffer dst = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE + BLOCK_SIZE);
+        final long end = in.size();
+        final long begin = in.position();
+        long position = begin;
+        while (position < end) {
+            final long windowSize = Math.min(MAP_WINDOW, end - position);
+            final MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+            while (window.hasRemaining()) {
+                window.limit(Math.min(window.position() + DIRECT_BUFFER_SIZE, window.capacity()));
+                dst.clear();
+                cipher.update(window, dst);
+                dst.flip();
+                while (dst.hasRemaining()) {
+                    out.write(dst);
+                }
+            }
+            position += windowSize;
+        }
+        dst.clear();
+        cipher.doFinal(ByteBuffer.allocate(0), dst);
+        dst.flip();
+        while (dst.hasRemaining()) {
+            out.write(dst);
+        }
+        in.position(end);
+        throughput.add(end - begin, System.nanoTime() - start);
     }
 
     private static Cipher getCipher(int mode) throws GeneralSecurityException {
+        return getCipher(mode, CRYPTO_SPEC);
+    }
+
+    private static Cipher getCipher(int mode, String spec) throws GeneralSecurityException {
         SecretKeySpec keyspec = new SecretKeySpec(new BigInteger(HEXKEY, 16).toByteArray(), CRYPTO_SPEC);
-        Cipher cipher = Cipher.getInstance(CRYPTO_SPEC);
+        Cipher cipher = Cipher.getInstance(spec);
         cipher.init(mode, keyspec);
         return cipher;
     }
 
     public static void main(String[] args) throws IOException, GeneralSecurityException {
         if (args.length < 2) {
-            error("[decrypt|encrypt] <input>");
+            error("[decrypt|encrypt] <input> [parallelism]");
         }
         final String mode = args[0];
         final File input  = new File(args[1]);
@@ -86,10 +432,14 @@ public class DBDecryptor {
         DBDecryptor decryptor = new DBDecryptor();
         if ("encrypt".equals(mode)) {
             decryptor.encryptDB(input, output);
-            System.out.println("Encrypted to "+output);
+            System.out.println("Encrypted to "+output+": "+decryptor.getThroughput());
         } else if ("decrypt".equals(mode)) {
-            decryptor.decryptDB(input, output);
-            System.out.println("Decrypted to "+output);
+            if (args.length > 2) {
+                decryptor.decryptDB(input, output, Integer.parseInt(args[2]));
+            } else {
+                decryptor.decryptDB(input, output);
+            }
+            System.out.println("Decrypted to "+output+": "+decryptor.getThroughput());
         } else {
             error("unknown mode "+mode);
         }
@@ -99,18 +449,4 @@ public class DBDecryptor {
         System.err.println(DBDecryptor.class.getSimpleName()+" "+message);
         System.exit(1);
     }
-
-    private static byte[] readStream(InputStream is) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        byte[] buffer = new byte[8192];
-        int n;
-        try {
-            while ((n = is.read(buffer)) != -1) {
-                bos.write(buffer, 0, n);
-            }
-        } finally {
-            is.close();
-        }
-        return bos.toByteArray();
-    }
 }
@@ -0,0 +1,121 @@
+package com.github.jberkel.whassup.crypto;
+
+import com.github.jberkel.whassup.sqlite.PageSource;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+/**
+ * Random access to the plaintext of an encrypted database. Since the database is encrypted
+ * in ECB mode every block can be decrypted on its own, so reads only decrypt the blocks they
+ * cover and the rest of the file is never touched.
+ *
+ * @see DBDecryptor#openPageSource(java.io.File)
+ */
+public class EncryptedPageSource implements PageSource {
+    private static final int BLOCK_SIZE = 16;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Cipher cipher;
+    private final Throughput throughput;
+    private final long length;
+    private ByteBuffer encrypted = ByteBuffer.allocate(0);
+    private byte[] plain = new byte[0];
+
+    /**
+     * @param cipher an AES/ECB/NoPadding cipher initialized for decryption
+     */
+    /* package */ EncryptedPageSource(File input, Cipher cipher, Throughput throughput)
+            throws IOException, GeneralSecurityException {
+        this.file = new RandomAccessFile(input, "r");
+        this.channel = file.getChannel();
+        this.cipher = cipher;
+        this.throughput = throughput;
+        try {
+            this.length = plaintextLength();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        } catch (GeneralSecurityException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the length of the plaintext, without the PKCS5 padding
+     */
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public synchronized void read(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (position < 0 || position + length > this.length) {
+            throw new EOFException("cannot read " + length + " bytes at " + position);
+        }
+        final long start = System.nanoTime();
+        final long first = position - position % BLOCK_SIZE;
+        final int size = (int) (roundUp(position + length) - first);
+        try {
+            final byte[] decrypted = decrypt(first, size);
+            System.arraycopy(decrypted, (int) (position - first), buffer, offset, length);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("could not decrypt " + size + " bytes at " + first + ": " + e.getMessage());
+        }
+        throughput.add(size, System.nanoTime() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private long plaintextLength() throws IOException, GeneralSecurityException {
+        final long size = channel.size();
+        if (size == 0 || size % BLOCK_SIZE != 0) {
+            throw new IOException("invalid length " + size + ", not a multiple of " + BLOCK_SIZE);
+        }
+        final byte[] last = decrypt(size - BLOCK_SIZE, BLOCK_SIZE);
+        final int padding = last[BLOCK_SIZE - 1];
+        if (padding < 1 || padding > BLOCK_SIZE) {
+            throw new BadPaddingException("invalid padding (wrong key or corrupt file)");
+        }
+        for (int i = BLOCK_SIZE - padding; i < BLOCK_SIZE; i++) {
+            if (last[i] != padding) throw new BadPaddingException("invalid padding (wrong key or corrupt file)");
+        }
+        return size - padding;
+    }
+
+    /**
+     * @return a shared buffer holding the decrypted bytes, valid until the next call
+     */
+    private byte[] decrypt(long position, int size) throws IOException, GeneralSecurityException {
+        if (encrypted.capacity() < size) {
+            encrypted = ByteBuffer.allocate(size);
+            plain = new byte[size];
+        }
+        encrypted.clear();
+        encrypted.limit(size);
+        while (encrypted.hasRemaining()) {
+            if (channel.read(encrypted, position + encrypted.position()) < 0) {
+                throw new EOFException("unexpected end of file at " + (position + encrypted.position()));
+            }
+        }
+        cipher.update(encrypted.array(), 0, size, plain, 0);
+        return plain;
+    }
+
+    private static long roundUp(long position) {
+        return (position + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+}
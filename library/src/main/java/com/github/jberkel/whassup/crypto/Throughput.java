@@ -0,0 +1,45 @@
+package com.github.jberkel.whassup.crypto;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Accumulates the number of bytes processed and the time it took.
+ */
+public class Throughput {
+    private long bytes;
+    private long nanos;
+
+    public synchronized void add(long bytes, long nanos) {
+        this.bytes += bytes;
+        this.nanos += nanos;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return bytes per second, 0 if nothing has been recorded yet
+     */
+    public synchronized double getBytesPerSecond() {
+        return nanos == 0 ? 0 : bytes / (nanos / (double) TimeUnit.SECONDS.toNanos(1));
+    }
+
+    public synchronized void reset() {
+        bytes = 0;
+        nanos = 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "%d bytes in %d ms (%.2f MB/s)",
+                getBytes(),
+                TimeUnit.NANOSECONDS.toMillis(getNanos()),
+                getBytesPerSecond() / (1024 * 1024));
+    }
+}
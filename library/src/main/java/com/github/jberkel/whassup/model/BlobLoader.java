@@ -0,0 +1,15 @@
+package com.github.jberkel.whassup.model;
+
+import java.io.IOException;
+
+/**
+ * Loads blob columns of a message which were left out of a query, see {@link Projection}.
+ */
+public interface BlobLoader {
+    /**
+     * @param id the <code>_id</code> of the message
+     * @param column the blob column
+     * @return the content of the column, or null
+     */
+    byte[] loadBlob(long id, WhatsAppMessage.Fields column) throws IOException;
+}
@@ -0,0 +1,78 @@
+package com.github.jberkel.whassup.model;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A chat from the chat list, with its last message.
+ */
+public class Conversation {
+    private final String chatId;
+    private final WhatsAppMessage lastMessage;
+    private final int messageCount;
+    private final List<WhatsAppMessage> recentMessages;
+
+    /**
+     * @param lastMessage the last message, null if it is not in the backup
+     * @param recentMessages the last messages of the chat, in ascending timestamp order
+     */
+    public Conversation(String chatId, WhatsAppMessage lastMessage, int messageCount,
+                        List<WhatsAppMessage> recentMessages) {
+        this.chatId = chatId;
+        this.lastMessage = lastMessage;
+        this.messageCount = messageCount;
+        this.recentMessages = recentMessages == null ? Collections.<WhatsAppMessage>emptyList() :
+                Collections.unmodifiableList(recentMessages);
+    }
+
+    public String getChatId() {
+        return chatId;
+    }
+
+    public Jid getJid() {
+        return Jid.of(chatId);
+    }
+
+    public boolean isGroup() {
+        final Jid jid = getJid();
+        return jid != null && jid.isGroup();
+    }
+
+    /**
+     * @return the last message, or null
+     */
+    public WhatsAppMessage getLastMessage() {
+        return lastMessage;
+    }
+
+    /**
+     * @return the time of the last message, or null
+     */
+    public Date getLastActivity() {
+        return lastMessage == null ? null : lastMessage.getTimestamp();
+    }
+
+    /**
+     * @return the number of messages in this chat
+     */
+    public int getMessageCount() {
+        return messageCount;
+    }
+
+    /**
+     * @return the last messages, oldest first; empty unless requested
+     */
+    public List<WhatsAppMessage> getRecentMessages() {
+        return recentMessages;
+    }
+
+    @Override
+    public String toString() {
+        return "Conversation{" +
+                "chatId='" + chatId + '\'' +
+                ", messageCount=" + messageCount +
+                ", lastActivity=" + getLastActivity() +
+                '}';
+    }
+}
@@ -0,0 +1,229 @@
+package com.github.jberkel.whassup.model;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.github.jberkel.whassup.model.WhatsAppMessage.Fields.*;
+
+/**
+ * Group names, group members and chat creation times, built in a single pass over the group events
+ * and the first messages of every chat and sender.
+ * <p>
+ * Group events are messages with <code>status = 6</code>, <code>media_size</code> tells what happened:
+ * 1 = name change (the new name is in <code>data</code>), 4 = joined, 5 = left, 7 = removed, with the
+ * member in <code>remote_resource</code>. Senders of received group messages count as members from
+ * their first message on, as do group creators. The name of a group at a point in time is found in
+ * O(log n), its members in O(log n) per member.
+ */
+public class GroupIndex {
+    /** the <code>status</code> of group events */
+    public static final int STATUS_GROUP_EVENT = 6;
+    /* package */ static final int NAME_CHANGED = 1;
+    /* package */ static final int JOINED = 4;
+    /* package */ static final int LEFT = 5;
+    /* package */ static final int REMOVED = 7;
+
+    private static final String DIRECT_SUFFIX = "@s.whatsapp.net";
+
+    private final Map<Jid, Chat> chats = new HashMap<Jid, Chat>();
+    private String ownNumber;
+
+    /**
+     * Reads all remaining rows of the cursor, which is not closed. The rows must be in ascending
+     * timestamp order and contain at least the columns of {@link Projection#EVENTS}. Besides the
+     * group events only the first message of every chat and of every sender in a group is needed,
+     * <code>data</code> is only read from group events.
+     */
+    public GroupIndex(Cursor c) {
+        final MessageRowMapper m = new MessageRowMapper(c);
+        while (c.moveToNext()) {
+            final Jid jid = Jid.of(m.getString(c, KEY_REMOTE_JID));
+            if (jid == null) continue;
+
+            final long id = m.getLong(c, _ID);
+            final long timestamp = m.getLong(c, TIMESTAMP);
+            Chat chat = chats.get(jid);
+            if (chat == null) {
+                chat = new Chat(jid, id, timestamp);
+                chats.put(jid, chat);
+            } else if (id < chat.firstId) {
+                chat.firstId = id;
+                chat.created = timestamp;
+            }
+            if (chat.group) {
+                addToGroup(chat, timestamp, m.getInt(c, STATUS), m.getInt(c, KEY_FROM_ME), m.getInt(c, MEDIA_SIZE),
+                        m.getString(c, DATA), m.getString(c, REMOTE_RESOURCE));
+            }
+        }
+    }
+
+    /**
+     * @return the number of the owner of the backup, if it has created a group
+     */
+    public String getOwnNumber() {
+        return ownNumber;
+    }
+
+    /**
+     * @return the time of the first message of a chat, or null if the chat is unknown
+     */
+    public Date getCreationTimestamp(String chatId) {
+        final Chat chat = chats.get(Jid.of(chatId));
+        return chat == null ? null : new Date(chat.created);
+    }
+
+    /**
+     * @param at a point in time, or null for the current name
+     * @return the name of the group at that time, or null if unknown
+     */
+    public String getName(String chatId, Date at) {
+        final Chat chat = chats.get(Jid.of(chatId));
+        return chat == null || !chat.group ? null : chat.names.at(time(at));
+    }
+
+    /**
+     * @param at a point in time, or null for the current members
+     * @return the numbers of the members at that time, or null if the chat is not a known group
+     */
+    public String[] getMembers(String chatId, Date at) {
+        final Chat chat = chats.get(Jid.of(chatId));
+        if (chat == null || !chat.group) return null;
+
+        final long time = time(at);
+        final List<String> members = new ArrayList<String>(chat.members.size());
+        for (Map.Entry<String, History<Boolean>> member : chat.members.entrySet()) {
+            if (Boolean.TRUE.equals(member.getValue().at(time))) {
+                members.add(member.getKey());
+            }
+        }
+        return members.toArray(new String[members.size()]);
+    }
+
+    /**
+     * Lets {@link WhatsAppMessage#getRecipients()} of group messages use this index.
+     */
+    public void attach(WhatsAppMessage message) {
+        if (message.isGroupMessage()) {
+            message.groups = this;
+        }
+    }
+
+    /**
+     * @see #attach(WhatsAppMessage)
+     */
+    public void attach(Iterable<WhatsAppMessage> messages) {
+        for (WhatsAppMessage message : messages) {
+            attach(message);
+        }
+    }
+
+    private void addToGroup(Chat chat, long timestamp, int status, int fromMe, int event,
+                            String data, String remoteResource) {
+        final Jid member = remoteResource == null || remoteResource.length() == 0 ? null : Jid.of(remoteResource);
+        if (status == STATUS_GROUP_EVENT) {
+            switch (event) {
+                case NAME_CHANGED:
+                    chat.names.add(timestamp, data);
+                    if (ownNumber == null && fromMe == 1 && member != null && !remoteResource.endsWith(DIRECT_SUFFIX)) {
+                        ownNumber = member.getUser();
+                    }
+                    break;
+                case JOINED:
+                    if (member != null) chat.membership(member.getUser()).add(timestamp, true);
+                    break;
+                case LEFT:
+                case REMOVED:
+                    if (member != null) chat.membership(member.getUser()).add(timestamp, false);
+                    break;
+            }
+        } else if (fromMe == 0 && member != null && member.isValid()) {
+            final History<Boolean> membership = chat.membership(member.getUser());
+            if (!Boolean.TRUE.equals(membership.last())) {
+                membership.add(timestamp, true);
+            }
+        }
+    }
+
+    private static long time(Date at) {
+        return at == null ? Long.MAX_VALUE : at.getTime();
+    }
+
+    private static class Chat {
+        final boolean group;
+        long firstId;
+        long created;
+        final History<String> names;
+        final Map<String, History<Boolean>> members;
+
+        Chat(Jid jid, long firstId, long created) {
+            this.group = jid.isGroup();
+            this.firstId = firstId;
+            this.created = created;
+            this.names = group ? new History<String>() : null;
+            this.members = group ? new LinkedHashMap<String, History<Boolean>>() : null;
+            if (group && jid.getCreator().length() > 0) {
+                membership(jid.getCreator()).add(created, true);
+            }
+        }
+
+        History<Boolean> membership(String number) {
+            History<Boolean> history = members.get(number);
+            if (history == null) {
+                history = new History<Boolean>();
+                members.put(number, history);
+            }
+            return history;
+        }
+    }
+
+    /**
+     * Values over time, added in ascending time order.
+     */
+    private static class History<T> {
+        private long[] times = new long[2];
+        private Object[] values = new Object[2];
+        private int size;
+
+        void add(long time, T value) {
+            if (size == times.length) {
+                final long[] newTimes = new long[size * 2];
+                final Object[] newValues = new Object[size * 2];
+                System.arraycopy(times, 0, newTimes, 0, size);
+                System.arraycopy(values, 0, newValues, 0, size);
+                times = newTimes;
+                values = newValues;
+            }
+            times[size] = time;
+            values[size++] = value;
+        }
+
+        /**
+         * @return the last value added at or before time, or null
+         */
+        @SuppressWarnings("unchecked")
+        T at(long time) {
+            int low = 0, high = size - 1, found = -1;
+            while (low <= high) {
+                final int mid = (low + high) >>> 1;
+                if (times[mid] <= time) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return found < 0 ? null : (T) values[found];
+        }
+
+        @SuppressWarnings("unchecked")
+        T last() {
+            return size == 0 ? null : (T) values[size - 1];
+        }
+    }
+}
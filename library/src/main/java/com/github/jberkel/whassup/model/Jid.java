@@ -0,0 +1,167 @@
+package com.github.jberkel.whassup.model;
+
+import android.text.TextUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A parsed JID, as found in <code>key_remote_jid</code> and <code>remote_resource</code>.
+ * <pre>
+ * 49157712345@s.whatsapp.net  (direct: [number]@s.whatsapp.net)
+ * 49157712345-1369779058@g.us (group: [creator number]-[group id]@g.us)
+ * </pre>
+ * JIDs are interned: {@link #of(String)} parses every distinct value only once and returns the
+ * same instance afterwards. Each instance has a small, dense {@link #getId() id} which can be
+ * used as an array index or primitive map key, and resolved again with {@link #get(int)}.
+ */
+public final class Jid {
+    /* package */ static final String GROUP  = "g.us";
+    /* package */ static final String DIRECT = "s.whatsapp.net";
+
+    private static final ConcurrentMap<String, Jid> INTERNED = new ConcurrentHashMap<String, Jid>();
+    private static volatile Jid[] byId = new Jid[64];
+    private static int count;
+
+    public enum Type { DIRECT, GROUP, OTHER }
+
+    private final int id;
+    private final String jid;
+    private final String user;
+    private final boolean valid;
+    private final boolean digitsOnly;
+    private final Type type;
+    private final String creator;
+    private final String groupId;
+
+    private Jid(int id, String jid) {
+        this.id = id;
+        this.jid = jid;
+
+        final int at = jid.indexOf('@');
+        this.user = at >= 0 ? jid.substring(0, at) : jid;
+        this.valid = at >= 0;
+        this.digitsOnly = TextUtils.isDigitsOnly(user);
+        this.type = jid.endsWith(GROUP) ? Type.GROUP : jid.endsWith(DIRECT) ? Type.DIRECT : Type.OTHER;
+        if (type == Type.GROUP) {
+            final int dash = user.indexOf('-');
+            this.creator = dash >= 0 ? user.substring(0, dash) : user;
+            this.groupId = dash >= 0 ? user.substring(dash + 1) : null;
+        } else {
+            this.creator = null;
+            this.groupId = null;
+        }
+    }
+
+    /**
+     * @return the interned JID, or null if jid is null
+     */
+    public static Jid of(String jid) {
+        if (jid == null) return null;
+        final Jid existing = INTERNED.get(jid);
+        return existing != null ? existing : intern(jid);
+    }
+
+    /**
+     * @param id an id returned by {@link #getId()}
+     * @return the JID with this id
+     * @throws IndexOutOfBoundsException if there is no such JID
+     */
+    public static Jid get(int id) {
+        final Jid[] jids = byId;
+        final Jid jid = id >= 0 && id < jids.length ? jids[id] : null;
+        if (jid == null) throw new IndexOutOfBoundsException("no jid with id " + id);
+        return jid;
+    }
+
+    /**
+     * @return the number of interned JIDs, all ids are smaller than this
+     */
+    public static synchronized int count() {
+        return count;
+    }
+
+    private static synchronized Jid intern(String jid) {
+        Jid interned = INTERNED.get(jid);
+        if (interned == null) {
+            Jid[] jids = byId;
+            if (count == jids.length) {
+                jids = new Jid[count * 2];
+                System.arraycopy(byId, 0, jids, 0, count);
+            }
+            interned = new Jid(count, jid);
+            jids[count++] = interned;
+            byId = jids;
+            INTERNED.put(jid, interned);
+        }
+        return interned;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public boolean isGroup() {
+        return type == Type.GROUP;
+    }
+
+    public boolean isDirect() {
+        return type == Type.DIRECT;
+    }
+
+    /**
+     * @return false if the JID has no server part, as used by very old clients
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return the part before the <code>@</code>, or the whole JID if there is none
+     */
+    public String getUser() {
+        return user;
+    }
+
+    /**
+     * @return the phone number of a direct JID, null for groups
+     */
+    public String getNumber() {
+        return type == Type.GROUP ? null : user;
+    }
+
+    /**
+     * @return the number of the group creator, null if this is not a group
+     */
+    public String getCreator() {
+        return creator;
+    }
+
+    /**
+     * @return the id of the group, null if this is not a group
+     */
+    public String getGroupId() {
+        return groupId;
+    }
+
+    /**
+     * @return the number of the other party for direct chats, the creator for groups
+     */
+    public String getOwner() {
+        if (!valid) return null;
+        return type == Type.GROUP ? creator : user;
+    }
+
+    /* package */ boolean isDigitsOnly() {
+        return digitsOnly;
+    }
+
+    @Override
+    public String toString() {
+        return jid;
+    }
+}
@@ -1,16 +1,17 @@
 package com.github.jberkel.whassup.model;
 
 import android.database.Cursor;
+import android.util.Log;
 import com.whatsapp.MediaData;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
 
 import static com.github.jberkel.whassup.model.WhatsAppMessage.Fields.*;
 
 public class Media {
+    private static final String TAG = Media.class.getSimpleName();
+
     // https://mms831.whatsapp.net/d/mLiu1j3jlniKtF8IzYoEaubS43c/AlIMgZabrwNZRdGQlq2sxEEvO2b_Cej4y5dlcFTjnHOY.jpg
     String media_url;
 
@@ -42,22 +43,58 @@ public class Media {
 
     private MediaData mediaData;
 
+    /** loads the blobs if they were not part of the query */
+    private final BlobLoader blobLoader;
+    private final long id;
+    private boolean rawDataLoaded, thumbImageLoaded;
+
     public Media() {
+        this.blobLoader = null;
+        this.id = 0;
+    }
+
+    /**
+     * Media without its blobs, which are loaded on demand by blobLoader.
+     */
+    /* package */ Media(long id, BlobLoader blobLoader, String mimeType, int size) {
+        this.blobLoader = blobLoader;
+        this.id = id;
+        this.media_mime_type = mimeType;
+        this.media_size = size;
     }
 
     public Media(Cursor c) {
-        this.raw_data        = RAW_DATA.getBlob(c);
-        this.thumb_image     = THUMB_IMAGE.getBlob(c);
-        this.media_hash      = MEDIA_HASH.getString(c);
-        this.media_size      = MEDIA_SIZE.getInt(c);
-        this.media_name      = MEDIA_NAME.getString(c);
-        this.media_duration  = MEDIA_DURATION.getInt(c);
-        this.media_mime_type = MEDIA_MIME_TYPE.getString(c);
-        this.media_url       = MEDIA_URL.getString(c);
-        this.media_wa_type   = MEDIA_WA_TYPE.getString(c);
+        this(c, 0, null);
+    }
+
+    /**
+     * @param id the <code>_id</code> of the message
+     * @param blobLoader used to load the blobs on first access if the cursor does not contain them,
+     *                   may be null
+     */
+    public Media(Cursor c, long id, BlobLoader blobLoader) {
+        this(new MessageRowMapper(c), c, id, blobLoader);
+    }
+
+    /* package */ Media(MessageRowMapper m, Cursor c, long id, BlobLoader blobLoader) {
+        this.blobLoader = m.has(RAW_DATA) && m.has(THUMB_IMAGE) ? null : blobLoader;
+        this.id = id;
+        this.raw_data        = m.getBlob(c, RAW_DATA);
+        this.thumb_image     = m.getBlob(c, THUMB_IMAGE);
+        this.media_hash      = m.getString(c, MEDIA_HASH);
+        this.media_size      = m.getInt(c, MEDIA_SIZE);
+        this.media_name      = m.getString(c, MEDIA_NAME);
+        this.media_duration  = m.getInt(c, MEDIA_DURATION);
+        this.media_mime_type = m.getString(c, MEDIA_MIME_TYPE);
+        this.media_url       = m.getString(c, MEDIA_URL);
+        this.media_wa_type   = m.getString(c, MEDIA_WA_TYPE);
     }
 
     public byte[] getRawData() {
+        if (raw_data == null && !rawDataLoaded) {
+            raw_data = load(RAW_DATA);
+            rawDataLoaded = true;
+        }
         return raw_data;
     }
 
@@ -85,21 +122,38 @@ public class Media {
 
     private MediaData getMediaData() {
         if (mediaData == null) {
+            if (thumb_image == null && !thumbImageLoaded) {
+                thumb_image = load(THUMB_IMAGE);
+                thumbImageLoaded = true;
+            }
             if (thumb_image != null) {
-                mediaData = parseData(thumb_image);
+                mediaData = parseData(id, thumb_image);
             }
         }
         return mediaData;
     }
 
-    private static MediaData parseData(byte[] data) {
+    private byte[] load(WhatsAppMessage.Fields column) {
+        if (blobLoader == null) return null;
+        try {
+            return blobLoader.loadBlob(id, column);
+        } catch (IOException e) {
+            Log.w(TAG, "could not load " + column + " of message " + id, e);
+            return null;
+        } catch (IllegalStateException e) {
+            // the session the message was fetched from has been closed
+            Log.w(TAG, "could not load " + column + " of message " + id, e);
+            return null;
+        }
+    }
+
+    private static MediaData parseData(long id, byte[] data) {
         try {
-            ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
-            return (MediaData) ois.readObject();
-        } catch (IOException ignored) {
-        } catch (ClassNotFoundException ignored) {
+            return MediaDataParser.parse(data);
+        } catch (IOException e) {
+            Log.w(TAG, "could not parse media data of message " + id, e);
+            return null;
         }
-        return null;
     }
 
     @Override
@@ -107,7 +161,7 @@ public class Media {
         return "Media{" +
                 "media_url='" + media_url + '\'' +
                 ", media_mime_type='" + media_mime_type + '\'' +
-                ", mediaData=" + getMediaData() +
+                ", mediaData=" + mediaData +
                 ", media_size=" + media_size +
                 '}';
     }
@@ -0,0 +1,159 @@
+package com.github.jberkel.whassup.model;
+
+import com.whatsapp.MediaData;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.UTFDataFormatException;
+
+/**
+ * Decodes the Java serialized {@link MediaData} stored in <code>thumb_image</code>.
+ * <p>
+ * WhatsApp always writes the same stream: the class descriptor of MediaData followed by
+ * fileSize, progress and transferred, then either null or a {@link File} with its path.
+ * This layout is read directly from the bytes, anything else is handed to
+ * {@link ObjectInputStream}.
+ */
+/* package */ final class MediaDataParser {
+    private static final byte TC_NULL          = 0x70;
+    private static final byte TC_OBJECT        = 0x73;
+    private static final byte TC_STRING        = 0x74;
+    private static final byte TC_BLOCKDATA     = 0x77;
+    private static final byte TC_ENDBLOCKDATA  = 0x78;
+
+    /** stream header, MediaData class descriptor (fields in serialization order) and its end marker */
+    private static final byte[] MEDIA_DATA = hex(
+        "aced0005" +
+        "73720016636f6d2e77686174736170702e4d6564696144617461fff496ede1a2300602" +
+        "00044a000866696c6553697a654a000870726f67726573735a000b7472616e73666572726564" +
+        "4c000466696c6574000e4c6a6176612f696f2f46696c653b" +
+        "7870");
+
+    /** java.io.File class descriptor, without the leading TC_OBJECT */
+    private static final byte[] FILE = hex(
+        "72000c6a6176612e696f2e46696c65042da4450e0de4ff" +
+        "0300014c0004706174687400124c6a6176612f6c616e672f537472696e673b" +
+        "7870");
+
+    private MediaDataParser() {
+    }
+
+    /**
+     * @throws IOException if the data is not a serialized MediaData
+     */
+    /* package */ static MediaData parse(byte[] data) throws IOException {
+        final MediaData mediaData = parseFixed(data);
+        return mediaData != null ? mediaData : deserialize(data);
+    }
+
+    /**
+     * @return the decoded data or null if it does not have the expected layout
+     */
+    /* package */ static MediaData parseFixed(byte[] data) {
+        int pos = MEDIA_DATA.length;
+        if (data.length < pos + 8 + 8 + 1 + 1 || !startsWith(data, 0, MEDIA_DATA)) return null;
+
+        final long fileSize = readLong(data, pos);
+        final long progress = readLong(data, pos + 8);
+        final boolean transferred = data[pos + 16] != 0;
+        pos += 17;
+
+        final File file;
+        if (data[pos] == TC_NULL) {
+            file = null;
+            pos++;
+        } else if (data[pos] == TC_OBJECT && startsWith(data, pos + 1, FILE)) {
+            pos += 1 + FILE.length;
+            if (pos + 3 > data.length || data[pos] != TC_STRING) return null;
+            final int length = ((data[pos + 1] & 0xff) << 8) | (data[pos + 2] & 0xff);
+            pos += 3;
+            if (pos + length > data.length) return null;
+            final String path;
+            try {
+                path = decodeUTF(data, pos, length);
+            } catch (UTFDataFormatException e) {
+                return null;
+            }
+            pos += length;
+            // File.writeObject() appends the separator char as block data
+            if (pos + 5 != data.length ||
+                data[pos] != TC_BLOCKDATA || data[pos + 1] != 2 || data[pos + 4] != TC_ENDBLOCKDATA) {
+                return null;
+            }
+            pos += 5;
+            file = new File(path);
+        } else {
+            return null;
+        }
+        return pos == data.length ? new MediaData(file, fileSize, transferred, progress) : null;
+    }
+
+    private static MediaData deserialize(byte[] data) throws IOException {
+        try {
+            final Object object = new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+            if (object instanceof MediaData) {
+                return (MediaData) object;
+            } else {
+                throw new InvalidClassException("expected MediaData, got " +
+                        (object == null ? null : object.getClass().getName()));
+            }
+        } catch (ClassNotFoundException e) {
+            throw new InvalidClassException(e.getMessage());
+        }
+    }
+
+    /**
+     * Decodes modified UTF-8, as written by {@link java.io.DataOutput#writeUTF(String)}.
+     */
+    private static String decodeUTF(byte[] data, int offset, int length) throws UTFDataFormatException {
+        final char[] chars = new char[length];
+        final int end = offset + length;
+        int count = 0;
+        for (int i = offset; i < end; ) {
+            final int a = data[i++] & 0xff;
+            if (a < 0x80) {
+                chars[count++] = (char) a;
+            } else if ((a & 0xe0) == 0xc0 && i < end) {
+                final int b = data[i++] & 0xff;
+                if ((b & 0xc0) != 0x80) throw new UTFDataFormatException("malformed input at " + i);
+                chars[count++] = (char) (((a & 0x1f) << 6) | (b & 0x3f));
+            } else if ((a & 0xf0) == 0xe0 && i + 1 < end) {
+                final int b = data[i++] & 0xff, c = data[i++] & 0xff;
+                if ((b & 0xc0) != 0x80 || (c & 0xc0) != 0x80) {
+                    throw new UTFDataFormatException("malformed input at " + i);
+                }
+                chars[count++] = (char) (((a & 0x0f) << 12) | ((b & 0x3f) << 6) | (c & 0x3f));
+            } else {
+                throw new UTFDataFormatException("malformed input at " + i);
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    private static boolean startsWith(byte[] data, int offset, byte[] prefix) {
+        if (offset + prefix.length > data.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private static long readLong(byte[] data, int pos) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[pos + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static byte[] hex(String s) {
+        final byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,378 @@
+package com.github.jberkel.whassup.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.jberkel.whassup.model.WhatsAppMessage.Fields.*;
+
+/**
+ * Selects messages inside SQLite instead of filtering model objects in Java: the conditions are
+ * compiled to a parameterized <code>WHERE</code> clause, all of them have to match. Chat and
+ * time range conditions use the snapshot indexes.
+ *
+ * <pre>
+ * new MessageQuery().chat(jid).received().withText().between(from, to).limit(50).projection(Projection.TEXT)
+ * </pre>
+ *
+ * Queries are mutable and not thread-safe.
+ */
+public class MessageQuery {
+    private String chatId;
+    private Jid.Type chatType;
+    private String sender;
+    private Boolean fromMe;
+    private int[] statuses;
+    private String mimeType;
+    private long from, to;
+    private Boolean location;
+    private Boolean text;
+    private int limit = -1;
+    private Projection projection = Projection.FULL;
+
+    public MessageQuery() {
+    }
+
+    private MessageQuery(MessageQuery other) {
+        chatId = other.chatId;
+        chatType = other.chatType;
+        sender = other.sender;
+        fromMe = other.fromMe;
+        statuses = other.statuses;
+        mimeType = other.mimeType;
+        from = other.from;
+        to = other.to;
+        location = other.location;
+        text = other.text;
+        limit = other.limit;
+        projection = other.projection;
+    }
+
+    /**
+     * @param chatId the key_remote_jid of the chat, null for all chats
+     */
+    public MessageQuery chat(String chatId) {
+        this.chatId = chatId;
+        return this;
+    }
+
+    /**
+     * @param type only direct or only group chats, null for both
+     */
+    public MessageQuery chatType(Jid.Type type) {
+        this.chatType = type;
+        return this;
+    }
+
+    /**
+     * @param sender a number as returned by {@link WhatsAppMessage#getSender()}, <code>-1</code>
+     *               for own messages; null for all senders
+     */
+    public MessageQuery sender(String sender) {
+        this.sender = sender;
+        return this;
+    }
+
+    /** only sent messages (and group events) */
+    public MessageQuery sent() {
+        this.fromMe = true;
+        return this;
+    }
+
+    /** only received messages, see {@link WhatsAppMessage#isReceived()} */
+    public MessageQuery received() {
+        this.fromMe = false;
+        return this;
+    }
+
+    /**
+     * @param statuses the accepted values of <code>status</code>, none for all
+     */
+    public MessageQuery status(int... statuses) {
+        this.statuses = statuses.length == 0 ? null : statuses.clone();
+        return this;
+    }
+
+    /**
+     * @param mimeType a mime type like <code>image/jpeg</code> or a type with a wildcard
+     *                 subtype like <code>image/*</code>; null for all messages
+     */
+    public MessageQuery mimeType(String mimeType) {
+        this.mimeType = mimeType;
+        return this;
+    }
+
+    /**
+     * @param from the first timestamp to include, epoch format, or 0 for no lower bound
+     * @param to the timestamp to stop at (exclusive), or 0 for no upper bound
+     */
+    public MessageQuery between(long from, long to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    /** only messages with a location */
+    public MessageQuery withLocation() {
+        this.location = true;
+        return this;
+    }
+
+    /** only messages without a location */
+    public MessageQuery withoutLocation() {
+        this.location = false;
+        return this;
+    }
+
+    /** only messages with text, see {@link WhatsAppMessage#hasText()} */
+    public MessageQuery withText() {
+        this.text = true;
+        return this;
+    }
+
+    /** only messages without text */
+    public MessageQuery withoutText() {
+        this.text = false;
+        return this;
+    }
+
+    /**
+     * @param max how many messages to fetch or -1 for all
+     */
+    public MessageQuery limit(int max) {
+        this.limit = max;
+        return this;
+    }
+
+    /**
+     * @param projection which columns to fetch, {@link Projection#FULL} by default
+     */
+    public MessageQuery projection(Projection projection) {
+        if (projection == null) throw new IllegalArgumentException("projection cannot be null");
+        this.projection = projection;
+        return this;
+    }
+
+    public String getChatId() {
+        return chatId;
+    }
+
+    public long getFrom() {
+        return from;
+    }
+
+    public long getTo() {
+        return to;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public Projection getProjection() {
+        return projection;
+    }
+
+    /**
+     * @return the <code>WHERE</code> clause with <code>?</code> placeholders, or null if all messages match
+     * @see #getSelectionArgs()
+     */
+    public String getSelection() {
+        final List<String> conditions = new ArrayList<String>();
+        compile(conditions, new ArrayList<String>());
+        if (conditions.isEmpty()) return null;
+
+        final StringBuilder selection = new StringBuilder();
+        for (String condition : conditions) {
+            selection.append(selection.length() == 0 ? "" : " AND ").append(condition);
+        }
+        return selection.toString();
+    }
+
+    /**
+     * @return the arguments of {@link #getSelection()}, or null if there are none
+     */
+    public String[] getSelectionArgs() {
+        final List<String> args = new ArrayList<String>();
+        compile(new ArrayList<String>(), args);
+        return args.isEmpty() ? null : args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * For rows which are not read through SQLite, like the pages of an encrypted backup.
+     * Later changes to the query do not affect the matcher.
+     * @param columns the column names of the rows
+     */
+    public Matcher matcher(String[] columns) {
+        return new Matcher(this, columns);
+    }
+
+    private void compile(List<String> conditions, List<String> args) {
+        if (chatId != null) {
+            conditions.add(KEY_REMOTE_JID + " = ?");
+            args.add(chatId);
+        }
+        if (chatType != null) {
+            conditions.add(KEY_REMOTE_JID + " LIKE ?");
+            args.add("%" + suffix(chatType));
+        }
+        if (sender != null) {
+            if (WhatsAppMessage.OWN.equals(sender)) {
+                conditions.add("(" + KEY_FROM_ME + " = 1 AND " + noResource() + ")");
+            } else {
+                conditions.add("(" + REMOTE_RESOURCE + " IN (?, ?) OR (" + KEY_FROM_ME + " = 0 AND " +
+                        noResource() + " AND " + KEY_REMOTE_JID + " = ?))");
+                args.add(sender);
+                args.add(sender + "@" + Jid.DIRECT);
+                args.add(sender + "@" + Jid.DIRECT);
+            }
+        }
+        if (fromMe != null) {
+            conditions.add(KEY_FROM_ME + (fromMe ? " = 1" : " = 0"));
+        }
+        if (statuses != null) {
+            final StringBuilder in = new StringBuilder();
+            for (int status : statuses) {
+                in.append(in.length() == 0 ? "?" : ", ?");
+                args.add(String.valueOf(status));
+            }
+            conditions.add(STATUS + " IN (" + in + ")");
+        }
+        if (mimeType != null) {
+            if (isWildcard(mimeType)) {
+                conditions.add(MEDIA_MIME_TYPE + " LIKE ?");
+                args.add(mimeType.substring(0, mimeType.length() - 1) + "%");
+            } else {
+                conditions.add(MEDIA_MIME_TYPE + " = ?");
+                args.add(mimeType);
+            }
+        }
+        if (from > 0) {
+            conditions.add(TIMESTAMP + " >= ?");
+            args.add(String.valueOf(from));
+        }
+        if (to > 0) {
+            conditions.add(TIMESTAMP + " < ?");
+            args.add(String.valueOf(to));
+        }
+        if (location != null) {
+            conditions.add(location ?
+                    "(" + LATITUDE + " != 0 OR " + LONGITUDE + " != 0)" :
+                    "(" + LATITUDE + " IS NULL OR " + LATITUDE + " = 0) AND (" +
+                          LONGITUDE + " IS NULL OR " + LONGITUDE + " = 0)");
+        }
+        if (text != null) {
+            conditions.add(text ?
+                    "(" + DATA + " IS NOT NULL AND " + DATA + " != '')" :
+                    "(" + DATA + " IS NULL OR " + DATA + " = '')");
+        }
+    }
+
+    private static String noResource() {
+        return "(" + REMOTE_RESOURCE + " IS NULL OR " + REMOTE_RESOURCE + " = '')";
+    }
+
+    private static String suffix(Jid.Type type) {
+        switch (type) {
+            case GROUP:  return Jid.GROUP;
+            case DIRECT: return Jid.DIRECT;
+            default: throw new IllegalArgumentException("cannot query chats of type " + type);
+        }
+    }
+
+    private static boolean isWildcard(String mimeType) {
+        return mimeType.endsWith("/*");
+    }
+
+    /**
+     * Evaluates the conditions of a query in Java, with the same results as the compiled selection.
+     */
+    public static class Matcher {
+        private final MessageQuery query;
+        private final int jid, fromMe, status, mime, timestamp, latitude, longitude, data, resource;
+
+        private Matcher(MessageQuery query, String[] columns) {
+            this.query = new MessageQuery(query);
+            jid       = indexOf(columns, KEY_REMOTE_JID);
+            fromMe    = indexOf(columns, KEY_FROM_ME);
+            status    = indexOf(columns, STATUS);
+            mime      = indexOf(columns, MEDIA_MIME_TYPE);
+            timestamp = indexOf(columns, TIMESTAMP);
+            latitude  = indexOf(columns, LATITUDE);
+            longitude = indexOf(columns, LONGITUDE);
+            data      = indexOf(columns, DATA);
+            resource  = indexOf(columns, REMOTE_RESOURCE);
+        }
+
+        public boolean matches(Object[] row) {
+            final MessageQuery q = query;
+            final String chat = string(row, jid);
+            if (q.chatId != null && !q.chatId.equals(chat)) return false;
+            if (q.chatType != null && (chat == null || !chat.endsWith(suffix(q.chatType)))) return false;
+            if (q.sender != null &&
+                !q.sender.equals(WhatsAppMessage.getSender(chat, (int) number(row, fromMe), string(row, resource)))) {
+                return false;
+            }
+            if (q.fromMe != null && !contains(new int[] { q.fromMe ? 1 : 0 }, row, fromMe)) return false;
+            if (q.statuses != null && !contains(q.statuses, row, status)) return false;
+            if (q.mimeType != null && !matchesMimeType(q.mimeType, string(row, mime))) return false;
+            if (q.from > 0 || q.to > 0) {
+                if (!(value(row, timestamp) instanceof Number)) return false;
+                final long value = number(row, timestamp);
+                if ((q.from > 0 && value < q.from) || (q.to > 0 && value >= q.to)) return false;
+            }
+            if (q.location != null && (real(row, latitude) != 0 || real(row, longitude) != 0) != q.location) {
+                return false;
+            }
+            if (q.text != null) {
+                final String text = string(row, data);
+                if ((text != null && text.length() > 0) != q.text) return false;
+            }
+            return true;
+        }
+
+        private static boolean contains(int[] statuses, Object[] row, int index) {
+            if (!(value(row, index) instanceof Number)) return false;
+            final long value = number(row, index);
+            for (int status : statuses) {
+                if (status == value) return true;
+            }
+            return false;
+        }
+
+        private static boolean matchesMimeType(String mimeType, String value) {
+            if (value == null) return false;
+            if (isWildcard(mimeType)) {
+                final int length = mimeType.length() - 1;
+                return value.regionMatches(true, 0, mimeType, 0, length);
+            } else {
+                return value.equals(mimeType);
+            }
+        }
+
+        private static int indexOf(String[] columns, WhatsAppMessage.Fields field) {
+            for (int i = 0; i < columns.length; i++) {
+                if (field.toString().equalsIgnoreCase(columns[i])) return i;
+            }
+            return -1;
+        }
+
+        private static Object value(Object[] row, int index) {
+            return index >= 0 ? row[index] : null;
+        }
+
+        private static String string(Object[] row, int index) {
+            final Object value = value(row, index);
+            return value == null ? null : value.toString();
+        }
+
+        private static long number(Object[] row, int index) {
+            final Object value = value(row, index);
+            return value instanceof Number ? ((Number) value).longValue() : 0;
+        }
+
+        private static double real(Object[] row, int index) {
+            final Object value = value(row, index);
+            return value instanceof Number ? ((Number) value).doubleValue() : 0;
+        }
+    }
+}
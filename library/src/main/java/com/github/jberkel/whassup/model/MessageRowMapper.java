@@ -0,0 +1,67 @@
+package com.github.jberkel.whassup.model;
+
+import android.database.Cursor;
+
+/**
+ * Maps cursor rows to {@link WhatsAppMessage}s. The column indexes are resolved once when the
+ * mapper is created, instead of once per field and row. A mapper can be reused for all cursors
+ * with the same columns.
+ */
+public class MessageRowMapper {
+    private final int[] indexes;
+
+    public MessageRowMapper(Cursor c) {
+        final WhatsAppMessage.Fields[] fields = WhatsAppMessage.Fields.values();
+        indexes = new int[fields.length];
+        for (WhatsAppMessage.Fields field : fields) {
+            indexes[field.ordinal()] = field.colIndex(c);
+        }
+    }
+
+    /**
+     * @param c a cursor positioned on a row
+     */
+    public WhatsAppMessage map(Cursor c) {
+        return map(c, null);
+    }
+
+    /**
+     * @param c a cursor positioned on a row
+     * @param blobLoader loads the media blobs on demand if they are not part of the query, may be null
+     */
+    public WhatsAppMessage map(Cursor c, BlobLoader blobLoader) {
+        return new WhatsAppMessage(this, c, blobLoader);
+    }
+
+    /**
+     * @return if the cursor this mapper was created for contains field
+     */
+    public boolean has(WhatsAppMessage.Fields field) {
+        return indexes[field.ordinal()] >= 0;
+    }
+
+    /* package */ int getInt(Cursor c, WhatsAppMessage.Fields field) {
+        final int idx = indexes[field.ordinal()];
+        return idx >= 0 ? c.getInt(idx) : 0;
+    }
+
+    /* package */ long getLong(Cursor c, WhatsAppMessage.Fields field) {
+        final int idx = indexes[field.ordinal()];
+        return idx >= 0 ? c.getLong(idx) : 0;
+    }
+
+    /* package */ String getString(Cursor c, WhatsAppMessage.Fields field) {
+        final int idx = indexes[field.ordinal()];
+        return idx >= 0 ? c.getString(idx) : null;
+    }
+
+    /* package */ double getDouble(Cursor c, WhatsAppMessage.Fields field) {
+        final int idx = indexes[field.ordinal()];
+        return idx >= 0 ? c.getDouble(idx) : 0;
+    }
+
+    /* package */ byte[] getBlob(Cursor c, WhatsAppMessage.Fields field) {
+        final int idx = indexes[field.ordinal()];
+        return idx >= 0 ? c.getBlob(idx) : null;
+    }
+}
@@ -0,0 +1,416 @@
+package com.github.jberkel.whassup.model;
+
+import android.database.Cursor;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import static com.github.jberkel.whassup.model.WhatsAppMessage.Fields.*;
+
+/**
+ * Messages stored column by column in primitive arrays, for holding large numbers of messages
+ * in memory. JIDs are stored as the ids of the interned {@link Jid}s and mime types are
+ * dictionary encoded, so every distinct value is stored once.
+ * Locations are stored only for the few messages which have one.
+ * <p>
+ * Scans should use the column accessors such as {@link #getTimestamp(int)}; {@link Row} offers
+ * the accessors of {@link WhatsAppMessage} for a single row. Blobs and receipts are not part of
+ * the table.
+ */
+public class MessageTable implements Iterable<MessageTable.Row> {
+    private static final int NULL = -1;
+
+    private final BlobLoader blobLoader;
+    private final Dictionary mimeTypes = new Dictionary();
+
+    private int size;
+    private long[] ids;
+    private long[] timestamps;
+    private int[] status;
+    private int[] fromMe;
+    private int[] mediaSize;
+    private int[] recipientCount;
+    private int[] chatIds;
+    private int[] remoteResources;
+    private int[] mimeTypeIds;
+    private String[] texts;
+    /** ascending rows with a location, and their coordinates */
+    private int locations;
+    private int[] locationRows = new int[0];
+    private double[] latitudes = new double[0];
+    private double[] longitudes = new double[0];
+
+    /**
+     * Reads all remaining rows of the cursor, which is not closed.
+     */
+    public MessageTable(Cursor c) {
+        this(c, null);
+    }
+
+    /**
+     * @param blobLoader loads the media blobs of {@link Row#getMedia()}, may be null
+     */
+    public MessageTable(Cursor c, BlobLoader blobLoader) {
+        this.blobLoader = blobLoader;
+        allocate(Math.max(c.getCount() - Math.max(c.getPosition(), 0), 16));
+
+        final MessageRowMapper m = new MessageRowMapper(c);
+        while (c.moveToNext()) {
+            if (size == ids.length) {
+                allocate(size * 2);
+            }
+            ids[size]             = m.getLong(c, _ID);
+            timestamps[size]      = m.getLong(c, TIMESTAMP);
+            status[size]          = m.getInt(c, STATUS);
+            fromMe[size]          = m.getInt(c, KEY_FROM_ME);
+            mediaSize[size]       = m.getInt(c, MEDIA_SIZE);
+            recipientCount[size]  = m.getInt(c, RECIPIENT_COUNT);
+            chatIds[size]         = encode(Jid.of(m.getString(c, KEY_REMOTE_JID)));
+            remoteResources[size] = encode(Jid.of(m.getString(c, REMOTE_RESOURCE)));
+            mimeTypeIds[size]     = mimeTypes.encode(m.getString(c, MEDIA_MIME_TYPE));
+            texts[size]           = m.getString(c, DATA);
+            addLocation(size, m.getDouble(c, LATITUDE), m.getDouble(c, LONGITUDE));
+            size++;
+        }
+        allocate(size);
+        locationRows = resize(locationRows, locations);
+        latitudes    = resize(latitudes, locations);
+        longitudes   = resize(longitudes, locations);
+        mimeTypes.freeze();
+    }
+
+    /**
+     * @return the number of messages
+     */
+    public int size() {
+        return size;
+    }
+
+    public long getId(int row) {
+        return ids[check(row)];
+    }
+
+    /**
+     * @return the timestamp, epoch format
+     */
+    public long getTimestamp(int row) {
+        return timestamps[check(row)];
+    }
+
+    public int getStatus(int row) {
+        return status[check(row)];
+    }
+
+    public boolean isReceived(int row) {
+        return fromMe[check(row)] == 0;
+    }
+
+    public int getMediaSize(int row) {
+        return mediaSize[check(row)];
+    }
+
+    public int getRecipientCount(int row) {
+        return recipientCount[check(row)];
+    }
+
+    public String getChatId(int row) {
+        final Jid jid = getChatJid(row);
+        return jid == null ? null : jid.toString();
+    }
+
+    public Jid getChatJid(int row) {
+        return decode(chatIds[check(row)]);
+    }
+
+    public String getRemoteResource(int row) {
+        final Jid jid = getRemoteResourceJid(row);
+        return jid == null ? null : jid.toString();
+    }
+
+    public Jid getRemoteResourceJid(int row) {
+        return decode(remoteResources[check(row)]);
+    }
+
+    public String getMimeType(int row) {
+        return mimeTypes.decode(mimeTypeIds[check(row)]);
+    }
+
+    public double getLatitude(int row) {
+        final int location = location(check(row));
+        return location >= 0 ? latitudes[location] : 0;
+    }
+
+    public double getLongitude(int row) {
+        final int location = location(check(row));
+        return location >= 0 ? longitudes[location] : 0;
+    }
+
+    public String getText(int row) {
+        return texts[check(row)];
+    }
+
+    /**
+     * @return a view of the given row
+     */
+    public Row get(int row) {
+        return new Row(check(row));
+    }
+
+    @Override
+    public Iterator<Row> iterator() {
+        return new Iterator<Row>() {
+            private int next;
+
+            @Override
+            public boolean hasNext() {
+                return next < size;
+            }
+
+            @Override
+            public Row next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return new Row(next++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private int check(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("row " + row + ", size " + size);
+        }
+        return row;
+    }
+
+    private static int encode(Jid jid) {
+        return jid == null ? NULL : jid.getId();
+    }
+
+    private static Jid decode(int id) {
+        return id == NULL ? null : Jid.get(id);
+    }
+
+    private int location(int row) {
+        int low = 0, high = locations - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (locationRows[mid] < row) {
+                low = mid + 1;
+            } else if (locationRows[mid] > row) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private void addLocation(int row, double latitude, double longitude) {
+        if (latitude == 0 && longitude == 0) return;
+        if (locations == locationRows.length) {
+            final int capacity = Math.max(16, locations * 2);
+            locationRows = resize(locationRows, capacity);
+            latitudes    = resize(latitudes, capacity);
+            longitudes   = resize(longitudes, capacity);
+        }
+        locationRows[locations] = row;
+        latitudes[locations]    = latitude;
+        longitudes[locations]   = longitude;
+        locations++;
+    }
+
+    private void allocate(int capacity) {
+        if (ids != null && ids.length == capacity) return;
+        if (ids == null) {
+            ids             = new long[capacity];
+            timestamps      = new long[capacity];
+            status          = new int[capacity];
+            fromMe          = new int[capacity];
+            mediaSize       = new int[capacity];
+            recipientCount  = new int[capacity];
+            chatIds         = new int[capacity];
+            remoteResources = new int[capacity];
+            mimeTypeIds     = new int[capacity];
+            texts           = new String[capacity];
+        } else {
+            ids             = resize(ids, capacity);
+            timestamps      = resize(timestamps, capacity);
+            status          = resize(status, capacity);
+            fromMe          = resize(fromMe, capacity);
+            mediaSize       = resize(mediaSize, capacity);
+            recipientCount  = resize(recipientCount, capacity);
+            chatIds         = resize(chatIds, capacity);
+            remoteResources = resize(remoteResources, capacity);
+            mimeTypeIds     = resize(mimeTypeIds, capacity);
+            texts           = resize(texts, capacity);
+        }
+    }
+
+    // Arrays.copyOf() is only available from API level 9
+    private static long[] resize(long[] array, int length) {
+        final long[] copy = new long[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static int[] resize(int[] array, int length) {
+        final int[] copy = new int[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static double[] resize(double[] array, int length) {
+        final double[] copy = new double[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    private static String[] resize(String[] array, int length) {
+        final String[] copy = new String[length];
+        System.arraycopy(array, 0, copy, 0, Math.min(array.length, length));
+        return copy;
+    }
+
+    /**
+     * A single message of the table, with the same accessors as {@link WhatsAppMessage}.
+     */
+    public class Row {
+        private final int row;
+
+        private Row(int row) {
+            this.row = row;
+        }
+
+        public long getId() {
+            return ids[row];
+        }
+
+        public String getChatId() {
+            return MessageTable.this.getChatId(row);
+        }
+
+        public Jid getJid() {
+            return decode(chatIds[row]);
+        }
+
+        public Jid getRemoteResourceJid() {
+            return decode(remoteResources[row]);
+        }
+
+        public boolean isReceived() {
+            return fromMe[row] == 0;
+        }
+
+        public Date getTimestamp() {
+            return new Date(timestamps[row]);
+        }
+
+        public String getText() {
+            return texts[row];
+        }
+
+        public String getFilteredText() {
+            return WhatsAppMessage.filterPrivateBlock(texts[row]);
+        }
+
+        public int getStatus() {
+            return status[row];
+        }
+
+        public double getLongitude() {
+            return MessageTable.this.getLongitude(row);
+        }
+
+        public double getLatitude() {
+            return MessageTable.this.getLatitude(row);
+        }
+
+        public int getRecipientCount() {
+            return recipientCount[row];
+        }
+
+        public String getOwner() {
+            final Jid jid = getJid();
+            return jid == null ? null : jid.getOwner();
+        }
+
+        public String getSender() {
+            return WhatsAppMessage.getSender(getJid(), fromMe[row], getRemoteResourceJid());
+        }
+
+        public String[] getRecipients() {
+            return WhatsAppMessage.getRecipients(getJid(), fromMe[row], getRemoteResourceJid());
+        }
+
+        /**
+         * @return the media of this message, its blobs are loaded on demand if the table has a
+         *         {@link BlobLoader}
+         */
+        public Media getMedia() {
+            return new Media(ids[row], blobLoader, mimeTypes.decode(mimeTypeIds[row]), mediaSize[row]);
+        }
+
+        public boolean hasText() {
+            return texts[row] != null && texts[row].length() > 0;
+        }
+
+        public boolean isDirectMessage() {
+            final Jid jid = getJid();
+            return jid != null && jid.isDirect();
+        }
+
+        public boolean isGroupMessage() {
+            final Jid jid = getJid();
+            return jid != null && jid.isGroup();
+        }
+
+        @Override
+        public String toString() {
+            return "Row{" +
+                    "id=" + getId() +
+                    ", chatId='" + getChatId() + '\'' +
+                    ", text='" + getText() + '\'' +
+                    ", timestamp=" + getTimestamp() +
+                    '}';
+        }
+    }
+
+    /**
+     * Maps strings to dense int codes, {@link #NULL} for null.
+     */
+    private static class Dictionary {
+        private Map<String, Integer> codes = new HashMap<String, Integer>();
+        private String[] values = new String[16];
+
+        int encode(String value) {
+            if (value == null) return NULL;
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = codes.size();
+                if (code == values.length) {
+                    values = resize(values, code * 2);
+                }
+                values[code] = value;
+                codes.put(value, code);
+            }
+            return code;
+        }
+
+        String decode(int code) {
+            return code == NULL ? null : values[code];
+        }
+
+        /** drops the lookup map once all values have been added */
+        void freeze() {
+            values = resize(values, codes.size());
+            codes = null;
+        }
+    }
+}
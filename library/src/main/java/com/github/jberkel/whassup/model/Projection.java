@@ -0,0 +1,47 @@
+package com.github.jberkel.whassup.model;
+
+import java.util.EnumSet;
+
+import static com.github.jberkel.whassup.model.WhatsAppMessage.Fields.*;
+
+/**
+ * Which columns of the messages table a query fetches. Columns which are not fetched
+ * read as 0 / null in {@link WhatsAppMessage}, {@link Media} and {@link Receipt}; blobs can be
+ * loaded on demand with a {@link BlobLoader}.
+ */
+public enum Projection {
+    /** enough to display the text of a conversation */
+    TEXT(EnumSet.of(_ID, KEY_REMOTE_JID, KEY_FROM_ME, KEY_ID, STATUS, DATA, TIMESTAMP, REMOTE_RESOURCE)),
+
+    /** what {@link GroupIndex} needs */
+    EVENTS(EnumSet.of(_ID, KEY_REMOTE_JID, KEY_FROM_ME, STATUS, MEDIA_SIZE, DATA, TIMESTAMP, REMOTE_RESOURCE)),
+
+    /** everything but the <code>raw_data</code> and <code>thumb_image</code> blobs */
+    METADATA(EnumSet.complementOf(EnumSet.of(RAW_DATA, THUMB_IMAGE))),
+
+    /** all columns */
+    FULL(EnumSet.allOf(WhatsAppMessage.Fields.class));
+
+    private final EnumSet<WhatsAppMessage.Fields> fields;
+    private final String[] columns;
+
+    Projection(EnumSet<WhatsAppMessage.Fields> fields) {
+        this.fields = fields;
+        this.columns = new String[fields.size()];
+        int i = 0;
+        for (WhatsAppMessage.Fields field : fields) {
+            columns[i++] = field.toString();
+        }
+    }
+
+    /**
+     * @return the columns to query, or null for all columns
+     */
+    public String[] getColumns() {
+        return this == FULL ? null : columns.clone();
+    }
+
+    public boolean includes(WhatsAppMessage.Fields field) {
+        return fields.contains(field);
+    }
+}
@@ -14,10 +14,14 @@ public class Receipt {
     }
 
     public Receipt(Cursor cursor) {
-        this.receipt_device_timestamp = RECEIPT_DEVICE_TIMESTAMP.getLong(cursor);
-        this.send_timestamp           = SEND_TIMESTAMP.getLong(cursor);
-        this.receipt_server_timestamp = RECEIPT_SERVER_TIMESTAMP.getLong(cursor);
-        this.received_timestamp       = RECEIVED_TIMESTAMP.getLong(cursor);
+        this(new MessageRowMapper(cursor), cursor);
+    }
+
+    /* package */ Receipt(MessageRowMapper m, Cursor cursor) {
+        this.receipt_device_timestamp = m.getLong(cursor, RECEIPT_DEVICE_TIMESTAMP);
+        this.send_timestamp           = m.getLong(cursor, SEND_TIMESTAMP);
+        this.receipt_server_timestamp = m.getLong(cursor, RECEIPT_SERVER_TIMESTAMP);
+        this.received_timestamp       = m.getLong(cursor, RECEIVED_TIMESTAMP);
     }
 
     @Override
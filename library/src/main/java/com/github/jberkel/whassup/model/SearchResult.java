@@ -0,0 +1,33 @@
+package com.github.jberkel.whassup.model;
+
+/**
+ * A message found by a full-text search.
+ */
+public class SearchResult {
+    private final WhatsAppMessage message;
+    private final double score;
+
+    public SearchResult(WhatsAppMessage message, double score) {
+        this.message = message;
+        this.score = score;
+    }
+
+    public WhatsAppMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * @return the rank of the message, higher is better; only comparable within one search
+     */
+    public double getScore() {
+        return score;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchResult{" +
+                "message=" + message +
+                ", score=" + score +
+                '}';
+    }
+}
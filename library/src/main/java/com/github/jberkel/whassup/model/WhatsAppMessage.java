@@ -5,8 +5,9 @@ import android.text.TextUtils;
 
 import java.util.Comparator;
 import java.util.Date;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Locale;
+import java.util.Set;
 
 import static com.github.jberkel.whassup.model.WhatsAppMessage.Fields.*;
 
@@ -47,7 +48,7 @@ public class WhatsAppMessage implements Comparable<WhatsAppMessage> {
     private static final String GROUP  = "g.us";
     private static final String DIRECT = "s.whatsapp.net";
     
-    private static final String OWN = "-1";
+    /* package */ static final String OWN = "-1";
 
     public WhatsAppMessage() {
         this.media = new Media();
@@ -55,22 +56,34 @@ public class WhatsAppMessage implements Comparable<WhatsAppMessage> {
     }
 
     public WhatsAppMessage(Cursor c) {
-        this._id             = _ID.getLong(c);
-        this.key_remote_jid  = KEY_REMOTE_JID.getString(c);
-        this.key_from_me     = KEY_FROM_ME.getInt(c);
-        this.timestamp       = TIMESTAMP.getLong(c);
-        this.data            = DATA.getString(c);
-        this.media_size      = MEDIA_SIZE.getInt(c);
-        this.status          = STATUS.getInt(c);
-        this.key_id          = KEY_ID.getString(c);
-        this.longitude       = LONGITUDE.getDouble(c);
-        this.latitude        = LATITUDE.getDouble(c);
-        this.needs_push      = NEEDS_PUSH.getInt(c);
-        this.remote_resource = REMOTE_RESOURCE.getString(c);
-        this.recipient_count = RECIPIENT_COUNT.getInt(c);
-        this.origin          = ORIGIN.getInt(c);
-        this.media   = new Media(c);
-        this.receipt = new Receipt(c);
+        this(c, null);
+    }
+
+    /**
+     * @param blobLoader loads the media blobs on demand if they are not part of the query, may be null
+     * @see Projection
+     */
+    public WhatsAppMessage(Cursor c, BlobLoader blobLoader) {
+        this(new MessageRowMapper(c), c, blobLoader);
+    }
+
+    /* package */ WhatsAppMessage(MessageRowMapper m, Cursor c, BlobLoader blobLoader) {
+        this._id             = m.getLong(c, _ID);
+        this.key_remote_jid  = m.getString(c, KEY_REMOTE_JID);
+        this.key_from_me     = m.getInt(c, KEY_FROM_ME);
+        this.timestamp       = m.getLong(c, TIMESTAMP);
+        this.data            = m.getString(c, DATA);
+        this.media_size      = m.getInt(c, MEDIA_SIZE);
+        this.status          = m.getInt(c, STATUS);
+        this.key_id          = m.getString(c, KEY_ID);
+        this.longitude       = m.getDouble(c, LONGITUDE);
+        this.latitude        = m.getDouble(c, LATITUDE);
+        this.needs_push      = m.getInt(c, NEEDS_PUSH);
+        this.remote_resource = m.getString(c, REMOTE_RESOURCE);
+        this.recipient_count = m.getInt(c, RECIPIENT_COUNT);
+        this.origin          = m.getInt(c, ORIGIN);
+        this.media   = new Media(m, c, _id, blobLoader);
+        this.receipt = new Receipt(m, c);
     }
 
 
@@ -129,6 +142,9 @@ public class WhatsAppMessage implements Comparable<WhatsAppMessage> {
     Media media;
     Receipt receipt;
 
+    /** set for group messages if the members are known */
+    GroupIndex groups;
+
     double longitude;
     double latitude;
 
@@ -156,6 +172,28 @@ public class WhatsAppMessage implements Comparable<WhatsAppMessage> {
         return key_remote_jid;
     }
 
+    /**
+     * @return the id WhatsApp assigned to the message, unique within the chat and direction; it
+     *         stays the same across backups while <code>_id</code> may not
+     */
+    public String getKeyId() {
+        return key_id;
+    }
+
+    /**
+     * @return the parsed <code>key_remote_jid</code>, or null
+     */
+    public Jid getJid() {
+        return Jid.of(key_remote_jid);
+    }
+
+    /**
+     * @return the parsed <code>remote_resource</code> (the sender of received group messages), or null
+     */
+    public Jid getRemoteResourceJid() {
+        return Jid.of(remote_resource);
+    }
+
     public boolean isReceived() {
         return key_from_me == 0;
     }
@@ -194,44 +232,82 @@ public class WhatsAppMessage implements Comparable<WhatsAppMessage> {
     }
 
     public String getOwner() {
-        if (TextUtils.isEmpty(key_remote_jid) || !key_remote_jid.contains("@"))
-                return null;
-        String[] components = key_remote_jid.split("@", 2);
-        if (!isGroupMessage()) {
-            return components[0];
-        } else {
-            return components[0].split("-")[0];
-        }
+        return getOwner(key_remote_jid);
     }
 
     public String getSender() {
-        if ( TextUtils.isEmpty(key_remote_jid) || !key_remote_jid.contains("@") )
+        return getSender(key_remote_jid, key_from_me, remote_resource);
+    }
+
+    // Note: OWN may already be on the list if we are the group owner and we don't have the DB owner's number.
+    public String[] getRecipients() {
+        if (groups != null && isGroupMessage()) {
+            final String[] members = groups.getMembers(key_remote_jid, getTimestamp());
+            if (members != null) {
+                return getRecipients(members, groups.getOwnNumber(), getSender());
+            }
+        }
+        return getRecipients(key_remote_jid, key_from_me, remote_resource);
+    }
+
+    /* package */ static String getOwner(String jid) {
+        final Jid parsed = Jid.of(jid);
+        return parsed == null ? null : parsed.getOwner();
+    }
+
+    /* package */ static String getSender(String jid, int fromMe, String remoteResource) {
+        return getSender(Jid.of(jid), fromMe, Jid.of(remoteResource));
+    }
+
+    /* package */ static String getSender(Jid jid, int fromMe, Jid remoteResource) {
+        if (jid == null || !jid.isValid())
                 return null;
-        if ( isReceived() || !TextUtils.isEmpty(remote_resource) ) {
-            String[] components = !TextUtils.isEmpty(remote_resource) ?
-                    remote_resource.split("@", 2) : key_remote_jid.split("@", 2);
-            if (TextUtils.isDigitsOnly(components[0])) {
-                return components[0];
+        final boolean hasResource = remoteResource != null && remoteResource.toString().length() > 0;
+        if (fromMe == 0 || hasResource) {
+            final Jid sender = hasResource ? remoteResource : jid;
+            if (sender.isDigitsOnly()) {
+                return sender.getUser();
             } else { // Handle rare case with really old messages in DB (before march 9th, 2011).
-                components = key_remote_jid.split("@", 2);
-                return components[0];
+                return jid.getUser();
             }
         } else {
             return OWN;
         }
     }
 
-    // Note: OWN may already be on the list if we are the group owner and we don't have the DB owner's number.
-    public String[] getRecipients() {
-        if ( TextUtils.isEmpty(key_remote_jid) || !key_remote_jid.contains("@") )
+    /**
+     * @return the group members and the owner of the backup, without the sender
+     */
+    private static String[] getRecipients(String[] members, String ownNumber, String sender) {
+        final Set<String> recipients = new LinkedHashSet<String>();
+        for (String member : members) {
+            recipients.add(member.equals(ownNumber) ? OWN : member);
+        }
+        recipients.add(OWN);
+        recipients.remove(sender);
+        return recipients.toArray(new String[recipients.size()]);
+    }
+
+    /* package */ static String[] getRecipients(String jid, int fromMe, String remoteResource) {
+        return getRecipients(Jid.of(jid), fromMe, Jid.of(remoteResource));
+    }
+
+    /* package */ static String[] getRecipients(Jid jid, int fromMe, Jid remoteResource) {
+        if (jid == null || !jid.isValid())
                 return null;
-        HashSet<String> recipients = new HashSet<String>();
-        recipients.add( getOwner() );
-        recipients.add( OWN );
-        // TODO: Add the other recipients
-        // TODO: We need other object to search group members in DB.
-        recipients.remove( getSender() );
-        return recipients.toArray(); 
+        final String owner = jid.getOwner();
+        final String sender = getSender(jid, fromMe, remoteResource);
+        final boolean withOwner = !owner.equals(sender);
+        final boolean withOwn = !OWN.equals(owner) && !OWN.equals(sender);
+        if (withOwner && withOwn) {
+            return new String[] { owner, OWN };
+        } else if (withOwner) {
+            return new String[] { owner };
+        } else if (withOwn) {
+            return new String[] { OWN };
+        } else {
+            return new String[0];
+        }
     }
 
     public Media getMedia() {
@@ -268,11 +344,26 @@ public class WhatsAppMessage implements Comparable<WhatsAppMessage> {
     }
 
     public boolean isDirectMessage() {
-        return key_remote_jid != null && key_remote_jid.endsWith(DIRECT);
+        return isDirect(key_remote_jid);
     }
 
     public boolean isGroupMessage() {
-        return key_remote_jid != null && key_remote_jid.endsWith(GROUP);
+        return isGroup(key_remote_jid);
+    }
+
+    /**
+     * @return if this is a group event (name change, member joined or left) rather than a message
+     */
+    public boolean isGroupEvent() {
+        return status == GroupIndex.STATUS_GROUP_EVENT;
+    }
+
+    /* package */ static boolean isDirect(String jid) {
+        return jid != null && jid.endsWith(DIRECT);
+    }
+
+    /* package */ static boolean isGroup(String jid) {
+        return jid != null && jid.endsWith(GROUP);
     }
 
     public enum Fields {
@@ -304,8 +395,10 @@ public class WhatsAppMessage implements Comparable<WhatsAppMessage> {
         RECEIPT_DEVICE_TIMESTAMP
         ;
 
+        private final String column = name().toLowerCase(Locale.ENGLISH);
+
         @Override public String toString() {
-            return this.name().toLowerCase(Locale.ENGLISH);
+            return column;
         }
 
         public int colIndex(Cursor c) {
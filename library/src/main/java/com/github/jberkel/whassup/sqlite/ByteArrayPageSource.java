@@ -0,0 +1,42 @@
+package com.github.jberkel.whassup.sqlite;
+
+import java.io.EOFException;
+
+/**
+ * A database held completely in memory.
+ */
+public class ByteArrayPageSource implements PageSource {
+    private final byte[] data;
+    private final int length;
+
+    public ByteArrayPageSource(byte[] data) {
+        this(data, data.length);
+    }
+
+    /**
+     * @param data the database, not copied
+     * @param length how many bytes of data are valid
+     */
+    public ByteArrayPageSource(byte[] data, int length) {
+        if (length < 0 || length > data.length) throw new IllegalArgumentException("invalid length " + length);
+        this.data = data;
+        this.length = length;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void read(long position, byte[] buffer, int offset, int length) throws EOFException {
+        if (position < 0 || position + length > this.length) {
+            throw new EOFException("cannot read " + length + " bytes at " + position);
+        }
+        System.arraycopy(data, (int) position, buffer, offset, length);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,18 @@
+package com.github.jberkel.whassup.sqlite;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Random access to the plaintext bytes of a SQLite database.
+ */
+public interface PageSource extends Closeable {
+    /** @return the length of the database, in bytes */
+    long length() throws IOException;
+
+    /**
+     * Reads exactly length bytes starting at position into buffer.
+     * @throws java.io.EOFException if the database ends before
+     */
+    void read(long position, byte[] buffer, int offset, int length) throws IOException;
+}
@@ -0,0 +1,277 @@
+package com.github.jberkel.whassup.sqlite;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A read-only reader for the SQLite file format. It reads pages from a {@link PageSource} on
+ * demand (keeping a bounded number of them in an LRU cache), so a database can be queried without
+ * handing a file to the SQLite library.
+ * <p>
+ * Supports rowid tables and overflow pages; rows are returned as <code>Object[]</code> containing
+ * {@link Long}, {@link Double}, {@link String}, <code>byte[]</code> or <code>null</code>.
+ *
+ * @see <a href="http://www.sqlite.org/fileformat.html">Database File Format</a>
+ */
+public class SQLiteFile implements Closeable {
+    public static final int DEFAULT_CACHE_PAGES = 256;
+
+    /* package */ static final int INTERIOR_INDEX = 2;
+    /* package */ static final int INTERIOR_TABLE = 5;
+    /* package */ static final int LEAF_INDEX     = 10;
+    /* package */ static final int LEAF_TABLE     = 13;
+
+    private static final String MASTER = "sqlite_master";
+
+    private final PageSource source;
+    private final SQLiteHeader header;
+    private final int usableSize;
+    private final int maxPage;
+    private final Map<Integer, byte[]> cache;
+    private Map<String, Table> tables;
+
+    public SQLiteFile(PageSource source) throws IOException {
+        this(source, DEFAULT_CACHE_PAGES);
+    }
+
+    /**
+     * @param source the database
+     * @param cachePages how many pages to keep in memory
+     * @throws IOException if the header could not be read or is invalid
+     */
+    public SQLiteFile(PageSource source, final int cachePages) throws IOException {
+        this.source = source;
+        final byte[] data = new byte[SQLiteHeader.SIZE];
+        source.read(0, data, 0, data.length);
+        this.header = SQLiteHeader.parse(data);
+        this.usableSize = header.getPageSize() - header.getReservedBytes();
+        this.maxPage = (int) (source.length() / header.getPageSize());
+        this.cache = new LinkedHashMap<Integer, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, byte[]> eldest) {
+                return size() > cachePages;
+            }
+        };
+    }
+
+    public SQLiteHeader getHeader() {
+        return header;
+    }
+
+    /**
+     * @return the table or null if it does not exist
+     */
+    public Table getTable(String name) throws IOException {
+        return schema().get(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    public Collection<Table> getTables() throws IOException {
+        return Collections.unmodifiableCollection(schema().values());
+    }
+
+    /**
+     * @return a scan over all rows of table, in ascending rowid order
+     */
+    public TableScan scan(Table table) throws IOException {
+        return scan(table, false);
+    }
+
+    /**
+     * @param reverse scan in descending rowid order
+     */
+    public TableScan scan(Table table, boolean reverse) throws IOException {
+        if (table.isWithoutRowId()) {
+            throw new IOException("WITHOUT ROWID tables are not supported: " + table.getName());
+        }
+        return new TableScan(this, table, reverse);
+    }
+
+    /**
+     * Looks up a single row, only reading the pages on the path from the root to the row.
+     * @return the row or null if there is no row with this rowid
+     */
+    public Object[] get(Table table, long rowId) throws IOException {
+        TableScan scan = scan(table).seek(rowId);
+        return scan.next() && scan.getRowId() == rowId ? scan.getValues() : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (cache) {
+            cache.clear();
+        }
+        source.close();
+    }
+
+    private synchronized Map<String, Table> schema() throws IOException {
+        if (tables == null) {
+            final Map<String, Table> schema = new LinkedHashMap<String, Table>();
+            final Table master = Table.parse(MASTER, 1,
+                    "CREATE TABLE sqlite_master(type text, name text, tbl_name text, rootpage integer, sql text)");
+            schema.put(MASTER, master);
+
+            final TableScan scan = new TableScan(this, master, false);
+            while (scan.next()) {
+                final Object[] row = scan.getValues();
+                final Object rootPage = row[3];
+                if ("table".equals(row[0]) && row[4] instanceof String &&
+                        rootPage instanceof Long && (Long) rootPage > 0) {
+                    final String name = (String) row[1];
+                    schema.put(name.toLowerCase(Locale.ENGLISH),
+                            Table.parse(name, ((Long) rootPage).intValue(), (String) row[4]));
+                }
+            }
+            tables = schema;
+        }
+        return tables;
+    }
+
+    /**
+     * @param number the page number, starting at 1
+     */
+    /* package */ byte[] page(int number) throws IOException {
+        if (number < 1 || number > maxPage) {
+            throw new EOFException("invalid page number " + number + " (database has " + maxPage + " pages)");
+        }
+        synchronized (cache) {
+            byte[] page = cache.get(number);
+            if (page == null) {
+                page = new byte[header.getPageSize()];
+                source.read((long) (number - 1) * header.getPageSize(), page, 0, page.length);
+                cache.put(number, page);
+            }
+            return page;
+        }
+    }
+
+    /**
+     * @return the offset of the b-tree page header, page 1 starts with the database header
+     */
+    /* package */ static int headerOffset(int number) {
+        return number == 1 ? SQLiteHeader.SIZE : 0;
+    }
+
+    /**
+     * @return how much of a payload of the given size is stored on a leaf page of a table b-tree
+     */
+    /* package */ int localPayload(long payloadSize) {
+        final int maxLocal = usableSize - 35;
+        if (payloadSize <= maxLocal) return (int) payloadSize;
+
+        final int minLocal = ((usableSize - 12) * 32 / 255) - 23;
+        final int local = (int) (minLocal + ((payloadSize - minLocal) % (usableSize - 4)));
+        return local <= maxLocal ? local : minLocal;
+    }
+
+    /**
+     * Copies the payload of a cell, following the chain of overflow pages if necessary.
+     */
+    /* package */ byte[] payload(byte[] page, int offset, long size) throws IOException {
+        if (size > Integer.MAX_VALUE) throw new IOException("payload too large: " + size);
+
+        final byte[] payload = new byte[(int) size];
+        final int local = localPayload(size);
+        System.arraycopy(page, offset, payload, 0, local);
+
+        int copied = local;
+        int overflow = SQLiteHeader.readInt(page, offset + local, local < size ? 4 : 0);
+        while (copied < size) {
+            if (overflow == 0) throw new IOException("overflow chain ends prematurely");
+            final byte[] overflowPage = page(overflow);
+            final int n = Math.min(usableSize - 4, payload.length - copied);
+            System.arraycopy(overflowPage, 4, payload, copied, n);
+            copied += n;
+            overflow = SQLiteHeader.readInt(overflowPage, 0, 4);
+        }
+        return payload;
+    }
+
+    /**
+     * Decodes a record into values, one per column.
+     */
+    /* package */ Object[] decodeRecord(byte[] payload, int columns) throws IOException {
+        final Object[] values = new Object[columns];
+        final long[] varint = new long[1];
+
+        int headerPos = readVarint(payload, 0, varint);
+        final int headerSize = (int) varint[0];
+        int bodyPos = headerSize;
+        for (int column = 0; headerPos < headerSize; column++) {
+            headerPos = readVarint(payload, headerPos, varint);
+            final long type = varint[0];
+            final int length = serialTypeLength(type);
+            if (bodyPos + length > payload.length) throw new IOException("corrupt record");
+
+            if (column < columns) {
+                values[column] = decodeValue(payload, bodyPos, type, length);
+            }
+            bodyPos += length;
+        }
+        return values;
+    }
+
+    private Object decodeValue(byte[] payload, int offset, long type, int length) throws UnsupportedEncodingException {
+        if (type == 0) {
+            return null;
+        } else if (type <= 6) {
+            return readSigned(payload, offset, length);
+        } else if (type == 7) {
+            return Double.longBitsToDouble(readSigned(payload, offset, 8));
+        } else if (type == 8 || type == 9) {
+            return type - 8;
+        } else if (type % 2 == 0) {
+            final byte[] blob = new byte[length];
+            System.arraycopy(payload, offset, blob, 0, length);
+            return blob;
+        } else {
+            return new String(payload, offset, length, header.getCharset());
+        }
+    }
+
+    private static int serialTypeLength(long type) throws IOException {
+        switch ((int) Math.min(type, 12)) {
+            case 0: case 8: case 9: return 0;
+            case 1: return 1;
+            case 2: return 2;
+            case 3: return 3;
+            case 4: return 4;
+            case 5: return 6;
+            case 6: case 7: return 8;
+            case 10: case 11: throw new IOException("invalid serial type " + type);
+            default: return (int) ((type - 12) / 2);
+        }
+    }
+
+    private static long readSigned(byte[] data, int offset, int length) {
+        long value = data[offset];
+        for (int i = 1; i < length; i++) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * @param result receives the value in result[0]
+     * @return the offset after the varint
+     */
+    /* package */ static int readVarint(byte[] data, int offset, long[] result) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            final int b = data[offset + i] & 0xff;
+            value = (value << 7) | (b & 0x7f);
+            if ((b & 0x80) == 0) {
+                result[0] = value;
+                return offset + i + 1;
+            }
+        }
+        result[0] = (value << 8) | (data[offset + 8] & 0xff);
+        return offset + 9;
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.jberkel.whassup.sqlite;
+
+import java.io.IOException;
+
+/**
+ * The 100 byte header at the start of every SQLite database file.
+ *
+ * @see <a href="http://www.sqlite.org/fileformat.html">Database File Format</a>
+ */
+public class SQLiteHeader {
+    public static final int SIZE = 100;
+
+    public static final int ENCODING_UTF8    = 1;
+    public static final int ENCODING_UTF16LE = 2;
+    public static final int ENCODING_UTF16BE = 3;
+
+    private static final byte[] MAGIC = {
+        'S', 'Q', 'L', 'i', 't', 'e', ' ', 'f', 'o', 'r', 'm', 'a', 't', ' ', '3', 0
+    };
+
+    int pageSize;
+    int reservedBytes;
+    int changeCounter;
+    long pageCount;
+    int schemaCookie;
+    int schemaFormat;
+    int textEncoding;
+    int userVersion;
+    int versionValidFor;
+
+    /**
+     * @param data at least the first {@link #SIZE} bytes of the database
+     * @throws IOException if data does not look like a SQLite database
+     */
+    public static SQLiteHeader parse(byte[] data) throws IOException {
+        if (data.length < SIZE) throw new IOException("header too short: " + data.length);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[i] != MAGIC[i]) throw new IOException("not a SQLite database (wrong key or corrupt file)");
+        }
+        SQLiteHeader header = new SQLiteHeader();
+        int pageSize = readInt(data, 16, 2);
+        header.pageSize = pageSize == 1 ? 65536 : pageSize;
+        if (header.pageSize < 512 || Integer.bitCount(header.pageSize) != 1) {
+            throw new IOException("invalid page size " + pageSize);
+        }
+        header.reservedBytes = data[20] & 0xff;
+        header.changeCounter = readInt(data, 24, 4);
+        header.pageCount     = readInt(data, 28, 4) & 0xffffffffL;
+        header.schemaCookie  = readInt(data, 40, 4);
+        header.schemaFormat  = readInt(data, 44, 4);
+        header.textEncoding  = readInt(data, 56, 4);
+        header.userVersion   = readInt(data, 60, 4);
+        header.versionValidFor = readInt(data, 92, 4);
+        if (header.textEncoding == 0) {
+            header.textEncoding = ENCODING_UTF8;
+        } else if (header.textEncoding < ENCODING_UTF8 || header.textEncoding > ENCODING_UTF16BE) {
+            throw new IOException("invalid text encoding " + header.textEncoding);
+        }
+        return header;
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the number of bytes at the end of each page which are not used by SQLite
+     */
+    public int getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public int getChangeCounter() {
+        return changeCounter;
+    }
+
+    /**
+     * @return the size of the database in pages (only valid for files written by SQLite 3.7.0 or later)
+     */
+    public long getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * @return whether {@link #getPageCount()} can be trusted, older versions of SQLite do not
+     * update it
+     */
+    public boolean isPageCountValid() {
+        return pageCount != 0 && versionValidFor == changeCounter;
+    }
+
+    public int getSchemaCookie() {
+        return schemaCookie;
+    }
+
+    public int getSchemaFormat() {
+        return schemaFormat;
+    }
+
+    public int getTextEncoding() {
+        return textEncoding;
+    }
+
+    /**
+     * @return the user version, as set by <code>PRAGMA user_version</code>
+     */
+    public int getUserVersion() {
+        return userVersion;
+    }
+
+    /* package */ String getCharset() {
+        switch (textEncoding) {
+            case ENCODING_UTF16LE: return "UTF-16LE";
+            case ENCODING_UTF16BE: return "UTF-16BE";
+            default:               return "UTF-8";
+        }
+    }
+
+    /* package */ static int readInt(byte[] data, int offset, int length) {
+        int value = 0;
+        for (int i = 0; i < length; i++) {
+            value = (value << 8) | (data[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "SQLiteHeader{" +
+                "pageSize=" + pageSize +
+                ", pageCount=" + pageCount +
+                ", schemaCookie=" + schemaCookie +
+                ", schemaFormat=" + schemaFormat +
+                ", textEncoding=" + textEncoding +
+                ", userVersion=" + userVersion +
+                '}';
+    }
+}
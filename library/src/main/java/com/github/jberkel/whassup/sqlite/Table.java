@@ -0,0 +1,155 @@
+package com.github.jberkel.whassup.sqlite;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A table as declared in <code>sqlite_master</code>.
+ */
+public class Table {
+    private final String name;
+    private final int rootPage;
+    private final String[] columns;
+    private final int rowIdColumn;
+    private final boolean withoutRowId;
+
+    /* package */ Table(String name, int rootPage, String[] columns, int rowIdColumn, boolean withoutRowId) {
+        this.name = name;
+        this.rootPage = rootPage;
+        this.columns = columns;
+        this.rowIdColumn = rowIdColumn;
+        this.withoutRowId = withoutRowId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getRootPage() {
+        return rootPage;
+    }
+
+    public String[] getColumns() {
+        return columns.clone();
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    /**
+     * @return the index of the named column (case insensitive), or -1
+     */
+    public int getColumnIndex(String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equalsIgnoreCase(column)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the <code>INTEGER PRIMARY KEY</code> column which aliases the rowid, or -1
+     */
+    public int getRowIdColumn() {
+        return rowIdColumn;
+    }
+
+    public boolean isWithoutRowId() {
+        return withoutRowId;
+    }
+
+    /**
+     * Extracts the column names from a <code>CREATE TABLE</code> statement.
+     */
+    /* package */ static Table parse(String name, int rootPage, String sql) {
+        final int open = sql.indexOf('(');
+        final int close = sql.lastIndexOf(')');
+        if (open < 0 || close < open) {
+            return new Table(name, rootPage, new String[0], -1, false);
+        }
+        final List<String> columns = new ArrayList<String>();
+        int rowIdColumn = -1;
+        for (String definition : splitDefinitions(sql.substring(open + 1, close))) {
+            if (definition.length() == 0) continue;
+            final char closingQuote = closingQuote(definition.charAt(0));
+            final int end = identifierEnd(definition, closingQuote);
+            if (end < 0) continue;
+
+            final String column = closingQuote != 0 ? definition.substring(1, end - 1) : definition.substring(0, end);
+            final String rest = definition.substring(end).trim().toUpperCase(Locale.ENGLISH);
+            if (closingQuote == 0 && isConstraint(column.toUpperCase(Locale.ENGLISH))) continue;
+
+            if (rowIdColumn == -1 && rest.startsWith("INTEGER") && rest.contains("PRIMARY KEY") && !rest.contains("DESC")) {
+                rowIdColumn = columns.size();
+            }
+            columns.add(column);
+        }
+        final boolean withoutRowId = sql.substring(close).toUpperCase(Locale.ENGLISH).contains("WITHOUT ROWID");
+        return new Table(name, rootPage, columns.toArray(new String[columns.size()]),
+                withoutRowId ? -1 : rowIdColumn, withoutRowId);
+    }
+
+    private static boolean isConstraint(String token) {
+        return "CONSTRAINT".equals(token) || "PRIMARY".equals(token) || "UNIQUE".equals(token) ||
+               "CHECK".equals(token) || "FOREIGN".equals(token);
+    }
+
+    /**
+     * Splits on commas which are not inside parentheses or quotes.
+     */
+    private static List<String> splitDefinitions(String body) {
+        final List<String> definitions = new ArrayList<String>();
+        int depth = 0, start = 0;
+        char quote = 0;
+        for (int i = 0; i < body.length(); i++) {
+            final char c = body.charAt(i);
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if (closingQuote(c) != 0) {
+                quote = closingQuote(c);
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (c == ',' && depth == 0) {
+                definitions.add(body.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        definitions.add(body.substring(start).trim());
+        return definitions;
+    }
+
+    private static char closingQuote(char c) {
+        switch (c) {
+            case '[':  return ']';
+            case '"':
+            case '`':
+            case '\'': return c;
+            default:   return 0;
+        }
+    }
+
+    /**
+     * @return the index after the column name which starts definition, or -1
+     */
+    private static int identifierEnd(String definition, char closingQuote) {
+        if (closingQuote != 0) {
+            final int end = definition.indexOf(closingQuote, 1);
+            return end < 0 ? -1 : end + 1;
+        }
+        int end = 0;
+        while (end < definition.length() && !Character.isWhitespace(definition.charAt(end))) end++;
+        return end;
+    }
+
+    @Override
+    public String toString() {
+        return "Table{" +
+                "name='" + name + '\'' +
+                ", rootPage=" + rootPage +
+                ", columns=" + columns.length +
+                '}';
+    }
+}
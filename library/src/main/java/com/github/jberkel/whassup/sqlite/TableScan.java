@@ -0,0 +1,190 @@
+package com.github.jberkel.whassup.sqlite;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A cursor over the rows of a rowid table, in rowid order. Only the pages on the current path
+ * through the b-tree are held, so arbitrarily large tables can be scanned.
+ */
+public class TableScan {
+    private final SQLiteFile file;
+    private final Table table;
+    private final boolean reverse;
+    private final List<Frame> path = new ArrayList<Frame>();
+    private final long[] varint = new long[1];
+
+    private byte[] rowPage;
+    private int rowOffset;
+    private long rowPayloadSize;
+    private long rowId;
+    private Object[] values;
+
+    /* package */ TableScan(SQLiteFile file, Table table, boolean reverse) throws IOException {
+        this.file = file;
+        this.table = table;
+        this.reverse = reverse;
+        descend(table.getRootPage());
+    }
+
+    public Table getTable() {
+        return table;
+    }
+
+    public boolean isReverse() {
+        return reverse;
+    }
+
+    /**
+     * Positions the scan so that the next row is the first one at or after rowId (or at or
+     * before rowId when scanning in reverse).
+     * @return this scan
+     */
+    public TableScan seek(long rowId) throws IOException {
+        path.clear();
+        rowPage = null;
+        values = null;
+
+        int pageNumber = table.getRootPage();
+        while (true) {
+            final Frame frame = new Frame(pageNumber);
+            path.add(frame);
+            if (frame.leaf) {
+                int i = 0;
+                while (i < frame.cells && leafRowId(frame, i) < rowId) i++;
+                if (reverse && (i == frame.cells || leafRowId(frame, i) != rowId)) i--;
+                frame.index = i;
+                return this;
+            }
+            int i = 0;
+            while (i < frame.cells && interiorKey(frame, i) < rowId) i++;
+            frame.index = i;
+            pageNumber = frame.child(i);
+        }
+    }
+
+    /**
+     * Moves to the next row.
+     * @return false if there are no more rows
+     */
+    public boolean next() throws IOException {
+        values = null;
+        while (!path.isEmpty()) {
+            final Frame leaf = path.get(path.size() - 1);
+            if (leaf.index >= 0 && leaf.index < leaf.cells) {
+                rowPage = leaf.data;
+                rowOffset = leaf.cellOffset(leaf.index);
+                rowOffset = SQLiteFile.readVarint(rowPage, rowOffset, varint);
+                rowPayloadSize = varint[0];
+                rowOffset = SQLiteFile.readVarint(rowPage, rowOffset, varint);
+                rowId = varint[0];
+                leaf.index += reverse ? -1 : 1;
+                return true;
+            }
+            path.remove(path.size() - 1);
+            while (!path.isEmpty()) {
+                final Frame parent = path.get(path.size() - 1);
+                parent.index += reverse ? -1 : 1;
+                if (parent.index >= 0 && parent.index <= parent.cells) {
+                    descend(parent.child(parent.index));
+                    break;
+                }
+                path.remove(path.size() - 1);
+            }
+        }
+        rowPage = null;
+        return false;
+    }
+
+    /**
+     * @return the rowid of the current row
+     */
+    public long getRowId() {
+        checkRow();
+        return rowId;
+    }
+
+    /**
+     * @return the values of the current row, one per column of the table
+     */
+    public Object[] getValues() throws IOException {
+        checkRow();
+        if (values == null) {
+            values = file.decodeRecord(file.payload(rowPage, rowOffset, rowPayloadSize), table.getColumnCount());
+            if (table.getRowIdColumn() >= 0) {
+                values[table.getRowIdColumn()] = rowId;
+            }
+        }
+        return values;
+    }
+
+    private void checkRow() {
+        if (rowPage == null) throw new IllegalStateException("no current row");
+    }
+
+    /**
+     * Pushes the pages from pageNumber down to the first (or last) leaf.
+     */
+    private void descend(int pageNumber) throws IOException {
+        while (true) {
+            final Frame frame = new Frame(pageNumber);
+            path.add(frame);
+            if (reverse) {
+                frame.index = frame.leaf ? frame.cells - 1 : frame.cells;
+            }
+            if (frame.leaf) return;
+            pageNumber = frame.child(frame.index);
+        }
+    }
+
+    private long leafRowId(Frame frame, int cell) {
+        final int offset = SQLiteFile.readVarint(frame.data, frame.cellOffset(cell), varint);
+        SQLiteFile.readVarint(frame.data, offset, varint);
+        return varint[0];
+    }
+
+    private long interiorKey(Frame frame, int cell) {
+        SQLiteFile.readVarint(frame.data, frame.cellOffset(cell) + 4, varint);
+        return varint[0];
+    }
+
+    /**
+     * A page on the path from the root and the position within it: the next cell on leaf pages,
+     * the child being visited on interior pages.
+     */
+    private class Frame {
+        final byte[] data;
+        final int header;
+        final boolean leaf;
+        final int cells;
+        int index;
+
+        Frame(int pageNumber) throws IOException {
+            data = file.page(pageNumber);
+            header = SQLiteFile.headerOffset(pageNumber);
+            final int type = data[header];
+            if (type == SQLiteFile.LEAF_TABLE) {
+                leaf = true;
+            } else if (type == SQLiteFile.INTERIOR_TABLE) {
+                leaf = false;
+            } else {
+                throw new IOException("page " + pageNumber + " of " + table.getName() +
+                        " is not a table b-tree page (type " + type + ")");
+            }
+            cells = SQLiteHeader.readInt(data, header + 3, 2);
+        }
+
+        int cellOffset(int cell) {
+            return SQLiteHeader.readInt(data, header + (leaf ? 8 : 12) + 2 * cell, 2);
+        }
+
+        /**
+         * @param i 0 to cells, where cells denotes the right-most pointer
+         */
+        int child(int i) {
+            return i < cells ? SQLiteHeader.readInt(data, cellOffset(i), 4) :
+                               SQLiteHeader.readInt(data, header + 8, 4);
+        }
+    }
+}
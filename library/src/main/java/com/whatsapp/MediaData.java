@@ -12,6 +12,13 @@ public class MediaData implements Serializable {
     boolean transferred;
     long progress;
 
+    public MediaData(File file, long fileSize, boolean transferred, long progress) {
+        this.file = file;
+        this.fileSize = fileSize;
+        this.transferred = transferred;
+        this.progress = progress;
+    }
+
     @Override
     public String toString() {
         return "MediaData{" +
@@ -0,0 +1,179 @@
+package com.github.jberkel.whassup;
+
+import com.github.jberkel.whassup.helper.BackupBuilder;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class BackupWatcherTest {
+    static final String A = "4915771111111@s.whatsapp.net";
+
+    File directory, backup;
+    BackupWatcher watcher;
+    BlockingQueue<Object> events = new LinkedBlockingQueue<Object>();
+
+    @Before public void before() throws Exception {
+        directory = File.createTempFile("backups", "");
+        assertThat(directory.delete()).isTrue();
+        assertThat(directory.mkdir()).isTrue();
+        backup = new File(directory, "msgstore.db.crypt");
+
+        watcher = new BackupWatcher(backup, null);
+        watcher.setPollInterval(10);
+        watcher.setDebounce(50);
+        watcher.addListener(new BackupWatcher.Listener() {
+            @Override
+            public void onNewMessages(List<WhatsAppMessage> messages, SyncToken token) {
+                events.add(keys(messages));
+            }
+
+            @Override
+            public void onError(IOException e) {
+                events.add(e);
+            }
+        });
+    }
+
+    @After public void after() {
+        watcher.close();
+        assertThat(!backup.exists() || backup.delete()).isTrue();
+        assertThat(directory.delete()).isTrue();
+    }
+
+    @Test
+    public void shouldDeliverNewMessages() throws Exception {
+        write(new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1"));
+        watcher.start();
+        watcher.await();
+
+        write(new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1")
+                .message(A, true, 2000, "two", null, "k2"));
+        assertThat(events.poll(5, TimeUnit.SECONDS)).isEqualTo(keys("k2"));
+
+        write(new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1")
+                .message(A, true, 2000, "two", null, "k2")
+                .message(A, false, 3000, "three", null, "k3"));
+        assertThat(events.poll(5, TimeUnit.SECONDS)).isEqualTo(keys("k3"));
+    }
+
+    @Test
+    public void shouldDeliverBackupCreatedLater() throws Exception {
+        watcher.start();
+        watcher.await();
+        write(new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1"));
+        assertThat(events.poll(5, TimeUnit.SECONDS)).isEqualTo(keys("k1"));
+    }
+
+    @Test
+    public void shouldResumeFromToken() throws Exception {
+        write(new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1")
+                .message(A, true, 2000, "two", null, "k2"));
+        watcher.setToken(SyncToken.START);
+        watcher.start();
+        assertThat(events.poll(5, TimeUnit.SECONDS)).isEqualTo(keys("k1", "k2"));
+    }
+
+    @Test
+    public void shouldDebounceWrites() throws Exception {
+        watcher.setDebounce(500);
+        write(new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1"));
+        watcher.start();
+        watcher.await();
+
+        File second = new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1")
+                .message(A, true, 2000, "two", null, "k2")
+                .build();
+        File third = new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1")
+                .message(A, true, 2000, "two", null, "k2")
+                .message(A, false, 3000, "three", null, "k3")
+                .build();
+        write(second);
+        write(third);
+        assertThat(events.poll(5, TimeUnit.SECONDS)).isEqualTo(keys("k2", "k3"));
+        assertThat(events.poll(1, TimeUnit.SECONDS)).isNull();
+    }
+
+    @Test
+    public void shouldReportErrors() throws Exception {
+        write(new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1"));
+        watcher.start();
+        watcher.await();
+
+        FileOutputStream out = new FileOutputStream(backup);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+        assertThat(events.poll(5, TimeUnit.SECONDS)).isInstanceOf(IOException.class);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldOnlyStartOnce() throws Exception {
+        watcher.start();
+        watcher.start();
+    }
+
+    private void write(BackupBuilder builder) throws Exception {
+        write(builder.build());
+    }
+
+    private void write(File built) throws Exception {
+        long lastModified = backup.exists() ? backup.lastModified() : 0;
+        FileInputStream in = new FileInputStream(built);
+        FileOutputStream out = new FileOutputStream(backup);
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        assertThat(built.delete()).isTrue();
+        // the modification time might only have a resolution of seconds
+        assertThat(backup.setLastModified(Math.max(lastModified + 2000, System.currentTimeMillis()))).isTrue();
+    }
+
+    private static List<String> keys(String... keys) {
+        List<String> list = new ArrayList<String>();
+        for (String key : keys) {
+            list.add(key);
+        }
+        return list;
+    }
+
+    private static List<String> keys(List<WhatsAppMessage> messages) {
+        List<String> keys = new ArrayList<String>();
+        for (WhatsAppMessage message : messages) {
+            keys.add(message.getKeyId());
+        }
+        return keys;
+    }
+}
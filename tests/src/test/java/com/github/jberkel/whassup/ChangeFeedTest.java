@@ -0,0 +1,264 @@
+package com.github.jberkel.whassup;
+
+import com.github.jberkel.whassup.cache.SnapshotCache;
+import com.github.jberkel.whassup.crypto.DBDecryptor;
+import com.github.jberkel.whassup.helper.BackupBuilder;
+import com.github.jberkel.whassup.model.Fixtures;
+import com.github.jberkel.whassup.model.Projection;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.github.jberkel.whassup.Whassup.DBOpener;
+import static com.github.jberkel.whassup.model.Fixtures.fileToBytes;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ChangeFeedTest {
+    static final String A = "4915771111111@s.whatsapp.net";
+    static final String B = "4915772222222@s.whatsapp.net";
+
+    Whassup whassup;
+    @Mock DBProvider dbProvider;
+
+    @Before public void before() throws Exception {
+        initMocks(this);
+        whassup = new Whassup(new DBDecryptor(), dbProvider, new DBOpener());
+    }
+
+    @Test
+    public void shouldDeliverMessagesAddedSinceToken() throws Exception {
+        use(new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1")
+                .message(A, true, 2000, "two", null, "k2")
+                .message(B, false, 2000, "three", null, "k3"));
+        SyncResult first = whassup.sync(SyncToken.START, -1);
+        assertThat(keys(first)).containsExactly("k1", "k2", "k3");
+        assertThat(first.hasMore()).isFalse();
+        assertThat(first.getNextToken().getTimestamp()).isEqualTo(2000);
+
+        use(new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1")
+                .message(A, true, 2000, "two", null, "k2")
+                .message(B, false, 2000, "three", null, "k3")
+                .message(B, true, 2000, "same timestamp", null, "k4")
+                .message(A, false, 3000, "five", null, "k5"));
+        SyncToken token = SyncToken.parse(first.getNextToken().toString());
+        SyncResult second = whassup.sync(token, -1);
+        assertThat(keys(second)).containsExactly("k4", "k5");
+
+        SyncResult third = whassup.sync(second.getNextToken(), -1);
+        assertThat(third.getMessages()).isEmpty();
+        assertThat(third.getNextToken()).isEqualTo(second.getNextToken());
+    }
+
+    @Test
+    public void shouldOnlyDecryptChangedChunksBetweenSyncsWithCache() throws Exception {
+        File directory = File.createTempFile("snapshot-cache", "");
+        assertThat(directory.delete()).isTrue();
+        SnapshotCache cache = new SnapshotCache(directory, Long.MAX_VALUE);
+        cache.setIncremental(true);
+        RecordingDecryptor decryptor = new RecordingDecryptor();
+        whassup = new Whassup(decryptor, dbProvider, new DBOpener(), cache);
+        try {
+            BackupBuilder v1 = new BackupBuilder(), v2 = new BackupBuilder();
+            for (int i = 0; i < 2000; i++) {
+                String text = i + " " + LONG_TEXT;
+                v1.message(A, i % 2 == 0, 1000 + i, text, null, "k" + i);
+                v2.message(A, i % 2 == 0, 1000 + i, text, null, "k" + i);
+            }
+            v2.message(B, false, 5000, "new", null, "new");
+            byte[] first = fileToBytes(v1.build()), second = fileToBytes(v2.build());
+
+            File backup = File.createTempFile("msgstore", ".db.crypt");
+            backup.deleteOnExit();
+            write(backup, first);
+            use(backup);
+            SyncResult result = whassup.sync(SyncToken.START, -1);
+            assertThat(result.getMessages()).hasSize(2000);
+
+            write(backup, second);
+            assertThat(backup.setLastModified(backup.lastModified() - 60 * 1000)).isTrue();
+            assertThat(keys(whassup.sync(result.getNextToken(), -1))).containsExactly("new");
+
+            int chunks = (second.length + DBDecryptor.CHUNK_SIZE - 1) / DBDecryptor.CHUNK_SIZE;
+            int changed = changedChunks(first, second);
+            assertThat(changed).isLessThan(chunks);
+            assertThat(decryptor.decrypted).containsExactly(
+                    (first.length + DBDecryptor.CHUNK_SIZE - 1) / DBDecryptor.CHUNK_SIZE, changed);
+        } finally {
+            cache.clear();
+        }
+    }
+
+    @Test
+    public void shouldPageThroughMessages() throws Exception {
+        use(Fixtures.TEST_DB_1);
+        Set<Long> ids = new HashSet<Long>();
+        SyncToken token = null;
+        int syncs = 0;
+        SyncResult result;
+        do {
+            result = whassup.sync(token, 10);
+            assertThat(result.getMessages().size()).isLessThanOrEqualTo(10);
+            for (WhatsAppMessage message : result.getMessages()) {
+                assertThat(ids.add(message.getId())).isTrue();
+            }
+            token = result.getNextToken();
+            syncs++;
+        } while (result.hasMore());
+        assertThat(ids).hasSize(82);
+        assertThat(syncs).isEqualTo(9);
+    }
+
+    @Test
+    public void shouldFindLastMessageAfterRotation() throws Exception {
+        use(new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1")
+                .message(A, true, 2000, "two", null, "k2"));
+        SyncToken token = whassup.sync(null, -1).getNextToken();
+        assertThat(token.getId()).isEqualTo(2);
+
+        // a restore renumbers the messages
+        use(new BackupBuilder()
+                .message(B, false, 500, "restored", null, "k0")
+                .message(A, false, 1000, "one", null, "k1")
+                .message(A, true, 2000, "two", null, "k2")
+                .message(A, false, 4000, "new", null, "k6"));
+        SyncResult result = whassup.sync(token, -1);
+        assertThat(keys(result)).containsExactly("k6");
+        assertThat(result.getNextToken().getId()).isEqualTo(4);
+    }
+
+    @Test
+    public void shouldContinueAfterTimestampIfLastMessageIsGone() throws Exception {
+        use(new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1")
+                .message(A, false, 3000, "two", null, "k2")
+                .message(B, false, 3000, "three", null, "k3"));
+        SyncToken token = whassup.sync(null, -1).getNextToken();
+
+        use(new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1")
+                .message(A, false, 3000, "two", null, "k2")
+                .message(A, true, 3000, "same timestamp", null, "k4")
+                .message(A, false, 4000, "four", null, "k5")
+                .message(B, false, 5000, "five", null, "k6"));
+        SyncResult first = whassup.sync(token, 1);
+        assertThat(keys(first)).containsExactly("k4");
+        assertThat(first.hasMore()).isTrue();
+
+        SyncResult second = whassup.sync(first.getNextToken(), -1);
+        assertThat(keys(second)).containsExactly("k5", "k6");
+        assertThat(second.hasMore()).isFalse();
+    }
+
+    @Test
+    public void shouldSyncFromSession() throws Exception {
+        use(Fixtures.TEST_DB_1);
+        WhassupSession session = whassup.openSession();
+        try {
+            SyncResult result = session.sync(SyncToken.START, 5, Projection.TEXT);
+            assertThat(result.getMessages()).hasSize(5);
+            assertThat(session.sync(result.getNextToken(), -1).getMessages()).hasSize(77);
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRequireMessageKey() throws Exception {
+        use(Fixtures.TEST_DB_1);
+        WhassupSession session = whassup.openSession();
+        try {
+            session.sync(SyncToken.START, -1, Projection.EVENTS);
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void shouldParseTokens() throws Exception {
+        assertThat(SyncToken.parse(null)).isSameAs(SyncToken.START);
+        assertThat(SyncToken.parse(SyncToken.START.toString())).isEqualTo(SyncToken.START);
+        try {
+            SyncToken.parse("AQ");
+            throw new AssertionError("expected exception");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private void use(BackupBuilder builder) throws Exception {
+        File backup = builder.build();
+        backup.deleteOnExit();
+        use(backup);
+    }
+
+    private void use(File backup) {
+        when(dbProvider.getDBFile()).thenReturn(backup);
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        fos.write(data);
+        fos.close();
+    }
+
+    /**
+     * @return the number of chunks decryptIncremental has to decrypt for the change from previous to current,
+     *         the last one is always decrypted
+     */
+    private static int changedChunks(byte[] previous, byte[] current) {
+        final int size = DBDecryptor.CHUNK_SIZE;
+        final int count = (current.length + size - 1) / size;
+        int changed = 0;
+        for (int i = 0; i < count; i++) {
+            final int from = i * size, to = Math.min(current.length, from + size);
+            if (i == count - 1 || to > previous.length ||
+                    !Arrays.equals(Arrays.copyOfRange(previous, from, to), Arrays.copyOfRange(current, from, to))) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    private static final String LONG_TEXT = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do " +
+            "eiusmod tempor incididunt ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud.";
+
+    static class RecordingDecryptor extends DBDecryptor {
+        final List<Integer> decrypted = new ArrayList<Integer>();
+
+        @Override
+        public int decryptIncremental(File input, File output, File digests)
+                throws IOException, GeneralSecurityException {
+            int chunks = super.decryptIncremental(input, output, digests);
+            decrypted.add(chunks);
+            return chunks;
+        }
+    }
+
+    private static List<String> keys(SyncResult result) {
+        List<String> keys = new ArrayList<String>();
+        for (WhatsAppMessage message : result.getMessages()) {
+            keys.add(message.getKeyId());
+        }
+        return keys;
+    }
+}
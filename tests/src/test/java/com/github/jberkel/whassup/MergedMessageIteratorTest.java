@@ -0,0 +1,110 @@
+package com.github.jberkel.whassup;
+
+import com.github.jberkel.whassup.crypto.DBDecryptor;
+import com.github.jberkel.whassup.helper.BackupBuilder;
+import com.github.jberkel.whassup.model.Fixtures;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.github.jberkel.whassup.Whassup.DBOpener;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MergedMessageIteratorTest {
+    static final String A = "4915771111111@s.whatsapp.net";
+    static final String B = "4915772222222@s.whatsapp.net";
+
+    Whassup whassup;
+    File current, older;
+
+    @Before public void before() throws Exception {
+        whassup = new Whassup(new DBDecryptor(), mock(DBProvider.class), new DBOpener());
+        older = new BackupBuilder()
+                .message(A, false, 1000, "one (old)", null, "k1")
+                .message(A, false, 2000, "deleted", null, "k2")
+                .message(A, true, 3000, "three", null, "k3")
+                .build();
+        current = new BackupBuilder()
+                .message(A, false, 1000, "one", null, "k1")
+                .message(A, true, 3000, "three", null, "k3")
+                .message(B, false, 3000, "same key, other chat", null, "k3")
+                .message(A, false, 3000, "same key, other direction", null, "k3")
+                .message(A, false, 4000, "four", null, "k4")
+                .build();
+    }
+
+    @After public void after() {
+        assertThat(current.delete()).isTrue();
+        assertThat(older.delete()).isTrue();
+    }
+
+    @Test
+    public void shouldMergeBackupsInTimestampOrder() throws Exception {
+        MergedMessageIterator iterator = whassup.iterateMessages(Arrays.asList(current, older), 0);
+        assertThat(texts(iterator)).containsExactly("one", "deleted", "three", "same key, other chat",
+                "same key, other direction", "four");
+        assertThat(iterator.getDuplicateCount()).isEqualTo(2);
+        assertThat(iterator.hasNext()).isFalse();
+    }
+
+    @Test
+    public void shouldPreferCopiesOfFirstBackup() throws Exception {
+        assertThat(texts(whassup.iterateMessages(Arrays.asList(older, current), 0)))
+                .containsExactly("one (old)", "deleted", "three", "same key, other chat",
+                        "same key, other direction", "four");
+    }
+
+    @Test
+    public void shouldMergeInSmallChunks() throws Exception {
+        MergedMessageIterator iterator = whassup.iterateMessages(Arrays.asList(current, older, current), 0, 1);
+        assertThat(texts(iterator)).hasSize(6);
+        assertThat(iterator.getDuplicateCount()).isEqualTo(7);
+    }
+
+    @Test
+    public void shouldMergeMessagesSinceTimestamp() throws Exception {
+        assertThat(texts(whassup.iterateMessages(Arrays.asList(current, older), 1500)))
+                .containsExactly("deleted", "three", "same key, other chat", "same key, other direction", "four");
+    }
+
+    @Test
+    public void shouldIterateSingleBackup() throws Exception {
+        List<WhatsAppMessage> messages = new ArrayList<WhatsAppMessage>();
+        for (WhatsAppMessage message : whassup.iterateMessages(Arrays.asList(Fixtures.TEST_DB_1), 0)) {
+            messages.add(message);
+        }
+        assertThat(messages).hasSize(82);
+        assertThat(messages).isSortedAccordingTo(WhatsAppMessage.TimestampComparator.INSTANCE);
+    }
+
+    @Test
+    public void shouldIterateNoBackups() throws Exception {
+        assertThat(whassup.iterateMessages(new ArrayList<File>(), 0).hasNext()).isFalse();
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailIfBackupCannotBeOpened() throws Exception {
+        whassup.iterateMessages(Arrays.asList(current, new File("/does/not/exist")), 0);
+    }
+
+    private static List<String> texts(MergedMessageIterator iterator) {
+        List<String> texts = new ArrayList<String>();
+        for (WhatsAppMessage message : iterator) {
+            texts.add(message.getText());
+        }
+        return texts;
+    }
+}
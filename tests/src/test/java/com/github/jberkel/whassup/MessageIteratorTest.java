@@ -0,0 +1,126 @@
+package com.github.jberkel.whassup;
+
+import com.github.jberkel.whassup.crypto.DBDecryptor;
+import com.github.jberkel.whassup.model.Fixtures;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import static com.github.jberkel.whassup.Whassup.DBOpener;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MessageIteratorTest {
+    Whassup whassup;
+    WhassupSession session;
+    @Mock DBProvider dbProvider;
+
+    @Before public void before() throws Exception {
+        initMocks(this);
+        whassup = new Whassup(new DBDecryptor(), dbProvider, new DBOpener());
+        when(dbProvider.getDBFile()).thenReturn(Fixtures.TEST_DB_1);
+        session = whassup.openSession();
+    }
+
+    @After public void after() {
+        session.close();
+    }
+
+    @Test
+    public void shouldIterateOverAllMessagesInChunks() throws Exception {
+        List<WhatsAppMessage> messages = toList(session.iterateMessages(0, 7));
+        assertThat(messages).hasSize(82);
+        assertThat(messages).isSortedAccordingTo(WhatsAppMessage.TimestampComparator.INSTANCE);
+        assertThat(ids(messages)).hasSize(82);
+        assertThat(ids(messages)).isEqualTo(ids(session.getMessages()));
+    }
+
+    @Test
+    public void shouldIterateWhenChunkSizeDividesMessageCount() throws Exception {
+        assertThat(toList(session.iterateMessages(0, 41))).hasSize(82);
+        assertThat(toList(session.iterateMessages(0, 1))).hasSize(82);
+    }
+
+    @Test
+    public void shouldBreakTimestampTiesById() throws Exception {
+        // two messages share the timestamp 1366388912000
+        List<WhatsAppMessage> messages = toList(session.iterateMessages(1366388911999L, 1));
+        assertThat(messages.get(0).getTimestamp().getTime()).isEqualTo(1366388912000L);
+        assertThat(messages.get(1).getTimestamp().getTime()).isEqualTo(1366388912000L);
+        assertThat(messages.get(0).getId()).isLessThan(messages.get(1).getId());
+    }
+
+    @Test
+    public void shouldIterateMessagesSinceTimestamp() throws Exception {
+        assertThat(toList(session.iterateMessages(1367349391104L, 4))).hasSize(15);
+    }
+
+    @Test
+    public void shouldIterateFromWhassup() throws Exception {
+        MessageIterator iterator = whassup.iterateMessages(0);
+        int count = 0;
+        for (WhatsAppMessage ignored : iterator) {
+            count++;
+        }
+        assertThat(count).isEqualTo(82);
+        assertThat(iterator.hasNext()).isFalse();
+    }
+
+    @Test
+    public void shouldReturnEmptyIteratorWithoutBackup() throws Exception {
+        when(dbProvider.getDBFile()).thenReturn(null);
+        assertThat(whassup.iterateMessages(0).hasNext()).isFalse();
+    }
+
+    @Test
+    public void shouldReleaseDatabaseWhenClosedEarly() throws Exception {
+        MessageIterator iterator = session.iterateMessages(0, 10);
+        assertThat(iterator.next()).isNotNull();
+        session.close();
+        assertThat(session.getDbFile()).exists();
+        iterator.close();
+        assertThat(session.getDbFile()).doesNotExist();
+        assertThat(iterator.hasNext()).isFalse();
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void shouldThrowWhenExhausted() throws Exception {
+        MessageIterator iterator = session.iterateMessages(Long.MAX_VALUE - 1, 10);
+        iterator.next();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidChunkSize() throws Exception {
+        session.iterateMessages(0, 0);
+    }
+
+    private static List<WhatsAppMessage> toList(MessageIterator iterator) {
+        List<WhatsAppMessage> messages = new ArrayList<WhatsAppMessage>();
+        while (iterator.hasNext()) {
+            messages.add(iterator.next());
+        }
+        return messages;
+    }
+
+    private static Set<Long> ids(List<WhatsAppMessage> messages) {
+        Set<Long> ids = new HashSet<Long>();
+        for (WhatsAppMessage message : messages) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.jberkel.whassup;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MultiBackupProviderTest {
+    File root1, root2;
+
+    @Before public void before() throws Exception {
+        root1 = directory();
+        root2 = directory();
+    }
+
+    @After public void after() {
+        delete(root1);
+        delete(root2);
+    }
+
+    @Test
+    public void shouldFindBackupsNewestFirst() throws Exception {
+        touch(root1, "msgstore-2013-04-30.1.db.crypt");
+        touch(root1, "msgstore-2013-05-01.1.db.crypt");
+        touch(root1, "msgstore-2013-05-01.10.db.crypt");
+        touch(root1, "msgstore-2013-05-01.2.db.crypt");
+        touch(root1, "msgstore.db.crypt");
+        touch(root1, "msgstore.db");
+        touch(root1, "msgstore-2013-05-01.1.db.crypt5");
+        touch(root1, "wa.db");
+        assertThat(new File(root1, "msgstore-2013-06-01.1.db.crypt").mkdir()).isTrue();
+        touch(root2, "msgstore-2013-05-02.1.db.crypt");
+
+        assertThat(names(new MultiBackupProvider(root1, root2).getDBFiles())).containsExactly(
+                "msgstore.db.crypt",
+                "msgstore-2013-05-02.1.db.crypt",
+                "msgstore-2013-05-01.10.db.crypt",
+                "msgstore-2013-05-01.2.db.crypt",
+                "msgstore-2013-05-01.1.db.crypt",
+                "msgstore-2013-04-30.1.db.crypt");
+    }
+
+    @Test
+    public void shouldProvideNewestBackup() throws Exception {
+        MultiBackupProvider provider = new MultiBackupProvider(root1, new File(root1, "missing"));
+        assertThat(provider.getDBFile()).isNull();
+        assertThat(provider.getDBFiles()).isEmpty();
+
+        touch(root1, "msgstore-2013-04-30.1.db.crypt");
+        touch(root1, "msgstore-2013-05-01.1.db.crypt");
+        assertThat(provider.getDBFile()).isEqualTo(new File(root1, "msgstore-2013-05-01.1.db.crypt"));
+    }
+
+    private static File directory() throws IOException {
+        File directory = File.createTempFile("backups", "");
+        assertThat(directory.delete()).isTrue();
+        assertThat(directory.mkdir()).isTrue();
+        return directory;
+    }
+
+    private static void touch(File directory, String name) throws IOException {
+        assertThat(new File(directory, name).createNewFile()).isTrue();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        assertThat(file.delete()).isTrue();
+    }
+
+    private static List<String> names(List<File> files) {
+        List<String> names = new ArrayList<String>();
+        for (File file : files) {
+            names.add(file.getName());
+        }
+        return names;
+    }
+}
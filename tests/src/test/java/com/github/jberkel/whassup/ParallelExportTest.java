@@ -0,0 +1,141 @@
+package com.github.jberkel.whassup;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import com.github.jberkel.whassup.crypto.DBDecryptor;
+import com.github.jberkel.whassup.model.Fixtures;
+import com.github.jberkel.whassup.model.MessageQuery;
+import com.github.jberkel.whassup.model.Projection;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.github.jberkel.whassup.Whassup.DBOpener;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class ParallelExportTest {
+    Whassup whassup;
+    WhassupSession session;
+    CopyingDBOpener dbOpener = new CopyingDBOpener();
+    @Mock DBProvider dbProvider;
+
+    @Before public void before() throws Exception {
+        initMocks(this);
+        whassup = new Whassup(new DBDecryptor(), dbProvider, dbOpener);
+        when(dbProvider.getDBFile()).thenReturn(Fixtures.TEST_DB_1);
+        session = whassup.openSession();
+    }
+
+    @After public void after() {
+        session.close();
+    }
+
+    @Test
+    public void shouldMergeRangesInTimestampOrder() throws Exception {
+        int connections = dbOpener.opened.get();
+        List<WhatsAppMessage> messages = session.getMessagesParallel(0, Projection.FULL, 4, true, 10);
+        assertThat(dbOpener.opened.get() - connections).isEqualTo(4);
+        assertThat(ids(messages)).isEqualTo(ids(session.getMessages()));
+    }
+
+    @Test
+    public void shouldConcatenateRangesInIdOrder() throws Exception {
+        List<Long> ids = ids(session.getMessagesParallel(0, Projection.TEXT, 3, false, 10));
+        List<Long> expected = ids(session.getMessages());
+        Collections.sort(expected);
+        assertThat(ids).isEqualTo(expected);
+    }
+
+    @Test
+    public void shouldExportMessagesSinceTimestamp() throws Exception {
+        List<WhatsAppMessage> messages = session.getMessagesParallel(1367349391104L, Projection.FULL, 4, true, 1);
+        assertThat(ids(messages)).isEqualTo(ids(session.getMessages(1367349391104L, -1)));
+        assertThat(messages).hasSize(15);
+        assertThat(session.getMessagesParallel(Long.MAX_VALUE - 1, Projection.FULL, 4, true, 1)).isEmpty();
+    }
+
+    @Test
+    public void shouldReadSmallBackupInOneRange() throws Exception {
+        int connections = dbOpener.opened.get();
+        assertThat(whassup.getMessagesParallel(0, true)).hasSize(82);
+        // only the connection of the new session
+        assertThat(dbOpener.opened.get() - connections).isEqualTo(1);
+    }
+
+    @Test
+    public void shouldPlanRanges() throws Exception {
+        SQLiteDatabase db = dbOpener.openReadOnly(session.getDbFile());
+        try {
+            // 82 messages, _id 1 to 83
+            long[] bounds = ParallelExport.plan(db, new MessageQuery(), 8, 10);
+            assertThat(bounds).hasSize(9);
+            assertThat(bounds[0]).isEqualTo(1);
+            assertThat(bounds[8]).isEqualTo(84);
+            for (int i = 1; i < bounds.length; i++) {
+                assertThat(bounds[i]).isGreaterThan(bounds[i - 1]);
+            }
+            assertThat(ParallelExport.plan(db, new MessageQuery(), 8, 5000)).containsOnly(1, 84);
+            assertThat(ParallelExport.plan(db, new MessageQuery().between(Long.MAX_VALUE - 1, 0), 8, 10)).hasSize(1);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static List<Long> ids(List<WhatsAppMessage> messages) {
+        List<Long> ids = new ArrayList<Long>();
+        for (WhatsAppMessage message : messages) {
+            ids.add(message.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Robolectric shares one connection per path, closing it closes it for everyone. Every
+     * connection gets a copy of the database instead, like separate connections on a device.
+     */
+    static class CopyingDBOpener extends DBOpener {
+        final AtomicInteger opened = new AtomicInteger();
+
+        @Override
+        public SQLiteDatabase openReadOnly(File dbFile) {
+            opened.incrementAndGet();
+            try {
+                File copy = File.createTempFile("connection", ".db");
+                copy.deleteOnExit();
+                FileInputStream in = new FileInputStream(dbFile);
+                FileOutputStream out = new FileOutputStream(copy);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        out.write(buffer, 0, n);
+                    }
+                } finally {
+                    in.close();
+                    out.close();
+                }
+                return super.openReadOnly(copy);
+            } catch (IOException e) {
+                throw new SQLiteException(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.github.jberkel.whassup;
+
+import android.database.sqlite.SQLiteDatabase;
+import com.github.jberkel.whassup.crypto.DBDecryptor;
+import com.github.jberkel.whassup.helper.BackupBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SearchIndexTest {
+    static final String A = "4915771111111@s.whatsapp.net";
+    static final String B = "4915772222222@s.whatsapp.net";
+    static final String GROUP = "4915779999999-1369779058@g.us";
+
+    File indexFile;
+    SearchIndex index;
+
+    @Before public void before() throws Exception {
+        indexFile = File.createTempFile("search", ".db");
+        index = new SearchIndex(indexFile);
+    }
+
+    @After public void after() {
+        index.close();
+        assertThat(indexFile.delete()).isTrue();
+    }
+
+    @Test
+    public void shouldRankByShareOfHits() throws Exception {
+        assertThat(update(new BackupBuilder()
+                .message(A, false, 1000, "Apple apple banana", null)
+                .message(A, true, 2000, "apple pie", null)
+                .message(B, false, 3000, "banana", null)
+                .message(B, false, 4000, null, null)
+                .groupEvent(GROUP, true, 1, 5000, "apple group", "4915779999999"))).isEqualTo(3);
+
+        assertThat(ids(index.search("apple", null, 0, -1))).containsExactly(1L, 2L);
+        assertThat(ids(index.search("APPLE", A, 0, -1))).containsExactly(1L, 2L);
+        assertThat(ids(index.search("apple", B, 0, -1))).isEmpty();
+        assertThat(ids(index.search("banana", null, 0, -1))).containsExactly(3L, 1L);
+        assertThat(ids(index.search("apple banana", null, 0, -1))).containsExactly(1L);
+        assertThat(ids(index.search("ban*", null, 0, -1))).containsExactly(3L, 1L);
+        assertThat(ids(index.search("group", null, 0, -1))).isEmpty();
+    }
+
+    @Test
+    public void shouldPageResults() throws Exception {
+        update(new BackupBuilder()
+                .message(A, false, 1000, "hello", null)
+                .message(A, false, 2000, "hello", null)
+                .message(B, false, 3000, "hello", null));
+
+        assertThat(ids(index.search("hello", null, 0, 2))).containsExactly(3L, 2L);
+        assertThat(ids(index.search("hello", null, 2, 2))).containsExactly(1L);
+        assertThat(ids(index.search("hello", null, 5, 2))).isEmpty();
+    }
+
+    @Test
+    public void shouldOnlyIndexNewMessages() throws Exception {
+        assertThat(update(new BackupBuilder()
+                .message(A, false, 1000, "one", null)
+                .message(A, false, 2000, "two", null))).isEqualTo(2);
+        index.close();
+        index = new SearchIndex(indexFile);
+
+        assertThat(update(new BackupBuilder()
+                .message(A, false, 1000, "one", null)
+                .message(A, false, 2000, "two", null)
+                .message(B, false, 3000, "three two", null))).isEqualTo(1);
+        assertThat(ids(index.search("two", null, 0, -1))).containsExactly(3L, 2L);
+    }
+
+    @Test
+    public void shouldRemoveDeletedMessagesBeforePaging() throws Exception {
+        update(new BackupBuilder()
+                .message(A, false, 1000, "hello", null)
+                .message(A, false, 2000, "hello", null)
+                .message(B, false, 3000, "hello", null));
+
+        assertThat(update(new BackupBuilder()
+                .message(A, false, 1000, "hello", null)
+                .message(A, false, 2000, "hello", null)
+                .message(B, false, 3000, "hello", null)
+                .delete(2)
+                .message(B, false, 4000, "hello", null))).isEqualTo(1);
+        assertThat(ids(index.search("hello", null, 0, 2))).containsExactly(4L, 3L);
+        assertThat(ids(index.search("hello", null, 2, 2))).containsExactly(1L);
+    }
+
+    @Test
+    public void shouldRebuildReplacedBackup() throws Exception {
+        update(new BackupBuilder()
+                .message(A, false, 1000, "one", null)
+                .message(A, false, 2000, "two", null));
+
+        assertThat(update(new BackupBuilder()
+                .message(B, false, 3000, "three", null))).isEqualTo(1);
+        assertThat(ids(index.search("one", null, 0, -1))).isEmpty();
+        assertThat(ids(index.search("three", null, 0, -1))).containsExactly(1L);
+    }
+
+    @Test
+    public void shouldNotUpdateFromOlderVersion() throws Exception {
+        assertThat(update(new BackupBuilder()
+                .message(A, false, 1000, "one", null)
+                .message(A, false, 2000, "two", null)
+                .message(B, false, 3000, "three", null))).isEqualTo(3);
+
+        assertThat(update(new BackupBuilder()
+                .message(A, false, 1000, "one", null)
+                .message(A, false, 2000, "two", null))).isEqualTo(0);
+        assertThat(ids(index.search("three", null, 0, -1))).containsExactly(3L);
+
+        // no rebuild when the current version is seen again
+        assertThat(update(new BackupBuilder()
+                .message(A, false, 1000, "one", null)
+                .message(A, false, 2000, "two", null)
+                .message(B, false, 3000, "three", null))).isEqualTo(0);
+    }
+
+    @Test
+    public void shouldTokenizeQuery() throws Exception {
+        assertThat(SearchIndex.toMatchExpression("Hello, World*")).isEqualTo("hello world*");
+        assertThat(SearchIndex.toMatchExpression("NOT \"x\" -y OR")).isEqualTo("not x y or");
+        assertThat(SearchIndex.toMatchExpression("grüße")).isEqualTo("grüße");
+        assertThat(SearchIndex.toMatchExpression(" *")).isEmpty();
+        assertThat(SearchIndex.toMatchExpression(null)).isEmpty();
+    }
+
+    private int update(BackupBuilder builder) throws Exception {
+        File backup = builder.build();
+        File plain = File.createTempFile("msgstore", ".db");
+        new DBDecryptor().decryptDB(backup, plain);
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(plain.getAbsolutePath(), null, SQLiteDatabase.OPEN_READONLY);
+        try {
+            return index.update(db);
+        } finally {
+            db.close();
+            assertThat(plain.delete()).isTrue();
+            assertThat(backup.delete()).isTrue();
+        }
+    }
+
+    private static List<Long> ids(List<SearchIndex.Hit> hits) {
+        List<Long> ids = new ArrayList<Long>();
+        for (SearchIndex.Hit hit : hits) {
+            ids.add(hit.id);
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,253 @@
+package com.github.jberkel.whassup;
+
+import android.database.Cursor;
+import com.github.jberkel.whassup.cache.SnapshotCache;
+import com.github.jberkel.whassup.crypto.DBDecryptor;
+import com.github.jberkel.whassup.helper.BackupBuilder;
+import com.github.jberkel.whassup.model.Conversation;
+import com.github.jberkel.whassup.model.Fixtures;
+import com.github.jberkel.whassup.model.MessageQuery;
+import com.github.jberkel.whassup.model.Projection;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.github.jberkel.whassup.Whassup.DBOpener;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class WhassupSessionTest {
+    Whassup whassup;
+    @Mock DBProvider dbProvider;
+
+    @Before public void before() {
+        initMocks(this);
+        whassup = new Whassup(new DBDecryptor(), dbProvider, new DBOpener());
+        when(dbProvider.getDBFile()).thenReturn(Fixtures.TEST_DB_1);
+    }
+
+    @Test
+    public void shouldServeMultipleQueries() throws Exception {
+        WhassupSession session = whassup.openSession();
+        assertThat(session.getMessages()).hasSize(82);
+        assertThat(session.getMessages(1367349391104L, 3)).hasSize(3);
+        assertThat(session.getDbFile()).exists();
+
+        session.close();
+        assertThat(session.isOpen()).isFalse();
+        assertThat(session.getDbFile()).doesNotExist();
+    }
+
+    @Test
+    public void shouldKeepDatabaseOpenUntilLastCursorIsClosed() throws Exception {
+        WhassupSession session = whassup.openSession();
+        Cursor first = session.queryMessages();
+        Cursor second = session.queryMessages(1367349391104L, -1);
+        session.close();
+
+        assertThat(session.getDbFile()).exists();
+        assertThat(first.getCount()).isEqualTo(82);
+        first.close();
+        first.close();
+        assertThat(session.getDbFile()).exists();
+        assertThat(second.getCount()).isEqualTo(15);
+        second.close();
+        assertThat(session.getDbFile()).doesNotExist();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotQueryClosedSession() throws Exception {
+        WhassupSession session = whassup.openSession();
+        session.close();
+        session.queryMessages();
+    }
+
+    @Test
+    public void shouldReturnNullWithoutBackup() throws Exception {
+        when(dbProvider.getDBFile()).thenReturn(null);
+        assertThat(whassup.openSession()).isNull();
+    }
+
+    @Test
+    public void shouldServeConcurrentQueries() throws Exception {
+        final WhassupSession session = whassup.openSession();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return session.getMessages().size();
+                }
+            }));
+        }
+        for (Future<Integer> result : results) {
+            assertThat(result.get()).isEqualTo(82);
+        }
+        executor.shutdown();
+        session.close();
+        assertThat(session.getDbFile()).doesNotExist();
+    }
+
+    @Test
+    public void shouldGetGroupConversations() throws Exception {
+        String group = "4915779999999-1369779058@g.us";
+        File backup = new BackupBuilder()
+                .message("4915771111111@s.whatsapp.net", false, 500, "hey", null)
+                .groupEvent(group, true, 1, 1000, "Trip", "4915779999999")
+                .message(group, false, 1200, "hi", "4915772222222@s.whatsapp.net")
+                .message(group, false, 1300, "ho", "4915771111111@s.whatsapp.net")
+                .build();
+        when(dbProvider.getDBFile()).thenReturn(backup);
+        WhassupSession session = whassup.openSession();
+
+        List<Conversation> conversations = session.getConversations(2);
+        assertThat(conversations).hasSize(2);
+        Conversation conversation = conversations.get(0);
+        assertThat(conversation.isGroup()).isTrue();
+        assertThat(conversation.getMessageCount()).isEqualTo(3);
+        assertThat(conversation.getLastMessage().getText()).isEqualTo("ho");
+        assertThat(conversation.getLastMessage().getRecipients()).containsOnly("-1", "4915772222222");
+        assertThat(conversation.getRecentMessages()).hasSize(2);
+        assertThat(conversation.getRecentMessages().get(0).getText()).isEqualTo("hi");
+        assertThat(conversations.get(1).getMessageCount()).isEqualTo(1);
+        assertThat(conversations.get(1).isGroup()).isFalse();
+
+        session.close();
+        assertThat(backup.delete()).isTrue();
+    }
+
+    @Test
+    public void shouldQueryChatWithIndexes() throws Exception {
+        File cacheDir = File.createTempFile("snapshot-cache", "");
+        assertThat(cacheDir.delete()).isTrue();
+        SnapshotCache cache = new SnapshotCache(cacheDir, Long.MAX_VALUE);
+        whassup = new Whassup(new DBDecryptor(), dbProvider, new DBOpener(), cache);
+        WhassupSession session = whassup.openSession();
+        Cursor cursor = session.queryMessages("2705135391601542456@s.whatsapp.net", 1361736520657L, 1366059567000L, -1,
+                Projection.TEXT);
+        assertThat(cursor.getCount()).isEqualTo(6);
+        cursor.close();
+        assertThat(session.queryMessages(null, 0, 0, -1).getCount()).isEqualTo(82);
+        session.close();
+        assertThat(MessageIndexes.exist(session.getDbFile())).isTrue();
+        cache.clear();
+    }
+
+    @Test
+    public void shouldQueryWithMessageQuery() throws Exception {
+        WhassupSession session = whassup.openSession();
+        List<WhatsAppMessage> messages = session.getMessages(new MessageQuery().sent().withText().limit(3));
+        assertThat(messages).hasSize(3);
+        for (WhatsAppMessage message : messages) {
+            assertThat(message.isReceived()).isFalse();
+            assertThat(message.hasText()).isTrue();
+        }
+        Cursor cursor = session.queryMessages(new MessageQuery().status(-1));
+        assertThat(cursor.getCount()).isEqualTo(1);
+        cursor.close();
+        session.close();
+    }
+
+    @Test
+    public void shouldQueryChatWithoutIndexes() throws Exception {
+        WhassupSession session = whassup.openSession();
+        Cursor cursor = session.queryMessages("2705135391601542456@s.whatsapp.net", 0, 0, -1);
+        assertThat(cursor.getCount()).isEqualTo(13);
+        cursor.close();
+        session.close();
+    }
+
+    @Test
+    public void shouldQueryTextOnly() throws Exception {
+        WhassupSession session = whassup.openSession();
+        Cursor cursor = session.queryMessages(0, -1, Projection.TEXT);
+        assertThat(cursor.getColumnCount()).isEqualTo(8);
+        assertThat(cursor.getColumnIndex("raw_data")).isEqualTo(-1);
+        cursor.close();
+
+        WhatsAppMessage message = find(session.getMessages(0, -1, Projection.TEXT), 3);
+        assertThat(message.getText()).isNotNull();
+        assertThat(message.getTimestamp().getTime()).isEqualTo(1358086780000L);
+        assertThat(message.getMedia().getUrl()).isNull();
+        session.close();
+    }
+
+    @Test
+    public void shouldLoadBlobsLazily() throws Exception {
+        WhassupSession session = whassup.openSession();
+        WhatsAppMessage message = find(session.getMessages(0, -1, Projection.METADATA), 82);
+        assertThat(message.getMedia().getMimeType()).isEqualTo("image/jpeg");
+        assertThat(message.getMedia().getRawData()).hasSize(2386);
+        assertThat(message.getMedia().getFileSize()).isEqualTo(67731L);
+
+        WhatsAppMessage other = find(session.getMessages(0, -1, Projection.METADATA), 3);
+        assertThat(other.getMedia().getRawData()).isNull();
+        session.close();
+    }
+
+    @Test
+    public void shouldLoadBlobsLazilyWhileIterating() throws Exception {
+        WhassupSession session = whassup.openSession();
+        WhatsAppMessage message = null;
+        for (WhatsAppMessage m : session.iterateMessages(0, 10, Projection.METADATA)) {
+            if (m.getId() == 82) message = m;
+        }
+        assertThat(message.getMedia().getRawData()).hasSize(2386);
+        session.close();
+    }
+
+    @Test
+    public void shouldNotLoadBlobsAfterSessionIsClosed() throws Exception {
+        WhassupSession session = whassup.openSession();
+        WhatsAppMessage message = find(session.getMessages(0, -1, Projection.METADATA), 82);
+        session.close();
+        assertThat(message.toString()).contains("mediaData=null");
+        assertThat(message.getMedia().getRawData()).isNull();
+        assertThat(message.getMedia().getFile()).isNull();
+        assertThat(message.getMedia().getFileSize()).isEqualTo(-1L);
+    }
+
+    @Test
+    public void shouldReleaseCachedSnapshot() throws Exception {
+        File cacheDir = File.createTempFile("snapshot-cache", "");
+        assertThat(cacheDir.delete()).isTrue();
+        SnapshotCache cache = new SnapshotCache(cacheDir, Long.MAX_VALUE);
+        whassup = new Whassup(new DBDecryptor(), dbProvider, new DBOpener(), cache);
+
+        WhassupSession session = whassup.openSession();
+        assertThat(session.getMessages()).hasSize(82);
+        session.close();
+
+        // the snapshot stays in the cache and can be released only once
+        assertThat(session.getDbFile()).exists();
+        try {
+            cache.releaseSnapshot(session.getDbFile());
+            throw new AssertionError("snapshot still acquired");
+        } catch (IllegalStateException expected) {
+        }
+        cache.clear();
+    }
+
+    private static WhatsAppMessage find(List<WhatsAppMessage> messages, long id) {
+        for (WhatsAppMessage message : messages) {
+            if (message.getId() == id) return message;
+        }
+        throw new AssertionError("no message " + id);
+    }
+}
@@ -2,10 +2,18 @@ package com.github.jberkel.whassup;
 
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
+import com.github.jberkel.whassup.cache.SnapshotCache;
 import com.github.jberkel.whassup.crypto.DBDecryptor;
+import com.github.jberkel.whassup.helper.BackupBuilder;
+import com.github.jberkel.whassup.model.Conversation;
 import com.github.jberkel.whassup.model.Fixtures;
 import com.github.jberkel.whassup.model.Media;
+import com.github.jberkel.whassup.model.MessageQuery;
+import com.github.jberkel.whassup.model.MessageTable;
+import com.github.jberkel.whassup.model.Projection;
+import com.github.jberkel.whassup.model.SearchResult;
 import com.github.jberkel.whassup.model.WhatsAppMessage;
+import com.github.jberkel.whassup.sqlite.SQLiteHeader;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -14,13 +22,20 @@ import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 import static com.github.jberkel.whassup.Whassup.DBOpener;
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
@@ -48,6 +63,137 @@ public class WhassupTest {
         assertThat(messages).hasSize(82);
     }
 
+    @Test
+    public void shouldGetMessageTable() throws Exception {
+        MessageTable table = whassup.getMessageTable(0);
+        List<WhatsAppMessage> messages = whassup.getMessages();
+        assertThat(table.size()).isEqualTo(82);
+        for (int i = 0; i < table.size(); i++) {
+            assertThat(table.getId(i)).isEqualTo(messages.get(i).getId());
+            assertThat(table.getChatId(i)).isEqualTo(messages.get(i).getChatId());
+            assertThat(table.get(i).getTimestamp()).isEqualTo(messages.get(i).getTimestamp());
+            assertThat(table.getText(i)).isEqualTo(messages.get(i).getText());
+        }
+        assertThat(whassup.getMessageTable(1367349391104L).size()).isEqualTo(15);
+    }
+
+    @Test
+    public void shouldIndexGroups() throws Exception {
+        String group = "4915779999999-1369779058@g.us";
+        File backup = new BackupBuilder()
+                .groupEvent(group, true, 1, 1000, "Trip", "4915779999999")
+                .groupEvent(group, true, 4, 1100, null, "4915771111111@s.whatsapp.net")
+                .message(group, false, 1200, "hi", "4915772222222@s.whatsapp.net")
+                .groupEvent(group, true, 1, 2000, "Trip 2014", "4915779999999@s.whatsapp.net")
+                .groupEvent(group, false, 5, 3000, null, "4915771111111@s.whatsapp.net")
+                .message(group, true, 3500, "bye", null)
+                .build();
+        when(dbProvider.getDBFile()).thenReturn(backup);
+
+        assertThat(whassup.getOwnNumber()).isEqualTo("4915779999999");
+        assertThat(whassup.getChatCreationTimestamp(group)).isEqualTo(new Date(1000));
+        assertThat(whassup.getGroupName(group)).isEqualTo("Trip 2014");
+        assertThat(whassup.getGroupName(group, new Date(1500))).isEqualTo("Trip");
+        assertThat(whassup.getGroupMembers(group, new Date(1500))).containsOnly("4915779999999", "4915771111111", "4915772222222");
+        assertThat(whassup.getGroupMembers(group)).containsOnly("4915779999999", "4915772222222");
+        assertThat(whassup.getGroupIndex()).isSameAs(whassup.getGroupIndex());
+
+        List<WhatsAppMessage> messages = whassup.getMessages();
+        assertThat(messages).hasSize(6);
+        assertThat(messages.get(2).getRecipients()).containsOnly("-1", "4915771111111");
+        assertThat(messages.get(5).getRecipients()).containsOnly("4915772222222");
+        assertThat(backup.delete()).isTrue();
+    }
+
+    @Test
+    public void shouldIndexGroupsFromTheSameDecryptedBackup() throws Exception {
+        String group = "4915779999999-1369779058@g.us";
+        File backup = new BackupBuilder()
+                .groupEvent(group, true, 1, 1000, "Trip", "4915779999999")
+                .message(group, false, 1200, "hi", "4915772222222@s.whatsapp.net")
+                .message(group, true, 3500, "bye", null)
+                .build();
+        when(dbProvider.getDBFile()).thenReturn(backup);
+        DBDecryptor decryptor = spy(new DBDecryptor());
+        whassup = new Whassup(decryptor, dbProvider, new DBOpener());
+
+        List<WhatsAppMessage> messages = whassup.getMessages(0, 20);
+        assertThat(messages.get(2).getRecipients()).containsOnly("4915772222222");
+        assertThat(messages.get(1).getRecipients()).containsOnly("-1");
+        verify(decryptor, times(1)).decryptDB(any(File.class), any(File.class));
+
+        whassup.setDecryptOnDemand(true);
+        messages = whassup.getMessages(new MessageQuery().chat(group));
+        assertThat(messages.get(1).getRecipients()).containsOnly("-1");
+        verify(decryptor, times(1)).decryptDB(any(File.class), any(File.class));
+        assertThat(backup.delete()).isTrue();
+    }
+
+    @Test
+    public void shouldIndexGroupsOnDemand() throws Exception {
+        String group = "4915779999999-1369779058@g.us";
+        File backup = new BackupBuilder()
+                .message("4915773333333@s.whatsapp.net", false, 500, "yo", null)
+                .groupEvent(group, true, 1, 1000, "Trip", "4915779999999")
+                .groupEvent(group, true, 4, 1100, null, "4915771111111@s.whatsapp.net")
+                .message(group, false, 1200, "hi", "4915772222222@s.whatsapp.net")
+                .message(group, false, 1300, "hi again", "4915772222222@s.whatsapp.net")
+                .groupEvent(group, false, 5, 3000, null, "4915771111111@s.whatsapp.net")
+                .build();
+        when(dbProvider.getDBFile()).thenReturn(backup);
+        whassup.setDecryptOnDemand(true);
+
+        assertThat(whassup.getOwnNumber()).isEqualTo("4915779999999");
+        assertThat(whassup.getChatCreationTimestamp("4915773333333@s.whatsapp.net")).isEqualTo(new Date(500));
+        assertThat(whassup.getChatCreationTimestamp(group)).isEqualTo(new Date(1000));
+        assertThat(whassup.getGroupName(group)).isEqualTo("Trip");
+        assertThat(whassup.getGroupMembers(group, new Date(1500)))
+                .containsOnly("4915779999999", "4915771111111", "4915772222222");
+        assertThat(whassup.getGroupMembers(group)).containsOnly("4915779999999", "4915772222222");
+        assertThat(backup.delete()).isTrue();
+    }
+
+    @Test
+    public void shouldGetConversations() throws Exception {
+        List<Conversation> conversations = whassup.getConversations();
+        assertThat(conversations).hasSize(8);
+
+        Conversation latest = conversations.get(0);
+        assertThat(latest.getChatId()).isEqualTo("7923978620833762021@s.whatsapp.net");
+        assertThat(latest.getMessageCount()).isEqualTo(14);
+        assertThat(latest.getLastMessage().getId()).isEqualTo(83L);
+        assertThat(latest.getLastActivity()).isEqualTo(new Date(1369589322298L));
+        assertThat(latest.getRecentMessages()).isEmpty();
+
+        for (int i = 1; i < conversations.size(); i++) {
+            assertThat(conversations.get(i).getLastActivity()).isBeforeOrEqualsTo(conversations.get(i - 1).getLastActivity());
+        }
+    }
+
+    @Test
+    public void shouldGetConversationsWithRecentMessages() throws Exception {
+        List<Conversation> conversations = whassup.getConversations(3);
+        for (Conversation conversation : conversations) {
+            List<WhatsAppMessage> recent = conversation.getRecentMessages();
+            assertThat(recent).hasSize(Math.min(3, conversation.getMessageCount()));
+            List<Long> ids = new ArrayList<Long>();
+            for (WhatsAppMessage message : recent) {
+                assertThat(message.getChatId()).isEqualTo(conversation.getChatId());
+                ids.add(message.getId());
+            }
+            // chat_list points to the last inserted message, sent messages can have later timestamps
+            assertThat(ids).contains(conversation.getLastMessage().getId());
+        }
+        assertThat(conversations.get(0).getRecentMessages().get(0).getTimestamp())
+                .isBeforeOrEqualsTo(conversations.get(0).getRecentMessages().get(1).getTimestamp());
+    }
+
+    @Test
+    public void shouldGetNoConversationsWithoutBackup() throws Exception {
+        when(dbProvider.getDBFile()).thenReturn(null);
+        assertThat(whassup.getConversations()).isEmpty();
+    }
+
     @Test
     public void shouldQueryMessages() throws Exception {
         Cursor cursor = whassup.queryMessages();
@@ -119,10 +265,255 @@ public class WhassupTest {
         assertThat(whassup.hasBackupDB()).isTrue();
     }
 
+    @Test
+    public void shouldKeepCachedSnapshotAfterClosingCursor() throws Exception {
+        File cacheDir = File.createTempFile("snapshot-cache", "");
+        assertThat(cacheDir.delete()).isTrue();
+        SnapshotCache cache = new SnapshotCache(cacheDir, Long.MAX_VALUE);
+        whassup = new Whassup(new DBDecryptor(), dbProvider, new DBOpener(), cache);
+
+        assertThat(whassup.getMessages()).hasSize(82);
+        assertThat(cache.contains(Fixtures.TEST_DB_1)).isTrue();
+        assertThat(whassup.getMessages()).hasSize(82);
+        cache.clear();
+    }
+
+    @Test
+    public void shouldQueryWithMessageQuery() throws Exception {
+        MessageQuery received = new MessageQuery().chat("2705135391601542456@s.whatsapp.net").received()
+                .between(1361736520657L, 1366388912000L).projection(Projection.TEXT);
+        assertThat(ids(whassup.queryMessages(received))).containsExactly(54L, 55L, 58L, 59L, 64L);
+        assertThat(whassup.getMessages(new MessageQuery().received().withText())).hasSize(45);
+        assertThat(whassup.getMessages(new MessageQuery().mimeType("image/*").limit(5))).hasSize(1);
+
+        whassup.setDecryptOnDemand(true);
+        assertThat(ids(whassup.queryMessages(received))).containsExactly(54L, 55L, 58L, 59L, 64L);
+        assertThat(whassup.getMessages(new MessageQuery().received().withText())).hasSize(45);
+        assertThat(whassup.getMessages(new MessageQuery().mimeType("image/*").limit(5))).hasSize(1);
+    }
+
+    @Test
+    public void shouldSearchMessages() throws Exception {
+        List<SearchResult> results = whassup.search("Sed", null, 3);
+        assertThat(results).hasSize(3);
+        assertThat(results.get(0).getMessage().getId()).isEqualTo(74);
+        assertThat(results.get(0).getMessage().getText()).endsWith(" sed");
+        assertThat(results.get(1).getMessage().getId()).isEqualTo(71);
+        assertThat(results.get(2).getMessage().getId()).isEqualTo(55);
+        assertThat(whassup.search("sed", null, -1)).hasSize(10);
+        assertThat(whassup.search("sed", null, 9, 5)).hasSize(1);
+        assertThat(whassup.search("sed", "2705135391601542456@s.whatsapp.net", -1)).hasSize(2);
+        assertThat(whassup.search("sed elitr lorem", null, -1)).hasSize(10);
+        assertThat(whassup.search("nothing", null, -1)).isEmpty();
+        assertThat(whassup.search("", null, -1)).isEmpty();
+    }
+
+    @Test
+    public void shouldKeepSearchIndexInCache() throws Exception {
+        File cacheDir = File.createTempFile("snapshot-cache", "");
+        assertThat(cacheDir.delete()).isTrue();
+        SnapshotCache cache = new SnapshotCache(cacheDir, Long.MAX_VALUE);
+        whassup = new Whassup(new DBDecryptor(), dbProvider, new DBOpener(), cache);
+
+        assertThat(whassup.search("lor*", null, -1)).hasSize(76);
+        assertThat(cache.getSearchIndexFile(Fixtures.TEST_DB_1).getParentFile()).isEqualTo(cacheDir);
+        cache.clear();
+        assertThat(cacheDir.list()).isEmpty();
+    }
+
+    @Test
+    public void shouldKeepCachedSnapshotWhileCursorIsOpen() throws Exception {
+        File backup = File.createTempFile("msgstore", ".db.crypt");
+        FileOutputStream fos = new FileOutputStream(backup);
+        fos.write(Fixtures.fileToBytes(Fixtures.TEST_DB_1));
+        fos.close();
+        when(dbProvider.getDBFile()).thenReturn(backup);
+        File cacheDir = File.createTempFile("snapshot-cache", "");
+        assertThat(cacheDir.delete()).isTrue();
+        SnapshotCache cache = new SnapshotCache(cacheDir, Long.MAX_VALUE);
+        cache.setIncremental(true);
+        whassup = new Whassup(new DBDecryptor(), dbProvider, new DBOpener(), cache);
+
+        Cursor cursor = whassup.queryMessages(0, -1);
+        File[] snapshots = cacheDir.listFiles();
+        assertThat(backup.setLastModified(backup.lastModified() - 60 * 1000)).isTrue();
+        assertThat(whassup.getMessages()).hasSize(82);
+
+        for (File snapshot : snapshots) {
+            if (snapshot.getName().endsWith(".db")) assertThat(snapshot).exists();
+        }
+        assertThat(ids(cursor)).hasSize(82);
+
+        assertThat(backup.setLastModified(backup.lastModified() - 60 * 1000)).isTrue();
+        assertThat(whassup.getMessages()).hasSize(82);
+        for (File snapshot : snapshots) {
+            assertThat(snapshot).doesNotExist();
+        }
+        cache.clear();
+        assertThat(backup.delete()).isTrue();
+    }
+
+    @Test
+    public void shouldQueryMessagesOfChatInTimeRange() throws Exception {
+        String chat = "2705135391601542456@s.whatsapp.net";
+        assertThat(ids(whassup.queryMessages(chat, 0, 0, -1))).hasSize(13);
+        assertThat(ids(whassup.queryMessages(chat, 1361736520657L, 1366059567000L, -1)))
+                .containsExactly(53L, 54L, 55L, 56L, 58L, 59L);
+        assertThat(ids(whassup.queryMessages(chat, 1361736520657L, 0, 2))).containsExactly(53L, 54L);
+        assertThat(ids(whassup.queryMessages(null, 1366388912000L, 0, -1))).hasSize(18);
+
+        whassup.setDecryptOnDemand(true);
+        assertThat(ids(whassup.queryMessages(chat, 1361736520657L, 1366059567000L, -1)))
+                .containsExactly(53L, 54L, 55L, 56L, 58L, 59L);
+        assertThat(ids(whassup.queryMessages(chat, 0, 1360958499000L, -1))).containsExactly(46L, 47L);
+    }
+
+    @Test
+    public void shouldIndexCachedSnapshot() throws Exception {
+        File cacheDir = File.createTempFile("snapshot-cache", "");
+        assertThat(cacheDir.delete()).isTrue();
+        SnapshotCache cache = new SnapshotCache(cacheDir, Long.MAX_VALUE);
+        cache.setIncremental(true);
+        whassup = new Whassup(new DBDecryptor(), dbProvider, new DBOpener(), cache);
+
+        File snapshot = cache.getSnapshot(Fixtures.TEST_DB_1, new DBDecryptor());
+        assertThat(MessageIndexes.exist(snapshot)).isFalse();
+        assertThat(new File(cacheDir, snapshot.getName().replace(".db", ".sums")).exists()).isTrue();
+
+        assertThat(ids(whassup.queryMessages("2705135391601542456@s.whatsapp.net", 0, 0, -1))).hasSize(13);
+        assertThat(MessageIndexes.exist(snapshot)).isTrue();
+        // indexed snapshots must not be patched incrementally
+        assertThat(new File(cacheDir, snapshot.getName().replace(".db", ".sums")).exists()).isFalse();
+        assertThat(whassup.getMessages()).hasSize(82);
+        cache.clear();
+    }
+
+    @Test
+    public void shouldQueryMessagesInMemoryBelowThreshold() throws Exception {
+        List<WhatsAppMessage> fromFile = whassup.getMessages(1367349391104L, -1);
+        whassup.setInMemoryThreshold(Fixtures.TEST_DB_1.length());
+        List<WhatsAppMessage> fromMemory = whassup.getMessages(1367349391104L, -1);
+
+        assertThat(fromMemory).hasSize(15);
+        for (int i = 0; i < fromFile.size(); i++) {
+            assertThat(fromMemory.get(i).getId()).isEqualTo(fromFile.get(i).getId());
+            assertThat(fromMemory.get(i).getText()).isEqualTo(fromFile.get(i).getText());
+        }
+        assertThat(whassup.queryMessages(1367349391104L, 3).getCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void shouldReadMediaInMemory() throws Exception {
+        whassup.setInMemoryThreshold(Long.MAX_VALUE);
+        assertThat(whassup.getInMemoryThreshold()).isEqualTo(Whassup.MAX_IN_MEMORY_THRESHOLD);
+        WhatsAppMessage msg = null;
+        for (WhatsAppMessage message : whassup.getMessages()) {
+            if (message.getId() == 82) msg = message;
+        }
+        assertThat(msg).isNotNull();
+        assertThat(msg.getMedia().getFileSize()).isEqualTo(67731L);
+    }
+
+    @Test
+    public void shouldDecryptPagesOnDemand() throws Exception {
+        List<WhatsAppMessage> fromFile = whassup.getMessages();
+        List<Long> firstFromFile = ids(whassup.queryMessages(1360958499000L, 5));
+        whassup.setDecryptOnDemand(true);
+        List<WhatsAppMessage> onDemand = whassup.getMessages();
+
+        assertThat(onDemand).hasSize(82);
+        for (int i = 0; i < fromFile.size(); i++) {
+            assertThat(onDemand.get(i).getId()).isEqualTo(fromFile.get(i).getId());
+        }
+        assertThat(whassup.queryMessages(1367349391104L, 3).getCount()).isEqualTo(3);
+        // only the first rows are kept, in timestamp order
+        assertThat(ids(whassup.queryMessages(1360958499000L, 5))).isEqualTo(firstFromFile);
+    }
+
+    @Test
+    public void shouldQueryProjection() throws Exception {
+        Cursor cursor = whassup.queryMessages(0, -1, Projection.METADATA);
+        assertThat(cursor.getCount()).isEqualTo(82);
+        assertThat(cursor.getColumnIndex("thumb_image")).isEqualTo(-1);
+        assertThat(cursor.getColumnIndex("media_url")).isGreaterThanOrEqualTo(0);
+        cursor.close();
+
+        whassup.setDecryptOnDemand(true);
+        cursor = whassup.queryMessages(0, 5, Projection.TEXT);
+        assertThat(cursor.getCount()).isEqualTo(5);
+        assertThat(cursor.getColumnNames()).containsOnly(Projection.TEXT.getColumns());
+        assertThat(cursor.moveToFirst()).isTrue();
+        assertThat(cursor.getLong(cursor.getColumnIndex("_id"))).isEqualTo(1L);
+        cursor.close();
+    }
+
+    @Test
+    public void shouldOnlyUseInMemoryPathBelowThreshold() throws Exception {
+        DBOpener dbOpener = mock(DBOpener.class);
+        when(dbOpener.openDatabase(any(File.class))).thenThrow(new SQLiteException("failz"));
+        whassup = new Whassup(new DBDecryptor(), dbProvider, dbOpener);
+        whassup.setInMemoryThreshold(Fixtures.TEST_DB_1.length() - 1);
+        try {
+            whassup.queryMessages();
+        } catch (IOException expected) {
+        }
+        verify(dbOpener, never()).openInMemory(any(DBDecryptor.class), any(File.class));
+    }
+
+    @Test
+    public void shouldProbeBackup() throws Exception {
+        DBDecryptor decryptor = new DBDecryptor();
+        whassup = new Whassup(decryptor, dbProvider, new DBOpener());
+        SQLiteHeader header = whassup.probe();
+        assertThat(header.getPageSize()).isEqualTo(4096);
+        assertThat(header.getPageCount()).isEqualTo(13);
+        assertThat(header.isPageCountValid()).isTrue();
+        assertThat(header.getUserVersion()).isEqualTo(1);
+        assertThat(header.getSchemaFormat()).isEqualTo(4);
+        // header and padding blocks only
+        assertThat(decryptor.getThroughput().getBytes()).isLessThan(200L);
+    }
+
+    @Test
+    public void shouldProbeMissingBackup() throws Exception {
+        when(dbProvider.getDBFile()).thenReturn(null);
+        assertThat(whassup.probe()).isNull();
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailProbeForNonDatabase() throws Exception {
+        File plain = File.createTempFile("probe", ".txt");
+        File encrypted = File.createTempFile("probe", ".crypt");
+        FileOutputStream fos = new FileOutputStream(plain);
+        fos.write(new byte[8192]);
+        fos.close();
+        new DBDecryptor().encryptDB(plain, encrypted);
+        whassup.probe(encrypted);
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailProbeForTruncatedBackup() throws Exception {
+        File truncated = File.createTempFile("probe", ".crypt");
+        FileOutputStream fos = new FileOutputStream(truncated);
+        fos.write(Fixtures.fileToBytes(Fixtures.TEST_DB_1), 0, 4096);
+        fos.close();
+        whassup.probe(truncated);
+    }
+
     @Test(expected = IOException.class)
     public void shouldCatchSQLiteExceptionWhenOpeningDatabase() throws Exception {
         DBOpener dbOpener = mock(DBOpener.class);
         when(dbOpener.openDatabase(any(File.class))).thenThrow(new SQLiteException("failz"));
         new Whassup(new DBDecryptor(), dbProvider, dbOpener).queryMessages();
     }
+
+    private static List<Long> ids(Cursor cursor) {
+        List<Long> ids = new ArrayList<Long>();
+        int id = cursor.getColumnIndex(WhatsAppMessage.Fields._ID.toString());
+        while (cursor.moveToNext()) {
+            ids.add(cursor.getLong(id));
+        }
+        cursor.close();
+        return ids;
+    }
 }
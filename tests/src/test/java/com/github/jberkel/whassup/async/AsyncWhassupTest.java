@@ -0,0 +1,180 @@
+package com.github.jberkel.whassup.async;
+
+import com.github.jberkel.whassup.Whassup;
+import com.github.jberkel.whassup.model.Fixtures;
+import com.github.jberkel.whassup.model.MessageQuery;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class AsyncWhassupTest {
+    static final Object COMPLETE = "complete";
+
+    ExecutorService executor;
+    AsyncWhassup whassup;
+
+    @Before public void before() {
+        executor = Executors.newSingleThreadExecutor();
+        whassup = new AsyncWhassup(new Whassup(Fixtures.TEST_DB_1), executor);
+    }
+
+    @After public void after() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void shouldGetMessagesInBackground() throws Exception {
+        assertThat(whassup.getMessages().get()).hasSize(82);
+        assertThat(whassup.getMessages(new MessageQuery().received().withText()).get()).hasSize(45);
+        assertThat(whassup.search("sed", null, 0, 3).get()).hasSize(3);
+    }
+
+    @Test
+    public void shouldReportErrorsThroughFuture() throws Exception {
+        AsyncWhassup missing = new AsyncWhassup(new Whassup(new File("/does/not/exist")), executor);
+        try {
+            missing.getMessages().get();
+            throw new AssertionError("expected exception");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IOException.class);
+        }
+    }
+
+    @Test
+    public void shouldOnlyPublishRequestedMessages() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        whassup.publishMessages(0).subscribe(subscriber);
+        Subscription subscription = (Subscription) subscriber.take();
+
+        subscription.request(10);
+        List<Object> first = subscriber.take(10);
+        assertThat(first).hasSize(10);
+        assertThat(subscriber.events.poll(200, TimeUnit.MILLISECONDS)).isNull();
+
+        subscription.request(100);
+        List<Object> rest = subscriber.take(72);
+        assertThat(rest).hasSize(72);
+        assertThat(subscriber.take()).isSameAs(COMPLETE);
+
+        List<WhatsAppMessage> messages = new ArrayList<WhatsAppMessage>();
+        for (Object event : first) messages.add((WhatsAppMessage) event);
+        for (Object event : rest) messages.add((WhatsAppMessage) event);
+        assertThat(messages).isSortedAccordingTo(WhatsAppMessage.TimestampComparator.INSTANCE);
+    }
+
+    @Test
+    public void shouldStopWhenCancelled() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        whassup.publishMessages(0).subscribe(subscriber);
+        Subscription subscription = (Subscription) subscriber.take();
+
+        subscription.request(5);
+        assertThat(subscriber.take(5)).hasSize(5);
+        subscription.cancel();
+        subscription.request(5);
+        assertThat(subscriber.events.poll(200, TimeUnit.MILLISECONDS)).isNull();
+    }
+
+    @Test
+    public void shouldPublishUnbounded() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        whassup.publishMessages(1367349391104L).subscribe(subscriber);
+        ((Subscription) subscriber.take()).request(Long.MAX_VALUE);
+        assertThat(subscriber.take(15)).hasSize(15);
+        assertThat(subscriber.take()).isSameAs(COMPLETE);
+    }
+
+    @Test
+    public void shouldPublishErrors() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        new AsyncWhassup(new Whassup(new File("/does/not/exist")), executor).publishMessages(0).subscribe(subscriber);
+        ((Subscription) subscriber.take()).request(1);
+        assertThat(subscriber.take()).isInstanceOf(IOException.class);
+    }
+
+    @Test
+    public void shouldRejectInvalidRequests() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        whassup.publishMessages(0).subscribe(subscriber);
+        ((Subscription) subscriber.take()).request(0);
+        assertThat(subscriber.take()).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void shouldStopWhenSubscriberThrows() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override public void onNext(WhatsAppMessage item) {
+                super.onNext(item);
+                throw new RuntimeException("broken subscriber");
+            }
+        };
+        whassup.publishMessages(0).subscribe(subscriber);
+        Subscription subscription = (Subscription) subscriber.take();
+
+        subscription.request(5);
+        assertThat(subscriber.take(1)).hasSize(1);
+        subscription.request(5);
+        assertThat(subscriber.events.poll(200, TimeUnit.MILLISECONDS)).isNull();
+
+        RecordingSubscriber next = new RecordingSubscriber();
+        whassup.publishMessages(1367349391104L).subscribe(next);
+        ((Subscription) next.take()).request(Long.MAX_VALUE);
+        assertThat(next.take(15)).hasSize(15);
+        assertThat(next.take()).isSameAs(COMPLETE);
+    }
+
+    static class RecordingSubscriber implements Subscriber<WhatsAppMessage> {
+        final BlockingQueue<Object> events = new LinkedBlockingQueue<Object>();
+
+        @Override public void onSubscribe(Subscription subscription) {
+            events.add(subscription);
+        }
+
+        @Override public void onNext(WhatsAppMessage item) {
+            events.add(item);
+        }
+
+        @Override public void onError(Throwable error) {
+            events.add(error);
+        }
+
+        @Override public void onComplete() {
+            events.add(COMPLETE);
+        }
+
+        Object take() throws InterruptedException {
+            Object event = events.poll(5, TimeUnit.SECONDS);
+            if (event == null) throw new AssertionError("timed out");
+            return event;
+        }
+
+        List<Object> take(int n) throws InterruptedException {
+            List<Object> taken = new ArrayList<Object>();
+            for (int i = 0; i < n; i++) {
+                Object event = take();
+                assertThat(event).isInstanceOf(WhatsAppMessage.class);
+                taken.add(event);
+            }
+            return taken;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.github.jberkel.whassup.cache;
+
+import com.github.jberkel.whassup.crypto.DBDecryptor;
+import com.github.jberkel.whassup.model.Fixtures;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static com.github.jberkel.whassup.model.Fixtures.fileToBytes;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SnapshotCacheTest {
+    private File directory;
+    private DBDecryptor decryptor;
+
+    @Before public void before() throws Exception {
+        directory = File.createTempFile("snapshot-cache", "");
+        assertThat(directory.delete()).isTrue();
+        decryptor = spy(new DBDecryptor());
+    }
+
+    @After public void after() {
+        new SnapshotCache(directory, 1).clear();
+    }
+
+    @Test
+    public void shouldDecryptOnlyOnce() throws Exception {
+        SnapshotCache cache = new SnapshotCache(directory, Long.MAX_VALUE);
+        File first = cache.getSnapshot(Fixtures.TEST_DB_1, decryptor);
+        File second = cache.getSnapshot(Fixtures.TEST_DB_1, decryptor);
+
+        assertThat(first).isEqualTo(second);
+        assertThat(first).exists();
+        verify(decryptor, times(1)).decryptDB(any(File.class), any(File.class));
+    }
+
+    @Test
+    public void shouldReuseSnapshotAcrossInstances() throws Exception {
+        new SnapshotCache(directory, Long.MAX_VALUE).getSnapshot(Fixtures.TEST_DB_1, decryptor);
+        SnapshotCache cache = new SnapshotCache(directory, Long.MAX_VALUE);
+        assertThat(cache.contains(Fixtures.TEST_DB_1)).isTrue();
+        cache.getSnapshot(Fixtures.TEST_DB_1, decryptor);
+
+        verify(decryptor, times(1)).decryptDB(any(File.class), any(File.class));
+    }
+
+    @Test
+    public void shouldRebuildAndRemoveStaleSnapshotWhenInputChanges() throws Exception {
+        File input = copy(Fixtures.TEST_DB_1);
+        SnapshotCache cache = new SnapshotCache(directory, Long.MAX_VALUE);
+        File first = cache.getSnapshot(input, decryptor);
+
+        assertThat(input.setLastModified(input.lastModified() - 60 * 1000)).isTrue();
+        File second = cache.getSnapshot(input, decryptor);
+
+        assertThat(second).isNotEqualTo(first);
+        assertThat(second).exists();
+        assertThat(first).doesNotExist();
+        verify(decryptor, times(2)).decryptDB(any(File.class), any(File.class));
+    }
+
+    @Test
+    public void shouldRefreshSnapshotIncrementally() throws Exception {
+        File input = copy(Fixtures.TEST_DB_1);
+        SnapshotCache cache = new SnapshotCache(directory, Long.MAX_VALUE);
+        cache.setIncremental(true);
+        File first = cache.getSnapshot(input, decryptor);
+        byte[] decrypted = fileToBytes(first);
+
+        assertThat(input.setLastModified(input.lastModified() - 60 * 1000)).isTrue();
+        File second = cache.getSnapshot(input, decryptor);
+
+        assertThat(first).doesNotExist();
+        assertThat(fileToBytes(second)).isEqualTo(decrypted);
+        assertThat(SnapshotCache.digestsFile(second)).exists();
+        verify(decryptor, times(2)).decryptIncremental(any(File.class), any(File.class), any(File.class));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedSnapshots() throws Exception {
+        File input1 = copy(Fixtures.TEST_DB_1);
+        File input2 = copy(Fixtures.TEST_DB_1);
+        SnapshotCache cache = new SnapshotCache(directory, Fixtures.TEST_DB_1.length() + 1);
+
+        File first = cache.getSnapshot(input1, decryptor);
+        File second = cache.getSnapshot(input2, decryptor);
+
+        assertThat(first).doesNotExist();
+        assertThat(second).exists();
+        assertThat(cache.size()).isLessThanOrEqualTo(cache.getMaxBytes());
+    }
+
+    @Test
+    public void shouldEvictSearchIndexWithLastSnapshot() throws Exception {
+        File input1 = copy(Fixtures.TEST_DB_1);
+        File input2 = copy(Fixtures.TEST_DB_1);
+        SnapshotCache cache = new SnapshotCache(directory, Fixtures.TEST_DB_1.length() + 1024);
+
+        File first = cache.getSnapshot(input1, decryptor);
+        File index = cache.getSearchIndexFile(input1);
+        FileOutputStream out = new FileOutputStream(index);
+        out.write(new byte[512]);
+        out.close();
+        assertThat(cache.size()).isEqualTo(first.length() + 512);
+
+        cache.getSnapshot(input2, decryptor);
+        assertThat(first).doesNotExist();
+        assertThat(index).doesNotExist();
+        assertThat(cache.size()).isLessThanOrEqualTo(cache.getMaxBytes());
+    }
+
+    @Test
+    public void shouldNotEvictAcquiredSnapshots() throws Exception {
+        File input1 = copy(Fixtures.TEST_DB_1);
+        File input2 = copy(Fixtures.TEST_DB_1);
+        SnapshotCache cache = new SnapshotCache(directory, Fixtures.TEST_DB_1.length() + 1);
+
+        File first = cache.acquireSnapshot(input1, decryptor);
+        cache.getSnapshot(input2, decryptor);
+        assertThat(first).exists();
+
+        cache.releaseSnapshot(first);
+        cache.getSnapshot(copy(Fixtures.TEST_DB_1), decryptor);
+        assertThat(first).doesNotExist();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldNotReleaseSnapshotTwice() throws Exception {
+        SnapshotCache cache = new SnapshotCache(directory, Long.MAX_VALUE);
+        File snapshot = cache.acquireSnapshot(Fixtures.TEST_DB_1, decryptor);
+        cache.releaseSnapshot(snapshot);
+        cache.releaseSnapshot(snapshot);
+    }
+
+    @Test
+    public void shouldFingerprintContent() throws Exception {
+        Fingerprint fp1 = Fingerprint.of(Fixtures.TEST_DB_1);
+        Fingerprint fp2 = Fingerprint.of(Fixtures.TEST_DB_1);
+        assertThat(fp1).isEqualTo(fp2);
+        assertThat(fp1.getKey()).startsWith(fp1.getPathKey() + "-");
+        assertThat(fp1.getLength()).isEqualTo(Fixtures.TEST_DB_1.length());
+    }
+
+    private static File copy(File in) throws IOException {
+        File out = File.createTempFile("snapshot-input", ".crypt");
+        out.deleteOnExit();
+        FileOutputStream fos = new FileOutputStream(out);
+        FileInputStream fis = new FileInputStream(in);
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = fis.read(buffer)) != -1) {
+            fos.write(buffer, 0, n);
+        }
+        fis.close();
+        fos.close();
+        return out;
+    }
+}
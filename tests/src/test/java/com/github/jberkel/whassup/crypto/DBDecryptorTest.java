@@ -10,9 +10,17 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static com.github.jberkel.whassup.model.Fixtures.fileToBytes;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 
@@ -51,6 +59,167 @@ public class DBDecryptorTest {
         verifyDB(out);
     }
 
+    @Test
+    public void shouldDecryptNonFileStream() throws Exception {
+        File out = File.createTempFile("db-test", ".sql");
+        FileOutputStream fos = new FileOutputStream(out);
+        dbDecryptor.decryptStream(new ByteArrayInputStream(fileToBytes(Fixtures.TEST_DB_1)), fos);
+        verifyDB(out);
+    }
+
+    @Test
+    public void shouldDecryptChannel() throws Exception {
+        File out = File.createTempFile("db-test", ".sql");
+        FileInputStream fis = new FileInputStream(Fixtures.TEST_DB_1);
+        FileOutputStream fos = new FileOutputStream(out);
+        dbDecryptor.decryptChannel(fis.getChannel(), fos.getChannel());
+        fis.close();
+        fos.close();
+        verifyDB(out);
+
+        File full = File.createTempFile("db-test", ".sql");
+        dbDecryptor.decryptStream(new ByteArrayInputStream(fileToBytes(Fixtures.TEST_DB_1)), new FileOutputStream(full));
+        assertThat(fileToBytes(out)).isEqualTo(fileToBytes(full));
+    }
+
+    @Test
+    public void shouldEncryptDatabase() throws Exception {
+        File plain = File.createTempFile("db-test", ".sql");
+        File encrypted = File.createTempFile("db-test", ".crypt");
+        dbDecryptor.decryptDB(Fixtures.TEST_DB_1, plain);
+        dbDecryptor.encryptDB(plain, encrypted);
+        assertThat(fileToBytes(encrypted)).isEqualTo(fileToBytes(Fixtures.TEST_DB_1));
+    }
+
+    @Test
+    public void shouldEncryptStream() throws Exception {
+        File plain = File.createTempFile("db-test", ".sql");
+        dbDecryptor.decryptDB(Fixtures.TEST_DB_1, plain);
+        ByteArrayOutputStream encrypted = new ByteArrayOutputStream();
+        dbDecryptor.encryptStream(new ByteArrayInputStream(fileToBytes(plain)), encrypted);
+        assertThat(encrypted.toByteArray()).isEqualTo(fileToBytes(Fixtures.TEST_DB_1));
+    }
+
+    @Test
+    public void shouldEncryptChannel() throws Exception {
+        File plain = File.createTempFile("db-test", ".sql");
+        File encrypted = File.createTempFile("db-test", ".crypt");
+        dbDecryptor.decryptDB(Fixtures.TEST_DB_1, plain);
+        FileInputStream fis = new FileInputStream(plain);
+        FileOutputStream fos = new FileOutputStream(encrypted);
+        dbDecryptor.encryptChannel(fis.getChannel(), fos.getChannel());
+        fis.close();
+        fos.close();
+        assertThat(fileToBytes(encrypted)).isEqualTo(fileToBytes(Fixtures.TEST_DB_1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldThrowWithNullEncryptInput() throws Exception {
+        dbDecryptor.encryptDB(null, new File(("/out")));
+    }
+
+    @Test
+    public void shouldDecryptInParallel() throws Exception {
+        DBDecryptor chunked = new DBDecryptor(4096);
+        File out = File.createTempFile("db-test", ".sql");
+        chunked.decryptDB(Fixtures.TEST_DB_1, out, 4);
+        verifyDB(out);
+
+        File full = File.createTempFile("db-test", ".sql");
+        dbDecryptor.decryptDB(Fixtures.TEST_DB_1, full);
+        assertThat(fileToBytes(out)).isEqualTo(fileToBytes(full));
+        assertThat(chunked.getThroughput().getBytes()).isEqualTo(Fixtures.TEST_DB_1.length());
+        assertThat(chunked.getThroughput().getBytesPerSecond()).isGreaterThan(0d);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldThrowWithInvalidParallelism() throws Exception {
+        dbDecryptor.decryptDB(Fixtures.TEST_DB_1, new File("/out"), 0);
+    }
+
+    @Test
+    public void shouldDecryptIncrementally() throws Exception {
+        DBDecryptor chunked = new DBDecryptor(4096);
+        File out = File.createTempFile("db-test", ".sql");
+        File digests = File.createTempFile("db-test", ".sums");
+        assertThat(digests.delete()).isTrue();
+
+        int chunks = (int) ((Fixtures.TEST_DB_1.length() + 4095) / 4096);
+        assertThat(chunked.decryptIncremental(Fixtures.TEST_DB_1, out, digests)).isEqualTo(chunks);
+        verifyDB(out);
+        assertThat(digests).exists();
+
+        // only the last chunk (with the padding) needs to be decrypted
+        assertThat(chunked.decryptIncremental(Fixtures.TEST_DB_1, out, digests)).isEqualTo(1);
+        File full = File.createTempFile("db-test", ".sql");
+        dbDecryptor.decryptDB(Fixtures.TEST_DB_1, full);
+        assertThat(fileToBytes(out)).isEqualTo(fileToBytes(full));
+    }
+
+    @Test
+    public void shouldOnlyDecryptChangedChunks() throws Exception {
+        DBDecryptor chunked = new DBDecryptor(4096);
+        File input = File.createTempFile("db-test", ".crypt");
+        FileOutputStream fos = new FileOutputStream(input);
+        fos.write(fileToBytes(Fixtures.TEST_DB_1));
+        fos.close();
+        File out = File.createTempFile("db-test", ".sql");
+        File digests = File.createTempFile("db-test", ".sums");
+        assertThat(digests.delete()).isTrue();
+        chunked.decryptIncremental(input, out, digests);
+
+        RandomAccessFile raf = new RandomAccessFile(input, "rw");
+        raf.seek(8192);
+        raf.write(new byte[16]);
+        raf.close();
+
+        assertThat(chunked.decryptIncremental(input, out, digests)).isEqualTo(2);
+        File full = File.createTempFile("db-test", ".sql");
+        dbDecryptor.decryptDB(input, full);
+        assertThat(fileToBytes(out)).isEqualTo(fileToBytes(full));
+    }
+
+    @Test
+    public void shouldDecryptPagesOnDemand() throws Exception {
+        File full = File.createTempFile("db-test", ".sql");
+        dbDecryptor.decryptDB(Fixtures.TEST_DB_1, full);
+        byte[] expected = fileToBytes(full);
+
+        EncryptedPageSource source = dbDecryptor.openPageSource(Fixtures.TEST_DB_1);
+        assertThat(source.length()).isEqualTo(expected.length);
+        long decrypted = dbDecryptor.getThroughput().getBytes();
+
+        byte[] page = new byte[4096];
+        source.read(8192, page, 0, page.length);
+        assertThat(page).isEqualTo(Arrays.copyOfRange(expected, 8192, 8192 + 4096));
+        assertThat(dbDecryptor.getThroughput().getBytes() - decrypted).isEqualTo(4096);
+
+        // unaligned reads decrypt the surrounding blocks
+        byte[] unaligned = new byte[20];
+        source.read(expected.length - 21, unaligned, 0, unaligned.length);
+        assertThat(unaligned).isEqualTo(Arrays.copyOfRange(expected, expected.length - 21, expected.length - 1));
+        source.close();
+    }
+
+    @Test(expected = EOFException.class)
+    public void shouldNotReadPastEndOfPlaintext() throws Exception {
+        EncryptedPageSource source = dbDecryptor.openPageSource(Fixtures.TEST_DB_1);
+        try {
+            source.read(source.length() - 1, new byte[2], 0, 2);
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectTruncatedFileForOnDemandDecryption() throws Exception {
+        File input = File.createTempFile("db-test", ".crypt");
+        FileOutputStream fos = new FileOutputStream(input);
+        fos.write(fileToBytes(Fixtures.TEST_DB_1), 0, 1000);
+        fos.close();
+        dbDecryptor.openPageSource(input);
+    }
+
     private void verifyDB(File out) {
         assertThat(out).canRead();
         assertThat(out.length()).isGreaterThan(0L);
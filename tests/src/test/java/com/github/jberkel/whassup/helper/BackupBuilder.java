@@ -0,0 +1,102 @@
+package com.github.jberkel.whassup.helper;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import com.github.jberkel.whassup.crypto.DBDecryptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Creates encrypted backups with the schema of msgstore.db.crypt, for tests which need
+ * specific messages.
+ */
+public class BackupBuilder {
+    private final File plain;
+    private final SQLiteDatabase db;
+    private int inserted;
+
+    public BackupBuilder() throws IOException {
+        plain = File.createTempFile("msgstore", ".db");
+        db = SQLiteDatabase.openDatabase(plain.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY);
+        db.execSQL("CREATE TABLE messages (_id INTEGER PRIMARY KEY AUTOINCREMENT, key_remote_jid TEXT NOT NULL, " +
+                "key_from_me INTEGER, key_id TEXT NOT NULL, status INTEGER, needs_push INTEGER, data TEXT, " +
+                "timestamp INTEGER, media_url TEXT, media_mime_type TEXT, media_wa_type TEXT, media_size INTEGER, " +
+                "media_name TEXT, media_hash TEXT, latitude REAL, longitude REAL, thumb_image TEXT, " +
+                "remote_resource TEXT, received_timestamp INTEGER, send_timestamp INTEGER, " +
+                "receipt_server_timestamp INTEGER, receipt_device_timestamp INTEGER, raw_data BLOB, " +
+                "recipient_count INTEGER, media_duration INTEGER, origin INTEGER)");
+        db.execSQL("CREATE TABLE chat_list (_id INTEGER PRIMARY KEY AUTOINCREMENT, key_remote_jid TEXT UNIQUE, " +
+                "message_table_id INTEGER)");
+    }
+
+    /**
+     * Adds a text message.
+     * @param remoteResource the sender of received group messages, else null
+     */
+    public BackupBuilder message(String jid, boolean fromMe, long timestamp, String text, String remoteResource) {
+        return message(jid, fromMe, timestamp, text, remoteResource, String.valueOf(inserted + 1));
+    }
+
+    /**
+     * Adds a text message with a given key_id, for messages which are contained in several backups.
+     */
+    public BackupBuilder message(String jid, boolean fromMe, long timestamp, String text, String remoteResource,
+                                 String keyId) {
+        insert(jid, fromMe, fromMe ? 5 : 0, 0, timestamp, text, remoteResource, keyId);
+        return this;
+    }
+
+    /**
+     * Adds a group event (status 6).
+     * @param type 1 = name change, 4 = joined, 5 = left, 6 = icon change, 7 = removed
+     */
+    public BackupBuilder groupEvent(String jid, boolean fromMe, int type, long timestamp, String data, String remoteResource) {
+        insert(jid, fromMe, 6, type, timestamp, data, remoteResource, String.valueOf(inserted + 1));
+        return this;
+    }
+
+    /**
+     * Deletes a message added before, leaving a gap in the <code>_id</code>s like WhatsApp does.
+     * @param id the <code>_id</code> of the message, starting at 1
+     */
+    public BackupBuilder delete(long id) {
+        db.delete("messages", "_id = ?", new String[] { String.valueOf(id) });
+        return this;
+    }
+
+    /**
+     * @return the encrypted backup, a temporary file
+     */
+    public File build() throws IOException, GeneralSecurityException {
+        db.close();
+        File encrypted = File.createTempFile("msgstore", ".db.crypt");
+        new DBDecryptor().encryptDB(plain, encrypted);
+        if (!plain.delete()) throw new IOException("could not delete " + plain);
+        return encrypted;
+    }
+
+    private void insert(String jid, boolean fromMe, int status, int mediaSize, long timestamp, String data,
+                        String remoteResource, String keyId) {
+        ContentValues values = new ContentValues();
+        values.put("key_remote_jid", jid);
+        values.put("key_from_me", fromMe ? 1 : 0);
+        values.put("key_id", keyId);
+        inserted++;
+        values.put("status", status);
+        values.put("media_size", mediaSize);
+        values.put("timestamp", timestamp);
+        values.put("data", data);
+        values.put("remote_resource", remoteResource);
+        long id = db.insert("messages", null, values);
+
+        ContentValues chat = new ContentValues();
+        chat.put("key_remote_jid", jid);
+        chat.put("message_table_id", id);
+        if (db.update("chat_list", chat, "key_remote_jid = ?", new String[] { jid }) == 0) {
+            db.insert("chat_list", null, chat);
+        }
+    }
+}
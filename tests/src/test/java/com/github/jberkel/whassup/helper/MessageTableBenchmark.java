@@ -0,0 +1,150 @@
+package com.github.jberkel.whassup.helper;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.MatrixCursor;
+import com.github.jberkel.whassup.model.MessageRowMapper;
+import com.github.jberkel.whassup.model.MessageTable;
+import com.github.jberkel.whassup.model.Projection;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the retained heap of a list of messages with a {@link MessageTable}, and the time
+ * of a full scan over the timestamps of each.
+ * Not part of the test suite, run with <code>mvn test -Dtest=MessageTableBenchmark</code>.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MessageTableBenchmark {
+    private static final int ROWS = 100000;
+    private static final int CHATS = 200;
+    private static final String[] MIME_TYPES = { null, null, null, "image/jpeg", "audio/aac", "video/mp4" };
+
+    @Test
+    public void benchmark() {
+        final Cursor cursor = new CursorWrapper(createCursor()) {
+            @Override
+            public String getString(int columnIndex) {
+                final String value = super.getString(columnIndex);
+                return value == null ? null : new String(value);
+            }
+        };
+
+        long before = usedMemory();
+        List<WhatsAppMessage> messages = toList(cursor);
+        long listBytes = usedMemory() - before;
+        long listScan = scan(messages);
+
+        messages = null;
+        before = usedMemory();
+        MessageTable table = toTable(cursor);
+        long tableBytes = usedMemory() - before;
+        long tableScan = scan(table);
+
+        System.out.println(String.format("%-24s %,12d bytes/row %,8d us/scan", "list of messages",
+                listBytes / ROWS, listScan / 1000));
+        System.out.println(String.format("%-24s %,12d bytes/row %,8d us/scan", "message table",
+                tableBytes / ROWS, tableScan / 1000));
+        if (table.size() != ROWS) throw new AssertionError();
+    }
+
+    private static List<WhatsAppMessage> toList(Cursor cursor) {
+        cursor.moveToPosition(-1);
+        final List<WhatsAppMessage> messages = new ArrayList<WhatsAppMessage>(cursor.getCount());
+        final MessageRowMapper mapper = new MessageRowMapper(cursor);
+        while (cursor.moveToNext()) {
+            messages.add(mapper.map(cursor));
+        }
+        return messages;
+    }
+
+    private static MessageTable toTable(Cursor cursor) {
+        cursor.moveToPosition(-1);
+        return new MessageTable(cursor);
+    }
+
+    private static long scan(List<WhatsAppMessage> messages) {
+        long best = Long.MAX_VALUE, sum = 0;
+        for (int round = 0; round < 5; round++) {
+            final long start = System.nanoTime();
+            for (WhatsAppMessage message : messages) {
+                sum += message.getTimestamp().getTime();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        if (sum == 42) System.out.println();
+        return best;
+    }
+
+    private static long scan(MessageTable table) {
+        long best = Long.MAX_VALUE, sum = 0;
+        for (int round = 0; round < 5; round++) {
+            final long start = System.nanoTime();
+            for (int i = 0; i < table.size(); i++) {
+                sum += table.getTimestamp(i);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        if (sum == 42) System.out.println();
+        return best;
+    }
+
+    /**
+     * The values are copied on every access by the wrapper in {@link #benchmark()}, like
+     * SQLiteCursor does.
+     */
+    private static MatrixCursor createCursor() {
+        final String[] columns = Projection.METADATA.getColumns();
+        final MatrixCursor cursor = new MatrixCursor(columns, ROWS);
+        for (int row = 0; row < ROWS; row++) {
+            final Object[] values = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                final WhatsAppMessage.Fields field = WhatsAppMessage.Fields.valueOf(columns[i].toUpperCase());
+                switch (field) {
+                    case KEY_REMOTE_JID:
+                        values[i] = (4915773900000L + row % CHATS) + "@s.whatsapp.net";
+                        break;
+                    case KEY_ID:
+                        values[i] = "1369779058-" + row;
+                        break;
+                    case DATA:
+                        values[i] = "message number " + row;
+                        break;
+                    case MEDIA_MIME_TYPE:
+                        values[i] = MIME_TYPES[row % MIME_TYPES.length];
+                        break;
+                    case MEDIA_HASH:
+                    case MEDIA_NAME:
+                    case MEDIA_WA_TYPE:
+                    case MEDIA_URL:
+                    case REMOTE_RESOURCE:
+                        values[i] = null;
+                        break;
+                    case LATITUDE:
+                    case LONGITUDE:
+                        values[i] = 0d;
+                        break;
+                    default:
+                        values[i] = (long) row;
+                }
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private static long usedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
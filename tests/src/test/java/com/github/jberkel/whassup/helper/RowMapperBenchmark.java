@@ -0,0 +1,124 @@
+package com.github.jberkel.whassup.helper;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import com.github.jberkel.whassup.model.MessageRowMapper;
+import com.github.jberkel.whassup.model.WhatsAppMessage;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Locale;
+
+/**
+ * Compares the rows per second of the different ways of mapping cursor rows to messages.
+ * Not part of the test suite, run with <code>mvn test -Dtest=RowMapperBenchmark</code>.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class RowMapperBenchmark {
+    private static final int ROWS = 20000;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void benchmark() {
+        final MatrixCursor cursor = createCursor();
+        for (int round = 0; round < ROUNDS; round++) {
+            report("column lookup per field", lookupPerField(cursor));
+            report("row mapper per row", mapperPerRow(cursor));
+            report("row mapper per cursor", mapperPerCursor(cursor));
+        }
+    }
+
+    /**
+     * What WhatsAppMessage(Cursor) used to do: lower case the field name and look up the column
+     * index for every field of every row.
+     */
+    private static long lookupPerField(Cursor cursor) {
+        final long start = System.nanoTime();
+        long sum = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            for (WhatsAppMessage.Fields field : WhatsAppMessage.Fields.values()) {
+                int idx = cursor.getColumnIndex(field.name().toLowerCase(Locale.ENGLISH));
+                Object value = sampleValue(field, 0);
+                if (value instanceof Long) {
+                    sum += cursor.getLong(idx);
+                } else if (value instanceof String) {
+                    sum += cursor.getString(idx).length();
+                } else {
+                    sum += cursor.getBlob(idx).length;
+                }
+            }
+        }
+        return check(sum, start);
+    }
+
+    private static long mapperPerRow(Cursor cursor) {
+        final long start = System.nanoTime();
+        long sum = 0;
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            sum += new WhatsAppMessage(cursor).getId();
+        }
+        return check(sum, start);
+    }
+
+    private static long mapperPerCursor(Cursor cursor) {
+        final long start = System.nanoTime();
+        long sum = 0;
+        final MessageRowMapper mapper = new MessageRowMapper(cursor);
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            sum += mapper.map(cursor).getId();
+        }
+        return check(sum, start);
+    }
+
+    private static long check(long sum, long start) {
+        if (sum == Long.MIN_VALUE) throw new AssertionError();
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String name, long nanos) {
+        System.out.println(String.format(Locale.ENGLISH, "%-24s %,12.0f rows/s", name, ROWS * 1e9 / nanos));
+    }
+
+    private static MatrixCursor createCursor() {
+        final WhatsAppMessage.Fields[] fields = WhatsAppMessage.Fields.values();
+        final String[] columns = new String[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            columns[i] = fields[i].toString();
+        }
+        final MatrixCursor cursor = new MatrixCursor(columns, ROWS);
+        for (int row = 0; row < ROWS; row++) {
+            final Object[] values = new Object[columns.length];
+            for (int i = 0; i < fields.length; i++) {
+                values[i] = sampleValue(fields[i], row);
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private static Object sampleValue(WhatsAppMessage.Fields field, int row) {
+        switch (field) {
+            case RAW_DATA:
+            case THUMB_IMAGE:
+                return new byte[16];
+            case KEY_REMOTE_JID:
+            case KEY_ID:
+            case DATA:
+            case MEDIA_HASH:
+            case MEDIA_NAME:
+            case MEDIA_MIME_TYPE:
+            case MEDIA_WA_TYPE:
+            case MEDIA_URL:
+            case REMOTE_RESOURCE:
+                return "4915773981234@s.whatsapp.net";
+            default:
+                return (long) row;
+        }
+    }
+}
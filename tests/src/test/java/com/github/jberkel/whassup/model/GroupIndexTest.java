@@ -0,0 +1,111 @@
+package com.github.jberkel.whassup.model;
+
+import android.database.MatrixCursor;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Date;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class GroupIndexTest {
+    static final String OWN = "4915779999999";
+    static final String A = "4915771111111";
+    static final String B = "4915772222222";
+    static final String GROUP = OWN + "-1369779058@g.us";
+    static final String DIRECT = "4915773333333@s.whatsapp.net";
+
+    GroupIndex index;
+
+    @Before public void before() {
+        MatrixCursor cursor = new MatrixCursor(Projection.EVENTS.getColumns());
+        row(cursor, 7, DIRECT, 0, 0, 0, "yo", 500, null);
+        row(cursor, 1, GROUP, 1, 6, 1, "Trip", 1000, OWN);
+        row(cursor, 2, GROUP, 1, 6, 4, null, 1100, A + "@s.whatsapp.net");
+        row(cursor, 3, GROUP, 0, 0, 0, "hi", 1200, B + "@s.whatsapp.net");
+        row(cursor, 4, GROUP, 1, 6, 1, "Trip 2014", 2000, OWN + "@s.whatsapp.net");
+        row(cursor, 5, GROUP, 0, 0, 0, "hi again", 2500, B + "@s.whatsapp.net");
+        row(cursor, 6, GROUP, 1, 6, 7, null, 3000, A + "@s.whatsapp.net");
+        index = new GroupIndex(cursor);
+    }
+
+    @Test
+    public void shouldFindOwnNumber() throws Exception {
+        assertThat(index.getOwnNumber()).isEqualTo(OWN);
+    }
+
+    @Test
+    public void shouldFindNameAtTime() throws Exception {
+        assertThat(index.getName(GROUP, new Date(999))).isNull();
+        assertThat(index.getName(GROUP, new Date(1000))).isEqualTo("Trip");
+        assertThat(index.getName(GROUP, new Date(1999))).isEqualTo("Trip");
+        assertThat(index.getName(GROUP, new Date(2000))).isEqualTo("Trip 2014");
+        assertThat(index.getName(GROUP, null)).isEqualTo("Trip 2014");
+        assertThat(index.getName(DIRECT, null)).isNull();
+        assertThat(index.getName("unknown@g.us", null)).isNull();
+    }
+
+    @Test
+    public void shouldFindMembersAtTime() throws Exception {
+        assertThat(index.getMembers(GROUP, new Date(1000))).containsOnly(OWN);
+        assertThat(index.getMembers(GROUP, new Date(1150))).containsOnly(OWN, A);
+        assertThat(index.getMembers(GROUP, new Date(1200))).containsOnly(OWN, A, B);
+        assertThat(index.getMembers(GROUP, new Date(3000))).containsOnly(OWN, B);
+        assertThat(index.getMembers(GROUP, null)).containsOnly(OWN, B);
+        assertThat(index.getMembers(DIRECT, null)).isNull();
+    }
+
+    @Test
+    public void shouldFindCreationTimestamp() throws Exception {
+        assertThat(index.getCreationTimestamp(GROUP)).isEqualTo(new Date(1000));
+        assertThat(index.getCreationTimestamp(DIRECT)).isEqualTo(new Date(500));
+        assertThat(index.getCreationTimestamp("unknown@s.whatsapp.net")).isNull();
+    }
+
+    @Test
+    public void shouldResolveRecipientsOfGroupMessages() throws Exception {
+        WhatsAppMessage received = message(GROUP, 0, 1200, B + "@s.whatsapp.net");
+        WhatsAppMessage sent = message(GROUP, 1, 3500, null);
+        WhatsAppMessage direct = message(DIRECT, 0, 600, null);
+        index.attach(received);
+        index.attach(sent);
+        index.attach(direct);
+
+        assertThat(received.getRecipients()).containsOnly("-1", A);
+        assertThat(sent.getRecipients()).containsOnly(B);
+        assertThat(direct.getRecipients()).containsOnly("-1");
+    }
+
+    private static WhatsAppMessage message(String jid, int fromMe, long timestamp, String remoteResource) {
+        WhatsAppMessage m = new WhatsAppMessage();
+        m.key_remote_jid = jid;
+        m.key_from_me = fromMe;
+        m.timestamp = timestamp;
+        m.remote_resource = remoteResource;
+        return m;
+    }
+
+    private static void row(MatrixCursor cursor, long id, String jid, int fromMe, int status, int mediaSize,
+                            String data, long timestamp, String remoteResource) {
+        String[] columns = cursor.getColumnNames();
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            switch (WhatsAppMessage.Fields.valueOf(columns[i].toUpperCase())) {
+                case _ID:             row[i] = id; break;
+                case KEY_REMOTE_JID:  row[i] = jid; break;
+                case KEY_FROM_ME:     row[i] = (long) fromMe; break;
+                case STATUS:          row[i] = (long) status; break;
+                case MEDIA_SIZE:      row[i] = (long) mediaSize; break;
+                case DATA:            row[i] = data; break;
+                case TIMESTAMP:       row[i] = timestamp; break;
+                case REMOTE_RESOURCE: row[i] = remoteResource; break;
+            }
+        }
+        cursor.addRow(row);
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.jberkel.whassup.model;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class JidTest {
+
+    @Test
+    public void shouldParseDirectJid() throws Exception {
+        Jid jid = Jid.of("4915773981234@s.whatsapp.net");
+        assertThat(jid.getType()).isEqualTo(Jid.Type.DIRECT);
+        assertThat(jid.isDirect()).isTrue();
+        assertThat(jid.isGroup()).isFalse();
+        assertThat(jid.getNumber()).isEqualTo("4915773981234");
+        assertThat(jid.getOwner()).isEqualTo("4915773981234");
+        assertThat(jid.getCreator()).isNull();
+        assertThat(jid.getGroupId()).isNull();
+        assertThat(jid.toString()).isEqualTo("4915773981234@s.whatsapp.net");
+    }
+
+    @Test
+    public void shouldParseGroupJid() throws Exception {
+        Jid jid = Jid.of("4915773981234-1369779058@g.us");
+        assertThat(jid.getType()).isEqualTo(Jid.Type.GROUP);
+        assertThat(jid.isGroup()).isTrue();
+        assertThat(jid.getNumber()).isNull();
+        assertThat(jid.getCreator()).isEqualTo("4915773981234");
+        assertThat(jid.getGroupId()).isEqualTo("1369779058");
+        assertThat(jid.getOwner()).isEqualTo("4915773981234");
+        assertThat(jid.getUser()).isEqualTo("4915773981234-1369779058");
+    }
+
+    @Test
+    public void shouldParseInvalidJid() throws Exception {
+        Jid jid = Jid.of("iPhone-2.6.2-443");
+        assertThat(jid.isValid()).isFalse();
+        assertThat(jid.getType()).isEqualTo(Jid.Type.OTHER);
+        assertThat(jid.getOwner()).isNull();
+        assertThat(jid.getUser()).isEqualTo("iPhone-2.6.2-443");
+        assertThat(jid.isDigitsOnly()).isFalse();
+    }
+
+    @Test
+    public void shouldInternJids() throws Exception {
+        Jid jid = Jid.of("4915773980000@s.whatsapp.net");
+        assertThat(Jid.of(new String("4915773980000@s.whatsapp.net"))).isSameAs(jid);
+        assertThat(Jid.of("4915773980001@s.whatsapp.net")).isNotSameAs(jid);
+        assertThat(Jid.of(null)).isNull();
+    }
+
+    @Test
+    public void shouldLookUpJidsById() throws Exception {
+        Jid first = Jid.of("4915773981111@s.whatsapp.net");
+        Jid second = Jid.of("4915773982222@s.whatsapp.net");
+
+        assertThat(second.getId()).isNotEqualTo(first.getId());
+        assertThat(Jid.get(first.getId())).isSameAs(first);
+        assertThat(Jid.get(second.getId())).isSameAs(second);
+        assertThat(Jid.count()).isGreaterThan(Math.max(first.getId(), second.getId()));
+    }
+
+    @Test
+    public void shouldAssignDenseIds() throws Exception {
+        int count = Jid.count();
+        for (int i = 0; i < 200; i++) {
+            Jid jid = Jid.of("dense-" + i + "@g.us");
+            assertThat(jid.getId()).isEqualTo(count + i);
+        }
+        assertThat(Jid.get(count + 199).toString()).isEqualTo("dense-199@g.us");
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void shouldThrowOnUnknownId() throws Exception {
+        Jid.get(Jid.count());
+    }
+}
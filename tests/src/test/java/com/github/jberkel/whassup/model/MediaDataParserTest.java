@@ -0,0 +1,96 @@
+package com.github.jberkel.whassup.model;
+
+import com.whatsapp.MediaData;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
+import static com.github.jberkel.whassup.model.Fixtures.fileToBytes;
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MediaDataParserTest {
+
+    @Test
+    public void shouldParseFixedLayout() throws Exception {
+        MediaData data = MediaDataParser.parseFixed(fileToBytes(Fixtures.THUMB_IMAGE));
+
+        assertThat(data).isNotNull();
+        assertThat(data.getFile().getPath()).isEqualTo("/storage/emulated/0/WhatsApp/Media/WhatsApp Images/IMG-20130526-WA0000.jpg");
+        assertThat(data.getFileSize()).isEqualTo(67731L);
+        assertThat(data.getProgress()).isEqualTo(100L);
+        assertThat(data.isTransferred()).isTrue();
+    }
+
+    @Test
+    public void shouldParseSerializedMediaData() throws Exception {
+        MediaData data = MediaDataParser.parseFixed(serialize(
+                new MediaData(new File("/sdcard/WhatsApp/Media/Fotos/IMG-é€.jpg"), 1234L, false, 17L)));
+
+        assertThat(data).isNotNull();
+        assertThat(data.getFile().getPath()).isEqualTo("/sdcard/WhatsApp/Media/Fotos/IMG-é€.jpg");
+        assertThat(data.getFileSize()).isEqualTo(1234L);
+        assertThat(data.getProgress()).isEqualTo(17L);
+        assertThat(data.isTransferred()).isFalse();
+    }
+
+    @Test
+    public void shouldParseMediaDataWithoutFile() throws Exception {
+        MediaData data = MediaDataParser.parseFixed(serialize(new MediaData(null, 5L, true, 0L)));
+
+        assertThat(data).isNotNull();
+        assertThat(data.getFile()).isNull();
+        assertThat(data.getFileSize()).isEqualTo(5L);
+    }
+
+    @Test
+    public void shouldFallBackToDeserializationForUnknownLayouts() throws Exception {
+        byte[] bytes = serialize(new MediaData(new CustomFile("/sdcard/a.jpg"), 10L, true, 10L));
+        assertThat(MediaDataParser.parseFixed(bytes)).isNull();
+
+        MediaData data = MediaDataParser.parse(bytes);
+        assertThat(data.getFile()).isInstanceOf(CustomFile.class);
+        assertThat(data.getFile().getPath()).isEqualTo("/sdcard/a.jpg");
+        assertThat(data.getFileSize()).isEqualTo(10L);
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldThrowIOExceptionOnInvalidData() throws Exception {
+        MediaDataParser.parse(new byte[] { 1, 2, 3 });
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldThrowIOExceptionOnOtherClasses() throws Exception {
+        MediaDataParser.parse(serialize("not media data"));
+    }
+
+    @Test
+    public void shouldNotParseTruncatedData() throws Exception {
+        byte[] bytes = fileToBytes(Fixtures.THUMB_IMAGE);
+        byte[] truncated = new byte[bytes.length - 10];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+        assertThat(MediaDataParser.parseFixed(truncated)).isNull();
+    }
+
+    private static byte[] serialize(Object object) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(object);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    static class CustomFile extends File {
+        CustomFile(String path) {
+            super(path);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.github.jberkel.whassup.model;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MessageQueryTest {
+    static final String A = "4915771111111";
+    static final String B = "4915772222222";
+    static final String OWNER = "4915779999999";
+    static final String DIRECT = A + "@s.whatsapp.net";
+    static final String GROUP = OWNER + "-1369779058@g.us";
+    static final String[] COLUMNS = {
+        "_id", "key_remote_jid", "key_from_me", "status", "media_mime_type", "timestamp", "latitude", "longitude",
+        "data", "remote_resource"
+    };
+
+    File file;
+    SQLiteDatabase db;
+    List<Object[]> rows = new ArrayList<Object[]>();
+
+    @Before public void before() throws Exception {
+        file = File.createTempFile("messages", ".db");
+        db = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null, SQLiteDatabase.OPEN_READWRITE);
+        db.execSQL("CREATE TABLE messages (_id INTEGER PRIMARY KEY, key_remote_jid TEXT, key_from_me INTEGER, " +
+                "status INTEGER, media_mime_type TEXT, timestamp INTEGER, latitude REAL, longitude REAL, data TEXT, " +
+                "remote_resource TEXT)");
+        row(1L, DIRECT, 0L, 0L, null, 1000L, 0d, 0d, "hi", null);
+        row(2L, DIRECT, 1L, 5L, "image/jpeg", 2000L, 0d, 0d, null, null);
+        row(3L, GROUP, 0L, 0L, null, 3000L, 0d, 0d, "hello", B + "@s.whatsapp.net");
+        row(4L, GROUP, 1L, 5L, null, 4000L, 52.5d, 13.4d, "", null);
+        row(5L, GROUP, 1L, 6L, null, 5000L, 0d, 0d, "Trip", OWNER);
+        row(6L, DIRECT, 0L, 0L, "video/mp4", 6000L, null, null, null, null);
+    }
+
+    @After public void after() {
+        db.close();
+        assertThat(file.delete()).isTrue();
+    }
+
+    @Test
+    public void shouldCompileSelection() throws Exception {
+        MessageQuery query = new MessageQuery().chat(DIRECT).between(1000, 2000);
+        assertThat(query.getSelection()).isEqualTo("key_remote_jid = ? AND timestamp >= ? AND timestamp < ?");
+        assertThat(query.getSelectionArgs()).containsExactly(DIRECT, "1000", "2000");
+
+        assertThat(new MessageQuery().getSelection()).isNull();
+        assertThat(new MessageQuery().getSelectionArgs()).isNull();
+        assertThat(new MessageQuery().status().getSelection()).isNull();
+        assertThat(ids(new MessageQuery())).containsExactly(1L, 2L, 3L, 4L, 5L, 6L);
+    }
+
+    @Test
+    public void shouldSelectChat() throws Exception {
+        assertThat(ids(new MessageQuery().chat(DIRECT))).containsExactly(1L, 2L, 6L);
+        assertThat(ids(new MessageQuery().chatType(Jid.Type.GROUP))).containsExactly(3L, 4L, 5L);
+        assertThat(ids(new MessageQuery().chatType(Jid.Type.DIRECT))).containsExactly(1L, 2L, 6L);
+    }
+
+    @Test
+    public void shouldSelectSender() throws Exception {
+        assertThat(ids(new MessageQuery().sender(A))).containsExactly(1L, 6L);
+        assertThat(ids(new MessageQuery().sender(B))).containsExactly(3L);
+        assertThat(ids(new MessageQuery().sender(OWNER))).containsExactly(5L);
+        assertThat(ids(new MessageQuery().sender("-1"))).containsExactly(2L, 4L);
+    }
+
+    @Test
+    public void shouldSelectDirectionAndStatus() throws Exception {
+        assertThat(ids(new MessageQuery().received())).containsExactly(1L, 3L, 6L);
+        assertThat(ids(new MessageQuery().sent())).containsExactly(2L, 4L, 5L);
+        assertThat(ids(new MessageQuery().status(0, 6))).containsExactly(1L, 3L, 5L, 6L);
+    }
+
+    @Test
+    public void shouldSelectMimeType() throws Exception {
+        assertThat(ids(new MessageQuery().mimeType("image/*"))).containsExactly(2L);
+        assertThat(ids(new MessageQuery().mimeType("IMAGE/*"))).containsExactly(2L);
+        assertThat(ids(new MessageQuery().mimeType("video/mp4"))).containsExactly(6L);
+        assertThat(ids(new MessageQuery().mimeType("audio/*"))).isEmpty();
+    }
+
+    @Test
+    public void shouldSelectTimeRange() throws Exception {
+        assertThat(ids(new MessageQuery().between(2000, 5000))).containsExactly(2L, 3L, 4L);
+        assertThat(ids(new MessageQuery().between(5000, 0))).containsExactly(5L, 6L);
+        assertThat(ids(new MessageQuery().between(0, 2000))).containsExactly(1L);
+    }
+
+    @Test
+    public void shouldSelectLocationAndText() throws Exception {
+        assertThat(ids(new MessageQuery().withLocation())).containsExactly(4L);
+        assertThat(ids(new MessageQuery().withoutLocation())).containsExactly(1L, 2L, 3L, 5L, 6L);
+        assertThat(ids(new MessageQuery().withText())).containsExactly(1L, 3L, 5L);
+        assertThat(ids(new MessageQuery().withoutText())).containsExactly(2L, 4L, 6L);
+    }
+
+    @Test
+    public void shouldCombineConditions() throws Exception {
+        assertThat(ids(new MessageQuery().chat(GROUP).received().withText())).containsExactly(3L);
+        assertThat(ids(new MessageQuery().chatType(Jid.Type.DIRECT).received().withoutText().between(0, 7000)))
+                .containsExactly(6L);
+    }
+
+    @Test
+    public void shouldNotChangeMatcherWithQuery() throws Exception {
+        MessageQuery query = new MessageQuery().chat(DIRECT);
+        MessageQuery.Matcher matcher = query.matcher(COLUMNS);
+        query.chat(GROUP);
+        assertThat(matcher.matches(rows.get(0))).isTrue();
+        assertThat(matcher.matches(rows.get(2))).isFalse();
+    }
+
+    /**
+     * @return the ids selected by SQLite, after checking that the matcher selects the same rows
+     */
+    private List<Long> ids(MessageQuery query) {
+        List<Long> selected = new ArrayList<Long>();
+        Cursor cursor = db.query("messages", new String[] { "_id" }, query.getSelection(), query.getSelectionArgs(),
+                null, null, "_id");
+        try {
+            while (cursor.moveToNext()) {
+                selected.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        List<Long> matched = new ArrayList<Long>();
+        MessageQuery.Matcher matcher = query.matcher(COLUMNS);
+        for (Object[] row : rows) {
+            if (matcher.matches(row)) matched.add((Long) row[0]);
+        }
+        assertThat(matched).isEqualTo(selected);
+        return selected;
+    }
+
+    private void row(Object... values) {
+        ContentValues contentValues = new ContentValues();
+        for (int i = 0; i < COLUMNS.length; i++) {
+            Object value = values[i];
+            if (value == null) {
+                contentValues.putNull(COLUMNS[i]);
+            } else if (value instanceof Long) {
+                contentValues.put(COLUMNS[i], (Long) value);
+            } else if (value instanceof Double) {
+                contentValues.put(COLUMNS[i], (Double) value);
+            } else {
+                contentValues.put(COLUMNS[i], (String) value);
+            }
+        }
+        db.insert("messages", null, contentValues);
+        rows.add(values);
+    }
+}
@@ -0,0 +1,146 @@
+package com.github.jberkel.whassup.model;
+
+import android.database.MatrixCursor;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Date;
+import java.util.Iterator;
+
+import static com.github.jberkel.whassup.model.WhatsAppMessage.Fields.*;
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class MessageTableTest {
+    private static final String[] COLUMNS = {
+        _ID.toString(), KEY_REMOTE_JID.toString(), KEY_FROM_ME.toString(), TIMESTAMP.toString(),
+        DATA.toString(), STATUS.toString(), MEDIA_SIZE.toString(), MEDIA_MIME_TYPE.toString(),
+        REMOTE_RESOURCE.toString()
+    };
+
+    @Test
+    public void shouldReadColumns() throws Exception {
+        MessageTable table = new MessageTable(cursor());
+
+        assertThat(table.size()).isEqualTo(3);
+        assertThat(table.getId(0)).isEqualTo(1L);
+        assertThat(table.getTimestamp(1)).isEqualTo(2000L);
+        assertThat(table.getChatId(2)).isEqualTo("4915773981234-1369779058@g.us");
+        assertThat(table.getRemoteResource(2)).isEqualTo("4915773980000@s.whatsapp.net");
+        assertThat(table.getRemoteResource(0)).isNull();
+        assertThat(table.getMimeType(1)).isEqualTo("image/jpeg");
+        assertThat(table.getMimeType(0)).isNull();
+        assertThat(table.getMediaSize(1)).isEqualTo(67731);
+        assertThat(table.getStatus(1)).isEqualTo(5);
+        assertThat(table.isReceived(0)).isTrue();
+        assertThat(table.isReceived(1)).isFalse();
+        assertThat(table.getText(0)).isEqualTo("hello");
+    }
+
+    @Test
+    public void shouldReadLocations() throws Exception {
+        MatrixCursor cursor = new MatrixCursor(new String[] { _ID.toString(), LATITUDE.toString(), LONGITUDE.toString() });
+        for (int i = 0; i < 100; i++) {
+            cursor.addRow(new Object[] { (long) i, i % 30 == 1 ? 52.5 : 0d, i % 30 == 1 ? 13.4 + i : 0d });
+        }
+        MessageTable table = new MessageTable(cursor);
+
+        assertThat(table.getLatitude(31)).isEqualTo(52.5);
+        assertThat(table.getLongitude(31)).isEqualTo(44.4);
+        assertThat(table.get(91).getLongitude()).isEqualTo(104.4);
+        assertThat(table.getLatitude(30)).isEqualTo(0d);
+        assertThat(table.get(99).getLongitude()).isEqualTo(0d);
+    }
+
+    @Test
+    public void shouldShareEqualValues() throws Exception {
+        MessageTable table = new MessageTable(cursor());
+        assertThat(table.getChatId(0)).isSameAs(table.getChatId(1));
+    }
+
+    @Test
+    public void shouldProvideMessageAccessorsOnRows() throws Exception {
+        MessageTable table = new MessageTable(cursor());
+        MatrixCursor c = cursor();
+
+        for (MessageTable.Row row : table) {
+            assertThat(c.moveToNext()).isTrue();
+            WhatsAppMessage message = new WhatsAppMessage(c);
+
+            assertThat(row.getId()).isEqualTo(message.getId());
+            assertThat(row.getChatId()).isEqualTo(message.getChatId());
+            assertThat(row.isReceived()).isEqualTo(message.isReceived());
+            assertThat(row.getTimestamp()).isEqualTo(message.getTimestamp());
+            assertThat(row.getText()).isEqualTo(message.getText());
+            assertThat(row.getStatus()).isEqualTo(message.getStatus());
+            assertThat(row.getOwner()).isEqualTo(message.getOwner());
+            assertThat(row.getSender()).isEqualTo(message.getSender());
+            assertThat(row.getRecipients()).isEqualTo(message.getRecipients());
+            assertThat(row.isGroupMessage()).isEqualTo(message.isGroupMessage());
+            assertThat(row.isDirectMessage()).isEqualTo(message.isDirectMessage());
+            assertThat(row.hasText()).isEqualTo(message.hasText());
+            assertThat(row.getMedia().getMimeType()).isEqualTo(message.getMedia().getMimeType());
+            assertThat(row.getMedia().getSize()).isEqualTo(message.getMedia().getSize());
+        }
+        assertThat(c.moveToNext()).isFalse();
+    }
+
+    @Test
+    public void shouldLoadMediaBlobsOnDemand() throws Exception {
+        BlobLoader loader = mock(BlobLoader.class);
+        when(loader.loadBlob(2L, RAW_DATA)).thenReturn(new byte[] { 1, 2, 3 });
+        MessageTable table = new MessageTable(cursor(), loader);
+
+        assertThat(table.get(1).getMedia().getRawData()).isEqualTo(new byte[] { 1, 2, 3 });
+        verify(loader).loadBlob(2L, RAW_DATA);
+    }
+
+    @Test
+    public void shouldGrowBeyondCursorCount() throws Exception {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        for (int i = 0; i < 1000; i++) {
+            cursor.addRow(new Object[] { (long) i, "jid" + (i % 7), 0L, (long) i * 10, "text", 0L, 0L, null, null });
+        }
+        MessageTable table = new MessageTable(cursor);
+
+        assertThat(table.size()).isEqualTo(1000);
+        assertThat(table.getTimestamp(999)).isEqualTo(9990L);
+        assertThat(table.getChatId(999)).isEqualTo("jid5");
+    }
+
+    @Test
+    public void shouldReadEmptyCursor() throws Exception {
+        MessageTable table = new MessageTable(new MatrixCursor(COLUMNS));
+        assertThat(table.size()).isEqualTo(0);
+        assertThat(table.iterator().hasNext()).isFalse();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void shouldCheckRowIndex() throws Exception {
+        new MessageTable(cursor()).getTimestamp(3);
+    }
+
+    @Test
+    public void shouldIterateRowsInOrder() throws Exception {
+        Iterator<MessageTable.Row> rows = new MessageTable(cursor()).iterator();
+        assertThat(rows.next().getTimestamp()).isEqualTo(new Date(1000L));
+        assertThat(rows.next().getTimestamp()).isEqualTo(new Date(2000L));
+        assertThat(rows.next().getTimestamp()).isEqualTo(new Date(3000L));
+        assertThat(rows.hasNext()).isFalse();
+    }
+
+    private static MatrixCursor cursor() {
+        MatrixCursor cursor = new MatrixCursor(COLUMNS);
+        cursor.addRow(new Object[] { 1L, "4915773981234@s.whatsapp.net", 0L, 1000L, "hello", 0L, 0L, null, null });
+        cursor.addRow(new Object[] { 2L, "4915773981234@s.whatsapp.net", 1L, 2000L, null, 5L, 67731L, "image/jpeg", null });
+        cursor.addRow(new Object[] { 3L, "4915773981234-1369779058@g.us", 0L, 3000L, "hi", 0L, 0L, null,
+                "4915773980000@s.whatsapp.net" });
+        return cursor;
+    }
+}
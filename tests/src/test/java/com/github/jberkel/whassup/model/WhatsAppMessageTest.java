@@ -1,5 +1,6 @@
 package com.github.jberkel.whassup.model;
 
+import android.database.MatrixCursor;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -13,6 +14,35 @@ import static org.fest.assertions.api.Assertions.assertThat;
 @Config(manifest = Config.NONE)
 public class WhatsAppMessageTest {
 
+    @Test
+    public void shouldMapRowsWithRowMapper() throws Exception {
+        MatrixCursor cursor = new MatrixCursor(new String[] { "_id", "key_remote_jid", "timestamp", "data", "media_url" });
+        cursor.addRow(new Object[] { 1L, "4915773981234@s.whatsapp.net", 1358086780000L, "hello", "http://x" });
+        cursor.addRow(new Object[] { 2L, "4915773981234-12345@g.us", 1358086790000L, null, null });
+        MessageRowMapper mapper = new MessageRowMapper(cursor);
+        assertThat(mapper.has(WhatsAppMessage.Fields.DATA)).isTrue();
+        assertThat(mapper.has(WhatsAppMessage.Fields.RAW_DATA)).isFalse();
+
+        assertThat(cursor.moveToNext()).isTrue();
+        WhatsAppMessage first = mapper.map(cursor);
+        assertThat(first.getId()).isEqualTo(1L);
+        assertThat(first.getText()).isEqualTo("hello");
+        assertThat(first.getTimestamp().getTime()).isEqualTo(1358086780000L);
+        assertThat(first.getMedia().getUrl()).isEqualTo("http://x");
+        assertThat(first.getStatus()).isEqualTo(0);
+
+        assertThat(cursor.moveToNext()).isTrue();
+        WhatsAppMessage second = mapper.map(cursor);
+        assertThat(second.getId()).isEqualTo(2L);
+        assertThat(second.isGroupMessage()).isTrue();
+        assertThat(second.getText()).isNull();
+    }
+
+    @Test
+    public void shouldUseLowerCaseColumnNames() throws Exception {
+        assertThat(WhatsAppMessage.Fields.KEY_REMOTE_JID.toString()).isEqualTo("key_remote_jid");
+    }
+
     @Test
     public void shouldParseTimestamp() throws Exception {
         WhatsAppMessage m = new WhatsAppMessage();
@@ -50,6 +80,28 @@ public class WhatsAppMessageTest {
         assertThat(m.isGroupMessage()).isFalse();
     }
 
+    @Test
+    public void shouldResolveSenderAndRecipients() throws Exception {
+        WhatsAppMessage m = new WhatsAppMessage();
+        m.key_remote_jid = "4915773981234-12345@g.us";
+        m.remote_resource = "4915773980000@s.whatsapp.net";
+        assertThat(m.getSender()).isEqualTo("4915773980000");
+        assertThat(m.getRecipients()).containsOnly("4915773981234", "-1");
+        assertThat(m.getJid().getGroupId()).isEqualTo("12345");
+        assertThat(m.getRemoteResourceJid().getNumber()).isEqualTo("4915773980000");
+
+        m.key_from_me = 1;
+        m.remote_resource = null;
+        assertThat(m.getSender()).isEqualTo("-1");
+        assertThat(m.getRecipients()).containsOnly("4915773981234");
+
+        m.key_from_me = 0;
+        m.key_remote_jid = "4915773981234@s.whatsapp.net";
+        m.remote_resource = "iPhone-2.6.2-443";
+        assertThat(m.getSender()).isEqualTo("4915773981234");
+        assertThat(m.getRecipients()).containsOnly("-1");
+    }
+
     @Test
     public void shouldParseNumberWithInvalidSpec() throws Exception {
         WhatsAppMessage m = new WhatsAppMessage();
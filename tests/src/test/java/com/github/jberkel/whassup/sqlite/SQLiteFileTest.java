@@ -0,0 +1,150 @@
+package com.github.jberkel.whassup.sqlite;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import com.github.jberkel.whassup.crypto.DBDecryptor;
+import com.github.jberkel.whassup.model.Fixtures;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class SQLiteFileTest {
+    SQLiteFile db;
+    Table messages;
+
+    @Before public void before() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new DBDecryptor().decryptStream(new FileInputStream(Fixtures.TEST_DB_1), out);
+        db = new SQLiteFile(new ByteArrayPageSource(out.toByteArray()), 4);
+        messages = db.getTable("messages");
+    }
+
+    @After public void after() throws Exception {
+        db.close();
+    }
+
+    @Test
+    public void shouldParseHeader() throws Exception {
+        SQLiteHeader header = db.getHeader();
+        assertThat(header.getPageSize()).isEqualTo(4096);
+        assertThat(header.getPageCount()).isEqualTo(13);
+        assertThat(header.getTextEncoding()).isEqualTo(SQLiteHeader.ENCODING_UTF8);
+        assertThat(header.getUserVersion()).isEqualTo(1);
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldRejectNonDatabase() throws Exception {
+        new SQLiteFile(new ByteArrayPageSource(Fixtures.fileToBytes(Fixtures.TEST_DB_1)));
+    }
+
+    @Test
+    public void shouldReadSchema() throws Exception {
+        assertThat(messages).isNotNull();
+        assertThat(messages.getRootPage()).isEqualTo(3);
+        assertThat(messages.getColumnCount()).isEqualTo(26);
+        assertThat(messages.getRowIdColumn()).isEqualTo(0);
+        assertThat(messages.getColumnIndex("TIMESTAMP")).isEqualTo(7);
+        assertThat(db.getTable("chat_list").getColumns())
+                .containsExactly("_id", "key_remote_jid", "message_table_id");
+        assertThat(db.getTable("messages_key_index")).isNull();
+    }
+
+    @Test
+    public void shouldScanAllRows() throws Exception {
+        List<Long> ids = ids(db.scan(messages));
+        assertThat(ids).hasSize(82);
+        assertThat(ids.get(0)).isEqualTo(1L);
+        assertThat(ids.get(1)).isEqualTo(3L);
+        assertThat(ids.get(81)).isEqualTo(83L);
+    }
+
+    @Test
+    public void shouldScanInReverse() throws Exception {
+        List<Long> ids = ids(db.scan(messages, true));
+        assertThat(ids).hasSize(82);
+        assertThat(ids.get(0)).isEqualTo(83L);
+        assertThat(ids.get(81)).isEqualTo(1L);
+    }
+
+    @Test
+    public void shouldSeek() throws Exception {
+        assertThat(ids(db.scan(messages).seek(2))).hasSize(81);
+        assertThat(ids(db.scan(messages).seek(80))).containsExactly(80L, 81L, 82L, 83L);
+        assertThat(ids(db.scan(messages).seek(84))).isEmpty();
+        assertThat(ids(db.scan(messages, true).seek(3))).containsExactly(3L, 1L);
+        assertThat(ids(db.scan(messages, true).seek(2))).containsExactly(1L);
+        assertThat(ids(db.scan(messages, true).seek(0))).isEmpty();
+    }
+
+    @Test
+    public void shouldDecodeValues() throws Exception {
+        Object[] row = db.get(messages, 3);
+        assertThat(row[0]).isEqualTo(3L);
+        assertThat(row[messages.getColumnIndex("key_remote_jid")]).isEqualTo("1304619121373371563@s.whatsapp.net");
+        assertThat(row[messages.getColumnIndex("timestamp")]).isEqualTo(1358086780000L);
+        assertThat(db.get(messages, 2)).isNull();
+
+        Object[] media = db.get(messages, 82);
+        assertThat((byte[]) media[messages.getColumnIndex("thumb_image")]).hasSize(259);
+        assertThat((byte[]) media[messages.getColumnIndex("raw_data")]).hasSize(2386);
+    }
+
+    @Test
+    public void shouldReadOverflowPages() throws Exception {
+        File file = File.createTempFile("overflow", ".db");
+        SQLiteDatabase sqlite = SQLiteDatabase.openDatabase(file.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.CREATE_IF_NECESSARY);
+        sqlite.execSQL("CREATE TABLE blobs (id INTEGER PRIMARY KEY, \"data\" BLOB, n REAL)");
+        byte[] blob = new byte[50000];
+        for (int i = 0; i < blob.length; i++) blob[i] = (byte) i;
+        for (int i = 1; i <= 3; i++) {
+            ContentValues values = new ContentValues();
+            values.put("data", i == 2 ? blob : new byte[i]);
+            values.put("n", i + 0.5);
+            sqlite.insert("blobs", null, values);
+        }
+        sqlite.close();
+
+        SQLiteFile overflow = new SQLiteFile(new ByteArrayPageSource(Fixtures.fileToBytes(file)), 2);
+        Table blobs = overflow.getTable("BLOBS");
+        assertThat(blobs.getColumns()).containsExactly("id", "data", "n");
+        assertThat(ids(overflow.scan(blobs))).containsExactly(1L, 2L, 3L);
+        assertThat((byte[]) overflow.get(blobs, 2)[1]).isEqualTo(blob);
+        assertThat(overflow.get(blobs, 3)[2]).isEqualTo(3.5);
+        overflow.close();
+        assertThat(file.delete()).isTrue();
+    }
+
+    @Test
+    public void shouldParseTableDefinitions() throws Exception {
+        Table table = Table.parse("t", 2, "CREATE TABLE t ([a b] TEXT, c INTEGER PRIMARY KEY, d," +
+                " e NUMERIC DEFAULT (1,2), UNIQUE (a, d)) WITHOUT ROWID");
+        assertThat(table.getColumns()).containsExactly("a b", "c", "d", "e");
+        assertThat(table.isWithoutRowId()).isTrue();
+        assertThat(table.getRowIdColumn()).isEqualTo(-1);
+        assertThat(Table.parse("u", 2, "CREATE TABLE u (x, \"id\" integer primary key)").getRowIdColumn())
+                .isEqualTo(1);
+    }
+
+    private static List<Long> ids(TableScan scan) throws IOException {
+        List<Long> ids = new ArrayList<Long>();
+        while (scan.next()) {
+            ids.add(scan.getRowId());
+        }
+        return ids;
+    }
+}